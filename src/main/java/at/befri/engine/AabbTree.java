@@ -0,0 +1,596 @@
+package at.befri.engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.joml.FrustumIntersection;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import at.befri.engine.items.GameItem;
+import at.befri.graph.Mesh;
+
+/**
+ * Dynamic AABB tree over game items for frustum, sphere, box and ray queries in logarithmic time. Leaves hold a box
+ * enlarged by a margin around the item's bounds, so small moves only update the item's own bounds; an item that
+ * leaves its enlarged box is removed and inserted again. Insertion picks the sibling that grows the surface area of
+ * the tree least, and rotations keep the tree balanced, as in Box2D's b2DynamicTree.
+ * <p>
+ * The bounds of an item are those of its mesh, scaled and moved to its position. Rotated items get the box of a
+ * sphere around their position that contains the mesh in any rotation, so rotating never moves an item in the tree.
+ * The tree is not thread safe.
+ */
+public class AabbTree {
+	private static final int NULL = -1;
+	/**
+	 * Margin of the enlarged boxes relative to the item's size
+	 */
+	private static final float MARGIN = 0.1f;
+
+	/**
+	 * Enlarged boxes of all nodes, min x, y, z and max x, y, z
+	 */
+	private float[] boxes;
+	/**
+	 * Exact boxes of the leaves
+	 */
+	private float[] itemBoxes;
+	private int[] parents;
+	private int[] children1;
+	private int[] children2;
+	/**
+	 * 0 for leaves, free nodes are marked with -1
+	 */
+	private int[] heights;
+	private GameItem[] items;
+	private final Map<GameItem, Integer> leaves;
+	private int root;
+	private int freeList;
+	private int capacity;
+	private final Vector3f min;
+	private final Vector3f max;
+	private int[] stack;
+
+	public AabbTree() {
+		leaves = new HashMap<>();
+		root = NULL;
+		freeList = NULL;
+		min = new Vector3f();
+		max = new Vector3f();
+		stack = new int[64];
+		allocate(16);
+	}
+
+	public int size() {
+		return leaves.size();
+	}
+
+	public boolean contains(GameItem gameItem) {
+		return leaves.containsKey(gameItem);
+	}
+
+	public void insert(GameItem gameItem) {
+		if (leaves.containsKey(gameItem)) {
+			return;
+		}
+		int leaf = allocateNode();
+		items[leaf] = gameItem;
+		heights[leaf] = 0;
+		computeBounds(gameItem, min, max);
+		setBox(itemBoxes, leaf * 6, 0);
+		setBox(boxes, leaf * 6, MARGIN * Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z)));
+		insertLeaf(leaf);
+		leaves.put(gameItem, leaf);
+	}
+
+	public void remove(GameItem gameItem) {
+		Integer leaf = leaves.remove(gameItem);
+		if (leaf != null) {
+			removeLeaf(leaf);
+			freeNode(leaf);
+		}
+	}
+
+	/**
+	 * Updates the bounds of an item after it moved or was scaled. Returns true if it had to be moved in the tree.
+	 */
+	public boolean update(GameItem gameItem) {
+		Integer leaf = leaves.get(gameItem);
+		if (leaf == null) {
+			return false;
+		}
+		computeBounds(gameItem, min, max);
+		int b = leaf * 6;
+		setBox(itemBoxes, b, 0);
+		if (min.x >= boxes[b] && min.y >= boxes[b + 1] && min.z >= boxes[b + 2] && max.x <= boxes[b + 3]
+				&& max.y <= boxes[b + 4] && max.z <= boxes[b + 5]) {
+			return false;
+		}
+		removeLeaf(leaf);
+		setBox(boxes, b, MARGIN * Math.max(max.x - min.x, Math.max(max.y - min.y, max.z - min.z)));
+		insertLeaf(leaf);
+		return true;
+	}
+
+	public void clear() {
+		leaves.clear();
+		root = NULL;
+		allocate(16);
+	}
+
+	/**
+	 * Visits the items whose bounds intersect the frustum, with the planes selected by planeMask, see
+	 * {@link FrustumIntersection#intersectAab(float, float, float, float, float, float, int)}.
+	 */
+	public void queryFrustum(FrustumIntersection frustum, int planeMask, Consumer<GameItem> consumer) {
+		int top = push(0, root);
+		while (top > 0) {
+			int node = stack[--top];
+			int b = node * 6;
+			int result = frustum.intersectAab(boxes[b], boxes[b + 1], boxes[b + 2], boxes[b + 3], boxes[b + 4],
+					boxes[b + 5], planeMask);
+			if (result >= 0) {
+				continue;
+			}
+			if (result == FrustumIntersection.INSIDE) {
+				// The whole subtree is visible
+				visitAll(node, consumer);
+			} else if (heights[node] == 0) {
+				if (frustum.intersectAab(itemBoxes[b], itemBoxes[b + 1], itemBoxes[b + 2], itemBoxes[b + 3],
+						itemBoxes[b + 4], itemBoxes[b + 5], planeMask) < 0) {
+					consumer.accept(items[node]);
+				}
+			} else {
+				top = push(top, children1[node]);
+				top = push(top, children2[node]);
+			}
+		}
+	}
+
+	/**
+	 * Visits the items whose bounds intersect the sphere.
+	 */
+	public void querySphere(Vector3f center, float radius, Consumer<GameItem> consumer) {
+		float radiusSquared = radius * radius;
+		int top = push(0, root);
+		while (top > 0) {
+			int node = stack[--top];
+			if (distanceSquared(boxes, node * 6, center) > radiusSquared) {
+				continue;
+			}
+			if (heights[node] == 0) {
+				if (distanceSquared(itemBoxes, node * 6, center) <= radiusSquared) {
+					consumer.accept(items[node]);
+				}
+			} else {
+				top = push(top, children1[node]);
+				top = push(top, children2[node]);
+			}
+		}
+	}
+
+	/**
+	 * Visits the items whose bounds intersect the box.
+	 */
+	public void queryAab(Vector3f boxMin, Vector3f boxMax, Consumer<GameItem> consumer) {
+		int top = push(0, root);
+		while (top > 0) {
+			int node = stack[--top];
+			if (!overlaps(boxes, node * 6, boxMin, boxMax)) {
+				continue;
+			}
+			if (heights[node] == 0) {
+				if (overlaps(itemBoxes, node * 6, boxMin, boxMax)) {
+					consumer.accept(items[node]);
+				}
+			} else {
+				top = push(top, children1[node]);
+				top = push(top, children2[node]);
+			}
+		}
+	}
+
+	/**
+	 * Visits the items whose bounds the ray hits within maxDistance, in units of the direction's length.
+	 */
+	public void queryRay(Vector3f origin, Vector3f direction, float maxDistance, Consumer<GameItem> consumer) {
+		float invX = 1 / direction.x;
+		float invY = 1 / direction.y;
+		float invZ = 1 / direction.z;
+		int top = push(0, root);
+		while (top > 0) {
+			int node = stack[--top];
+			if (intersectRay(boxes, node * 6, origin, invX, invY, invZ, maxDistance) < 0) {
+				continue;
+			}
+			if (heights[node] == 0) {
+				if (intersectRay(itemBoxes, node * 6, origin, invX, invY, invZ, maxDistance) >= 0) {
+					consumer.accept(items[node]);
+				}
+			} else {
+				top = push(top, children1[node]);
+				top = push(top, children2[node]);
+			}
+		}
+	}
+
+	/**
+	 * The item whose bounds the ray enters first within maxDistance, or null. The search range shrinks with every
+	 * hit, so the nearer child is searched first.
+	 */
+	public GameItem pick(Vector3f origin, Vector3f direction, float maxDistance) {
+		float invX = 1 / direction.x;
+		float invY = 1 / direction.y;
+		float invZ = 1 / direction.z;
+		GameItem nearest = null;
+		int top = push(0, root);
+		while (top > 0) {
+			int node = stack[--top];
+			if (intersectRay(boxes, node * 6, origin, invX, invY, invZ, maxDistance) < 0) {
+				continue;
+			}
+			if (heights[node] == 0) {
+				float t = intersectRay(itemBoxes, node * 6, origin, invX, invY, invZ, maxDistance);
+				if (t >= 0) {
+					maxDistance = t;
+					nearest = items[node];
+				}
+			} else {
+				int child1 = children1[node];
+				int child2 = children2[node];
+				float t1 = intersectRay(boxes, child1 * 6, origin, invX, invY, invZ, maxDistance);
+				float t2 = intersectRay(boxes, child2 * 6, origin, invX, invY, invZ, maxDistance);
+				// Pushed last, popped first
+				if (t1 >= 0 && t2 >= 0) {
+					top = push(top, t1 < t2 ? child2 : child1);
+					top = push(top, t1 < t2 ? child1 : child2);
+				} else if (t1 >= 0) {
+					top = push(top, child1);
+				} else if (t2 >= 0) {
+					top = push(top, child2);
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Height of the tree, about log2 of the number of items when balanced
+	 */
+	public int getHeight() {
+		return root == NULL ? 0 : heights[root];
+	}
+
+	/**
+	 * Bounds of a game item as kept in the tree.
+	 */
+	public static void computeBounds(GameItem gameItem, Vector3f min, Vector3f max) {
+		Vector3fc position = gameItem.getPosition();
+		Mesh mesh = gameItem.getMesh();
+		if (mesh == null) {
+			min.set(position);
+			max.set(position);
+			return;
+		}
+		Vector3fc rotation = gameItem.getRotation();
+		float scale = gameItem.getScale();
+		if (rotation.x() != 0 || rotation.y() != 0 || rotation.z() != 0) {
+			float centerX = (mesh.getMin().x + mesh.getMax().x) * 0.5f;
+			float centerY = (mesh.getMin().y + mesh.getMax().y) * 0.5f;
+			float centerZ = (mesh.getMin().z + mesh.getMax().z) * 0.5f;
+			float radius = ((float) Math.sqrt(centerX * centerX + centerY * centerY + centerZ * centerZ)
+					+ mesh.getRadius()) * Math.abs(scale);
+			min.set(position).sub(radius, radius, radius);
+			max.set(position).add(radius, radius, radius);
+		} else {
+			min.set(mesh.getMin()).mul(scale).add(position);
+			max.set(mesh.getMax()).mul(scale).add(position);
+			if (scale < 0) {
+				float x = min.x;
+				float y = min.y;
+				float z = min.z;
+				min.set(max);
+				max.set(x, y, z);
+			}
+		}
+	}
+
+	/**
+	 * Stores the bounds last computed into min and max, grown by margin.
+	 */
+	private void setBox(float[] boxes, int b, float margin) {
+		boxes[b] = min.x - margin;
+		boxes[b + 1] = min.y - margin;
+		boxes[b + 2] = min.z - margin;
+		boxes[b + 3] = max.x + margin;
+		boxes[b + 4] = max.y + margin;
+		boxes[b + 5] = max.z + margin;
+	}
+
+	private void insertLeaf(int leaf) {
+		if (root == NULL) {
+			root = leaf;
+			parents[leaf] = NULL;
+			return;
+		}
+
+		// Find the sibling whose box grows the total surface area least
+		int lb = leaf * 6;
+		int sibling = root;
+		while (heights[sibling] > 0) {
+			int child1 = children1[sibling];
+			int child2 = children2[sibling];
+			float area = area(boxes, sibling * 6);
+			float combinedArea = combinedArea(boxes, sibling * 6, lb);
+			// Cost of making a new parent for this node and the leaf
+			float cost = 2 * combinedArea;
+			// Minimum cost of pushing the leaf further down the tree
+			float inheritanceCost = 2 * (combinedArea - area);
+			float cost1 = descendCost(child1, lb) + inheritanceCost;
+			float cost2 = descendCost(child2, lb) + inheritanceCost;
+			if (cost < cost1 && cost < cost2) {
+				break;
+			}
+			sibling = cost1 < cost2 ? child1 : child2;
+		}
+
+		int oldParent = parents[sibling];
+		int newParent = allocateNode();
+		parents[newParent] = oldParent;
+		items[newParent] = null;
+		union(newParent, sibling, leaf);
+		heights[newParent] = heights[sibling] + 1;
+		children1[newParent] = sibling;
+		children2[newParent] = leaf;
+		parents[sibling] = newParent;
+		parents[leaf] = newParent;
+		if (oldParent == NULL) {
+			root = newParent;
+		} else if (children1[oldParent] == sibling) {
+			children1[oldParent] = newParent;
+		} else {
+			children2[oldParent] = newParent;
+		}
+
+		refit(parents[leaf]);
+	}
+
+	private float descendCost(int node, int lb) {
+		float combinedArea = combinedArea(boxes, node * 6, lb);
+		return heights[node] == 0 ? combinedArea : combinedArea - area(boxes, node * 6);
+	}
+
+	private void removeLeaf(int leaf) {
+		if (leaf == root) {
+			root = NULL;
+			return;
+		}
+		int parent = parents[leaf];
+		int grandParent = parents[parent];
+		int sibling = children1[parent] == leaf ? children2[parent] : children1[parent];
+		if (grandParent == NULL) {
+			root = sibling;
+			parents[sibling] = NULL;
+		} else {
+			if (children1[grandParent] == parent) {
+				children1[grandParent] = sibling;
+			} else {
+				children2[grandParent] = sibling;
+			}
+			parents[sibling] = grandParent;
+			refit(grandParent);
+		}
+		freeNode(parent);
+	}
+
+	/**
+	 * Balances and recomputes the boxes and heights from a node up to the root.
+	 */
+	private void refit(int node) {
+		while (node != NULL) {
+			node = balance(node);
+			int child1 = children1[node];
+			int child2 = children2[node];
+			heights[node] = 1 + Math.max(heights[child1], heights[child2]);
+			union(node, child1, child2);
+			node = parents[node];
+		}
+	}
+
+	/**
+	 * Rotates the higher grandchild up if the children of a node differ in height by more than one. Returns the
+	 * node now in its place.
+	 */
+	private int balance(int a) {
+		if (heights[a] < 2) {
+			return a;
+		}
+		int b = children1[a];
+		int c = children2[a];
+		int difference = heights[c] - heights[b];
+		if (difference > 1) {
+			return rotate(a, c, b, true);
+		}
+		if (difference < -1) {
+			return rotate(a, b, c, false);
+		}
+		return a;
+	}
+
+	/**
+	 * Swaps the higher child up into the place of a, a takes the lower of its children.
+	 *
+	 * @param high the higher child of a
+	 * @param low the other child of a
+	 * @param highIsSecond whether high is the second child of a
+	 */
+	private int rotate(int a, int high, int low, boolean highIsSecond) {
+		int f = children1[high];
+		int g = children2[high];
+
+		children1[high] = a;
+		parents[high] = parents[a];
+		parents[a] = high;
+		if (parents[high] == NULL) {
+			root = high;
+		} else if (children1[parents[high]] == a) {
+			children1[parents[high]] = high;
+		} else {
+			children2[parents[high]] = high;
+		}
+
+		int keep = heights[f] > heights[g] ? f : g;
+		int give = keep == f ? g : f;
+		children2[high] = keep;
+		if (highIsSecond) {
+			children2[a] = give;
+		} else {
+			children1[a] = give;
+		}
+		parents[give] = a;
+		union(a, low, give);
+		union(high, a, keep);
+		heights[a] = 1 + Math.max(heights[low], heights[give]);
+		heights[high] = 1 + Math.max(heights[a], heights[keep]);
+		return high;
+	}
+
+	private void visitAll(int node, Consumer<GameItem> consumer) {
+		if (heights[node] == 0) {
+			consumer.accept(items[node]);
+		} else {
+			visitAll(children1[node], consumer);
+			visitAll(children2[node], consumer);
+		}
+	}
+
+	private int push(int top, int node) {
+		if (node == NULL) {
+			return top;
+		}
+		if (top == stack.length) {
+			stack = Arrays.copyOf(stack, top * 2);
+		}
+		stack[top] = node;
+		return top + 1;
+	}
+
+	private void union(int node, int child1, int child2) {
+		int n = node * 6;
+		int b1 = child1 * 6;
+		int b2 = child2 * 6;
+		for (int i = 0; i < 3; i++) {
+			boxes[n + i] = Math.min(boxes[b1 + i], boxes[b2 + i]);
+			boxes[n + i + 3] = Math.max(boxes[b1 + i + 3], boxes[b2 + i + 3]);
+		}
+	}
+
+	/**
+	 * Half the surface area of a box, enough to compare costs
+	 */
+	private static float area(float[] boxes, int b) {
+		float x = boxes[b + 3] - boxes[b];
+		float y = boxes[b + 4] - boxes[b + 1];
+		float z = boxes[b + 5] - boxes[b + 2];
+		return x * y + y * z + z * x;
+	}
+
+	private static float combinedArea(float[] boxes, int b1, int b2) {
+		float x = Math.max(boxes[b1 + 3], boxes[b2 + 3]) - Math.min(boxes[b1], boxes[b2]);
+		float y = Math.max(boxes[b1 + 4], boxes[b2 + 4]) - Math.min(boxes[b1 + 1], boxes[b2 + 1]);
+		float z = Math.max(boxes[b1 + 5], boxes[b2 + 5]) - Math.min(boxes[b1 + 2], boxes[b2 + 2]);
+		return x * y + y * z + z * x;
+	}
+
+	private static float distanceSquared(float[] boxes, int b, Vector3f point) {
+		float dx = Math.max(0, Math.max(boxes[b] - point.x, point.x - boxes[b + 3]));
+		float dy = Math.max(0, Math.max(boxes[b + 1] - point.y, point.y - boxes[b + 4]));
+		float dz = Math.max(0, Math.max(boxes[b + 2] - point.z, point.z - boxes[b + 5]));
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private static boolean overlaps(float[] boxes, int b, Vector3f min, Vector3f max) {
+		return boxes[b] <= max.x && boxes[b + 3] >= min.x && boxes[b + 1] <= max.y && boxes[b + 4] >= min.y
+				&& boxes[b + 2] <= max.z && boxes[b + 5] >= min.z;
+	}
+
+	/**
+	 * Ray parameter where the ray enters the box, 0 if it starts inside, or -1 if it misses it within maxT.
+	 */
+	private static float intersectRay(float[] boxes, int b, Vector3f origin, float invX, float invY, float invZ,
+			float maxT) {
+		float t0 = 0;
+		float t1 = maxT;
+		float a = (boxes[b] - origin.x) * invX;
+		float c = (boxes[b + 3] - origin.x) * invX;
+		// A zero direction gives infinities that keep or reject the whole axis, and NaN, a miss, on a face
+		t0 = Math.max(t0, Math.min(a, c));
+		t1 = Math.min(t1, Math.max(a, c));
+		a = (boxes[b + 1] - origin.y) * invY;
+		c = (boxes[b + 4] - origin.y) * invY;
+		t0 = Math.max(t0, Math.min(a, c));
+		t1 = Math.min(t1, Math.max(a, c));
+		a = (boxes[b + 2] - origin.z) * invZ;
+		c = (boxes[b + 5] - origin.z) * invZ;
+		t0 = Math.max(t0, Math.min(a, c));
+		t1 = Math.min(t1, Math.max(a, c));
+		return t0 <= t1 ? t0 : -1;
+	}
+
+	private int allocateNode() {
+		if (freeList == NULL) {
+			int oldCapacity = capacity;
+			grow(capacity * 2);
+			for (int i = capacity - 1; i >= oldCapacity; i--) {
+				parents[i] = freeList;
+				heights[i] = -1;
+				freeList = i;
+			}
+		}
+		int node = freeList;
+		freeList = parents[node];
+		parents[node] = NULL;
+		children1[node] = NULL;
+		children2[node] = NULL;
+		heights[node] = 0;
+		return node;
+	}
+
+	private void freeNode(int node) {
+		items[node] = null;
+		heights[node] = -1;
+		parents[node] = freeList;
+		freeList = node;
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = 0;
+		boxes = new float[0];
+		itemBoxes = new float[0];
+		parents = new int[0];
+		children1 = new int[0];
+		children2 = new int[0];
+		heights = new int[0];
+		items = new GameItem[0];
+		freeList = NULL;
+		grow(capacity);
+		for (int i = capacity - 1; i >= 0; i--) {
+			parents[i] = freeList;
+			heights[i] = -1;
+			freeList = i;
+		}
+	}
+
+	private void grow(int capacity) {
+		boxes = Arrays.copyOf(boxes, capacity * 6);
+		itemBoxes = Arrays.copyOf(itemBoxes, capacity * 6);
+		parents = Arrays.copyOf(parents, capacity);
+		children1 = Arrays.copyOf(children1, capacity);
+		children2 = Arrays.copyOf(children2, capacity);
+		heights = Arrays.copyOf(heights, capacity);
+		items = Arrays.copyOf(items, capacity);
+		this.capacity = capacity;
+	}
+}
@@ -0,0 +1,87 @@
+package at.befri.engine;
+
+import java.util.Arrays;
+
+public class FloatList {
+	private float[] elements;
+	private int size;
+
+	public FloatList() {
+		this(16);
+	}
+
+	public FloatList(int initialCapacity) {
+		elements = new float[Math.max(1, initialCapacity)];
+		size = 0;
+	}
+
+	public void add(float value) {
+		if (size == elements.length) {
+			grow(size + 1);
+		}
+		elements[size++] = value;
+	}
+
+	public void add(float x, float y) {
+		if (size + 2 > elements.length) {
+			grow(size + 2);
+		}
+		elements[size++] = x;
+		elements[size++] = y;
+	}
+
+	public void add(float x, float y, float z) {
+		if (size + 3 > elements.length) {
+			grow(size + 3);
+		}
+		elements[size++] = x;
+		elements[size++] = y;
+		elements[size++] = z;
+	}
+
+	public void addAll(float[] values, int offset, int length) {
+		if (size + length > elements.length) {
+			grow(size + length);
+		}
+		System.arraycopy(values, offset, elements, size, length);
+		size += length;
+	}
+
+	public float get(int index) {
+		return elements[index];
+	}
+
+	public void set(int index, float value) {
+		elements[index] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the backing array. Only the first {@link #size()} elements are valid.
+	 */
+	public float[] elements() {
+		return elements;
+	}
+
+	public float[] toArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > elements.length) {
+			grow(capacity);
+		}
+	}
+
+	private void grow(int minCapacity) {
+		int newCapacity = Math.max(minCapacity, elements.length + (elements.length >> 1));
+		elements = Arrays.copyOf(elements, newCapacity);
+	}
+}
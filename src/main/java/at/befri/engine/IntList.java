@@ -0,0 +1,79 @@
+package at.befri.engine;
+
+import java.util.Arrays;
+
+public class IntList {
+	private int[] elements;
+	private int size;
+
+	public IntList() {
+		this(16);
+	}
+
+	public IntList(int initialCapacity) {
+		elements = new int[Math.max(1, initialCapacity)];
+		size = 0;
+	}
+
+	public void add(int value) {
+		if (size == elements.length) {
+			grow(size + 1);
+		}
+		elements[size++] = value;
+	}
+
+	public void add(int x, int y, int z) {
+		if (size + 3 > elements.length) {
+			grow(size + 3);
+		}
+		elements[size++] = x;
+		elements[size++] = y;
+		elements[size++] = z;
+	}
+
+	public void addAll(int[] values, int offset, int length) {
+		if (size + length > elements.length) {
+			grow(size + length);
+		}
+		System.arraycopy(values, offset, elements, size, length);
+		size += length;
+	}
+
+	public int get(int index) {
+		return elements[index];
+	}
+
+	public void set(int index, int value) {
+		elements[index] = value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the backing array. Only the first {@link #size()} elements are valid.
+	 */
+	public int[] elements() {
+		return elements;
+	}
+
+	public int[] toArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > elements.length) {
+			grow(capacity);
+		}
+	}
+
+	private void grow(int minCapacity) {
+		int newCapacity = Math.max(minCapacity, elements.length + (elements.length >> 1));
+		elements = Arrays.copyOf(elements, newCapacity);
+	}
+}
@@ -0,0 +1,159 @@
+package at.befri.engine;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to int values using linear probing. Nothing is boxed and a
+ * lookup touches a single contiguous run of the key array.
+ */
+public class LongIntHashMap {
+	private static final long FREE_KEY = 0L;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+	private int threshold;
+
+	// The free key can not be stored in the table, it is kept aside
+	private boolean hasFreeKey;
+	private int freeKeyValue;
+
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	public int get(long key, int defaultValue) {
+		if (key == FREE_KEY) {
+			return hasFreeKey ? freeKeyValue : defaultValue;
+		}
+		int slot = slot(key);
+		long k;
+		while ((k = keys[slot]) != FREE_KEY) {
+			if (k == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return defaultValue;
+	}
+
+	public boolean containsKey(long key) {
+		if (key == FREE_KEY) {
+			return hasFreeKey;
+		}
+		int slot = slot(key);
+		long k;
+		while ((k = keys[slot]) != FREE_KEY) {
+			if (k == key) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	public void put(long key, int value) {
+		if (key == FREE_KEY) {
+			if (!hasFreeKey) {
+				size++;
+			}
+			hasFreeKey = true;
+			freeKeyValue = value;
+			return;
+		}
+		int slot = slot(key);
+		long k;
+		while ((k = keys[slot]) != FREE_KEY) {
+			if (k == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		insert(slot, key, value);
+	}
+
+	/**
+	 * Returns the value mapped to the key. If there is none, the given value is stored and returned.
+	 */
+	public int getOrPut(long key, int value) {
+		if (key == FREE_KEY) {
+			if (!hasFreeKey) {
+				hasFreeKey = true;
+				freeKeyValue = value;
+				size++;
+			}
+			return freeKeyValue;
+		}
+		int slot = slot(key);
+		long k;
+		while ((k = keys[slot]) != FREE_KEY) {
+			if (k == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		insert(slot, key, value);
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, FREE_KEY);
+		hasFreeKey = false;
+		size = 0;
+	}
+
+	private void insert(int slot, long key, int value) {
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size >= threshold) {
+			rehash(keys.length * 2);
+		}
+	}
+
+	private int slot(long key) {
+		// Murmur3 finalizer, spreads sequential keys over the whole table
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void rehash(int newCapacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(newCapacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			long key = oldKeys[i];
+			if (key != FREE_KEY) {
+				int slot = slot(key);
+				while (keys[slot] != FREE_KEY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = key;
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -7,19 +7,23 @@ import java.util.Map;
 
 import at.befri.engine.items.GameItem;
 import at.befri.engine.items.Sky;
-import at.befri.graph.IMaterial;
 import at.befri.graph.Mesh;
+import at.befri.graph.terrain.StreamingTerrain;
+import at.befri.graph.terrain.Terrain;
 import at.befri.graph.weather.Fog;
 
-public class Scene {
+public class Scene implements GameItem.TransformListener {
 	private Map<Mesh, List<GameItem>> meshMap;
-	private GameItem terrain;
+	private final AabbTree spatialIndex;
+	private Terrain terrain;
+	private StreamingTerrain streamingTerrain;
 	private Sky sky;
 	private SceneLight sceneLight;
 	private Fog fog;
 
 	public Scene() {
 		meshMap = new HashMap<>();
+		spatialIndex = new AabbTree();
 		fog = new Fog();
 	}
 
@@ -27,28 +31,47 @@ public class Scene {
 		return meshMap;
 	}
 	
-	public GameItem getTerrain() {
+	/**
+	 * The game items of the mesh map by their bounds, kept up to date as they move through their setters
+	 */
+	public AabbTree getSpatialIndex() {
+		return spatialIndex;
+	}
+	
+	public Terrain getTerrain() {
 		return terrain;
 	}
 
+	public StreamingTerrain getStreamingTerrain() {
+		return streamingTerrain;
+	}
+
 	public void setGameItems(GameItem[] gameItems) {
 		int numGameItems = gameItems != null ? gameItems.length : 0;
 		for (int i = 0; i < numGameItems; i++) {
 			GameItem gameItem = gameItems[i];
-			Mesh mesh = gameItem.getMesh();
-			IMaterial iMaterial = mesh.getIMaterial();
-			if (iMaterial != null && iMaterial.isMultilayered()) { // this is the terrain, do not put it in the meshMap
-				terrain = gameItem;
+			if (gameItem instanceof Terrain) { // the terrain has its own chunk meshes, do not put it in the meshMap
+				terrain = (Terrain) gameItem;
+			} else if (gameItem instanceof StreamingTerrain) {
+				streamingTerrain = (StreamingTerrain) gameItem;
 			} else {
+				Mesh mesh = gameItem.getMesh();
 				List<GameItem> list = meshMap.get(mesh);
 				if (list == null) {
 					list = new ArrayList<>();
 					meshMap.put(mesh, list);
 				}
 				list.add(gameItem);
+				spatialIndex.insert(gameItem);
+				gameItem.setTransformListener(this);
 			}
 		}
 	}
+	
+	@Override
+	public void transformChanged(GameItem gameItem) {
+		spatialIndex.update(gameItem);
+	}
 
 	public Sky getSky() {
 		return sky;
@@ -3,7 +3,13 @@ package at.befri.engine;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
@@ -28,6 +34,34 @@ public class Utils {
         return list;
     }
 
+	/**
+	 * Returns the contents of a resource. Resources which live in the file system are memory mapped, anything else
+	 * (e.g. resources inside a jar) is read into a heap buffer.
+	 */
+	public static ByteBuffer readResource(String fileName) throws Exception {
+		URL url = Utils.class.getResource(fileName);
+		if (url == null) {
+			throw new Exception("Resource not found: " + fileName);
+		}
+		if ("file".equals(url.getProtocol())) {
+			try (FileChannel fc = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+				return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			}
+		}
+		try (InputStream in = url.openStream()) {
+			byte[] bytes = new byte[64 * 1024];
+			int size = 0;
+			int read;
+			while ((read = in.read(bytes, size, bytes.length - size)) != -1) {
+				size += read;
+				if (size == bytes.length) {
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+			}
+			return ByteBuffer.wrap(bytes, 0, size);
+		}
+	}
+
 	public static float[] listToArray(List<Float> list) {
 		int size = list != null ? list.size() : 0;
 		float[] floatArr = new float[size];
@@ -1,27 +1,51 @@
 package at.befri.engine.items;
 
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
 
 import at.befri.graph.Mesh;
 
 public class GameItem {
+	/**
+	 * Told when position, rotation or scale change through the setters of a game item, the only way to change them.
+	 */
+	public interface TransformListener {
+		void transformChanged(GameItem gameItem);
+	}
+	
 	private final Mesh mesh;
 	private final Vector3f position;
 	private final Vector3f rotation;
 	private float scale;
+	/**
+	 * The rotation as a quaternion, kept in sync by {@link #setRotation(float, float, float)}
+	 */
+	private final Quaternionf orientation;
+	private final Matrix4f modelMatrix;
+	private boolean modelMatrixDirty;
+	private TransformListener transformListener;
 	
 	public GameItem(Mesh mesh) {
 		this.mesh = mesh;
 		position = new Vector3f(0, 0, 0);
 		rotation = new Vector3f(0, 0, 0);
 		scale = 1;
+		orientation = new Quaternionf();
+		modelMatrix = new Matrix4f();
+		modelMatrixDirty = true;
 	}
 	
 	public Mesh getMesh() {
 		return mesh;
 	}
 	
-	public Vector3f getPosition() {
+	/**
+	 * Read only, change it with {@link #setPosition(float, float, float)} so the model matrix and the
+	 * {@link TransformListener} see the change.
+	 */
+	public Vector3fc getPosition() {
 		return position;
 	}
 	
@@ -29,9 +53,13 @@ public class GameItem {
 		this.position.x = x;
 		this.position.y = y;
 		this.position.z = z;
+		transformChanged();
 	}
 	
-	public Vector3f getRotation() {
+	/**
+	 * Read only, rotation angles in degrees; change them with {@link #setRotation(float, float, float)}.
+	 */
+	public Vector3fc getRotation() {
 		return rotation;
 	}
 	
@@ -39,6 +67,12 @@ public class GameItem {
 		this.rotation.x = x;
 		this.rotation.y = y;
 		this.rotation.z = z;
+		orientation.identity()
+			.rotateX((float) Math.toRadians(-x))
+			.rotateY((float) Math.toRadians(-y))
+			.rotateZ((float) Math.toRadians(-z))
+		;
+		transformChanged();
 	}
 	
 	public float getScale() {
@@ -47,5 +81,37 @@ public class GameItem {
 	
 	public void setScale(float scale) {
 		this.scale = scale;
+		transformChanged();
+	}
+	
+	public Quaternionf getOrientation() {
+		return orientation;
+	}
+	
+	/**
+	 * Translation, rotation and scale of this item as one matrix, rebuilt only after one of them was set. The
+	 * matrix is shared and must not be modified.
+	 */
+	public Matrix4f getModelMatrix() {
+		if (modelMatrixDirty) {
+			modelMatrix.translationRotateScale(position, orientation, scale);
+			modelMatrixDirty = false;
+		}
+		return modelMatrix;
+	}
+	
+	public TransformListener getTransformListener() {
+		return transformListener;
+	}
+	
+	public void setTransformListener(TransformListener transformListener) {
+		this.transformListener = transformListener;
+	}
+	
+	private void transformChanged() {
+		modelMatrixDirty = true;
+		if (transformListener != null) {
+			transformListener.transformChanged(this);
+		}
 	}
 }
@@ -25,7 +25,6 @@ import at.befri.engine.items.GameItem;
 import at.befri.engine.items.Sky;
 import at.befri.graph.Camera;
 import at.befri.graph.Gradient;
-import at.befri.graph.Terrain;
 import at.befri.graph.Material;
 import at.befri.graph.Mesh;
 import at.befri.graph.MultilayeredMaterial;
@@ -35,6 +34,9 @@ import at.befri.graph.Texture;
 import at.befri.graph.lights.DirectionalLight;
 import at.befri.graph.lights.PointLight;
 import at.befri.graph.lights.SpotLight;
+import at.befri.graph.terrain.HeightGrid;
+import at.befri.graph.terrain.StreamingTerrain;
+import at.befri.graph.terrain.Terrain;
 
 public class DummyGame implements IGameLogic {
 	private final Renderer renderer;
@@ -100,8 +102,9 @@ public class DummyGame implements IGameLogic {
 		 GameItem gameItem = new GameItem(sphere);
 		 gameItem.setScale(0.5f);
 		 gameItem.setPosition(0, 0, -1);
-		Mesh terrainMesh = Terrain.generate(-0.1f, 0.1f, getClass().getResourceAsStream("/textures/heightmap.png"), 40);
-		terrainMesh.setIMaterial(new MultilayeredMaterial()
+		HeightGrid heightGrid = HeightGrid.fromHeightMap(getClass().getResourceAsStream("/textures/heightmap.png"),
+				-0.1f, 0.1f);
+		Terrain terrain = new Terrain(heightGrid, 40, new MultilayeredMaterial()
 				.setDiffuseMaps(new Texture[] { new Texture("/textures/terrain/layer0/diffuse.png"),
 						new Texture("/textures/terrain/layer1/diffuse.png"),
 						new Texture("/textures/terrain/layer2/diffuse.png"),
@@ -113,8 +116,8 @@ public class DummyGame implements IGameLogic {
 						new Texture("/textures/terrain/layer3/normal.png"),
 						new Texture("/textures/terrain/layer4/normal.png"), })
 				.setRgbaMap(new Texture("/textures/terrain/rgba_new.png")).setReflectance(0.0f));
-		GameItem gameItem3 = new GameItem(terrainMesh);
-		gameItem3.setScale(25);
+		terrain.setScale(25);
+		terrain.setRenderMode(Terrain.RenderMode.SHARED_GRID);
 		
 		Mesh cubeMesh = OBJLoader.loadMesh("/models/cube.obj");
         cubeMesh.setIMaterial(
@@ -139,7 +142,7 @@ public class DummyGame implements IGameLogic {
 		quadGameItem.setPosition(0, -1, 0);
 		quadGameItem.setScale(2.5f);
 		
-		GameItem[] gameItems = new GameItem[] {gameItem, gameItem3, quadGameItem};
+		GameItem[] gameItems = new GameItem[] {gameItem, terrain, quadGameItem};
 		scene.setGameItems(gameItems);
 
 		scene.getFog().setColor(new Vector3f(0.5f, 0.5f, 0.5f)).setDensity(0.025f);
@@ -297,12 +300,13 @@ public class DummyGame implements IGameLogic {
 		for (Mesh mesh : mapMeshes.keySet()) {
 			mesh.cleanUp();
 		}
-		GameItem terrain = scene.getTerrain();
+		Terrain terrain = scene.getTerrain();
 		if (terrain != null) {
-			Mesh terrainMesh = terrain.getMesh();
-			if (terrainMesh != null) {
-				terrainMesh.cleanUp();
-			}
+			terrain.cleanUp();
+		}
+		StreamingTerrain streamingTerrain = scene.getStreamingTerrain();
+		if (streamingTerrain != null) {
+			streamingTerrain.cleanUp();
 		}
 	}
 }
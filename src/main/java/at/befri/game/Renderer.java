@@ -14,6 +14,7 @@ import java.util.Map;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import org.joml.Vector3fc;
 import org.joml.Vector4f;
 import org.lwjgl.glfw.GLFW;
 
@@ -24,14 +25,20 @@ import at.befri.engine.Window;
 import at.befri.engine.items.GameItem;
 import at.befri.engine.items.Sky;
 import at.befri.graph.Camera;
+import at.befri.graph.FrustumCuller;
+import at.befri.graph.InstanceBuffer;
+import at.befri.graph.LodSelector;
 import at.befri.graph.Mesh;
 import at.befri.graph.MultilayeredMaterial;
+import at.befri.graph.RenderQueue;
 import at.befri.graph.ShaderProgram;
 import at.befri.graph.ShadowMap;
 import at.befri.graph.Transformation;
 import at.befri.graph.lights.DirectionalLight;
 import at.befri.graph.lights.PointLight;
 import at.befri.graph.lights.SpotLight;
+import at.befri.graph.terrain.StreamingTerrain;
+import at.befri.graph.terrain.Terrain;
 
 public class Renderer {
 	private static final float FOV = (float) Math.toRadians(60f); // Field of view in radians
@@ -39,6 +46,9 @@ public class Renderer {
 	private static final float Z_FAR = 2_000_000f;
 	private static final int MAX_POINT_LIGHTS = 5;
 	private static final int MAX_SPOT_LIGHTS = 5;
+	// Shader fields of the render queue keys
+	private static final int DEPTH_SHADER = 0;
+	private static final int SCENE_SHADER = 1;
 	
 	private ShadowMap shadowMap;
 	
@@ -47,10 +57,20 @@ public class Renderer {
 	private ShaderProgram terrainShaderProgram;
 	private ShaderProgram sceneShaderProgram;
 	private Transformation transformation;
+	private LodSelector lodSelector;
+	private FrustumCuller sceneCuller;
+	private FrustumCuller shadowCuller;
+	private InstanceBuffer instances;
+	private RenderQueue renderQueue;
 	private float specularPower;
 	
 	public Renderer() {
 		transformation = new Transformation();
+		lodSelector = new LodSelector();
+		sceneCuller = new FrustumCuller();
+		shadowCuller = new FrustumCuller();
+		instances = new InstanceBuffer();
+		renderQueue = new RenderQueue();
 		specularPower = 10f;
 	}
 
@@ -72,7 +92,7 @@ public class Renderer {
 		
 		// Create uniforms
 		depthShaderProgram.createUniform("orthoProjectionMatrix");
-		depthShaderProgram.createUniform("modelLightViewMatrix");
+		depthShaderProgram.createUniform("lightViewMatrix");
 	}
 	
 	private void setupSkyShader() throws Exception {
@@ -111,6 +131,7 @@ public class Renderer {
 			terrainShaderProgram.createUniform("normalMaps[" + i + "]");
 		}
 		terrainShaderProgram.createUniform("rgbaMap");
+		terrainShaderProgram.createUniform("layerMask");
 		
 		// Create uniform for material
 		terrainShaderProgram.createMultilayeredMaterialUniform("multilayeredMaterial");
@@ -129,6 +150,16 @@ public class Renderer {
 		terrainShaderProgram.createUniform("shadowMap");
 		terrainShaderProgram.createUniform("orthoProjectionMatrix");
 		terrainShaderProgram.createUniform("modelLightViewMatrix");
+		
+		// Create uniforms for terrains drawn from a shared grid
+		terrainShaderProgram.createUniform("sharedGrid");
+		terrainShaderProgram.createUniform("heightMap");
+		terrainShaderProgram.createUniform("heightRange");
+		terrainShaderProgram.createUniform("cellSize");
+		terrainShaderProgram.createUniform("texRepeat");
+		terrainShaderProgram.createUniform("chunkBounds");
+		terrainShaderProgram.createUniform("chunkStep");
+		terrainShaderProgram.createUniform("skirtDepth");
 	}
 	
 	private void setupSceneShader() throws Exception {
@@ -140,7 +171,7 @@ public class Renderer {
 		
 		// Create uniforms for modelView and projection matrices and texture
 		sceneShaderProgram.createUniform("projectionMatrix");
-		sceneShaderProgram.createUniform("modelViewMatrix");
+		sceneShaderProgram.createUniform("viewMatrix");
 		sceneShaderProgram.createUniform("diffuseMap");
 		sceneShaderProgram.createUniform("normalMap");
 
@@ -160,7 +191,7 @@ public class Renderer {
 		// Create uniforms for shadow mapping
 		sceneShaderProgram.createUniform("shadowMap");
 		sceneShaderProgram.createUniform("orthoProjectionMatrix");
-		sceneShaderProgram.createUniform("modelLightViewMatrix");
+		sceneShaderProgram.createUniform("lightViewMatrix");
 	}
 	
 	public void clear() {
@@ -170,6 +201,20 @@ public class Renderer {
 	public void render(Window window, Camera camera, Scene scene) {
 		clear();
 		
+		// Levels of detail are chosen for the camera in both passes, so shadows match the visible geometry
+		lodSelector.update(camera, FOV, window.getHeight());
+		
+		// All matrices are set up front, the render queue is filled for both passes at once
+		updateLightMatrices(scene);
+		
+		// Update projectionMatrix
+		transformation.updateProjectionMatrix(FOV, window.getWidth(), window.getHeight(), Z_NEAR, Z_FAR);
+		
+		// Update viewMatrix
+		transformation.updateViewMatrix(camera);
+		
+		fillRenderQueue(camera, scene);
+		
 		// Render depth map before view ports has been set up
 		renderDepthMap(window, camera, scene);
 		
@@ -180,47 +225,83 @@ public class Renderer {
 //			window.setResized(false);
 //		}
 		
-		// Update projectionMatrix
-		transformation.updateProjectionMatrix(FOV, window.getWidth(), window.getHeight(), Z_NEAR, Z_FAR);
-		
-		// Update viewMatrix
-		transformation.updateViewMatrix(camera);
-		
 		renderScene(window, camera, scene);
 		
-		if (scene.getTerrain() != null) {			
+		if (scene.getTerrain() != null || scene.getStreamingTerrain() != null) {
 			renderTerrain(window, camera, scene);
 		}
 		
 		renderSky(window, camera, scene);
 	}
 	
-	private void renderDepthMap(Window window, Camera camera, Scene scene) {
-		// Setup view port to match the texture size
-		glBindFramebuffer(GL_FRAMEBUFFER, shadowMap.getDepthMapFBO());
-		glViewport(0, 0, ShadowMap.SHADOW_MAP_WIDTH, ShadowMap.SHADOW_MAP_HEIGHT);
-		glClear(GL_DEPTH_BUFFER_BIT);
-		
-		depthShaderProgram.bind();
-		
+	private void updateLightMatrices(Scene scene) {
 		DirectionalLight light = scene.getSceneLight().getDirectionalLight();
 		Vector3f lightDirection = light.getDirection();
 		
 		float lightAngleX = (float) Math.toDegrees(Math.acos(lightDirection.z));
 		float lightAngleY = (float) Math.toDegrees(Math.asin(lightDirection.x));
 		float lightAngleZ = 0;
-		Matrix4f lightViewMatrix = transformation.updateLightViewMatrix(new Vector3f(lightDirection).mul(light.getShadowPosMult()), new Vector3f(lightAngleX, lightAngleY, lightAngleZ));
+		transformation.updateLightViewMatrix(new Vector3f(lightDirection).mul(light.getShadowPosMult()), new Vector3f(lightAngleX, lightAngleY, lightAngleZ));
 		DirectionalLight.OrthoCoords orthoCoords = light.getOrthoCoords();
-		Matrix4f orthoProjMatrix = transformation.updateOrthoProjectionMatrix(orthoCoords.left, orthoCoords.right, orthoCoords.bottom, orthoCoords.top, orthoCoords.near, orthoCoords.far);
+		transformation.updateOrthoProjectionMatrix(orthoCoords.left, orthoCoords.right, orthoCoords.bottom, orthoCoords.top, orthoCoords.near, orthoCoords.far);
+	}
+	
+	/**
+	 * Culls the game items for both passes, chooses their levels of detail and sorts them into the render queue
+	 */
+	private void fillRenderQueue(Camera camera, Scene scene) {
+		renderQueue.clear();
+		Matrix4f lightViewMatrix = transformation.getLightViewMatrix();
+		// Only items inside the light's box can cast shadows into the shadow map
+		shadowCuller.update(transformation.getOrthoProjectionMatrix(), lightViewMatrix, FrustumCuller.ALL_PLANES);
+		sceneCuller.update(transformation.getProjectionMatrix(), transformation.getViewMatrix(), FrustumCuller.PERSPECTIVE_PLANES);
+		Vector3f cameraPosition = camera.getPosition();
 		
-		depthShaderProgram.setUniform("orthoProjectionMatrix", orthoProjMatrix);
 		Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
 		for (Mesh mesh : mapMeshes.keySet()) {
-			mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
-				Matrix4f modelLightViewMatrix = transformation.buildModelViewMatrix(gameItem, lightViewMatrix);
-				depthShaderProgram.setUniform("modelLightViewMatrix", modelLightViewMatrix);
-			});
+			int materialId = RenderQueue.materialId(mesh);
+			for (GameItem gameItem : mapMeshes.get(mesh)) {
+				boolean castsShadow = shadowCuller.isVisible(gameItem);
+				boolean visible = sceneCuller.isVisible(gameItem);
+				if (!castsShadow && !visible) {
+					continue;
+				}
+				int level = lodSelector.select(gameItem);
+				if (level == LodSelector.CULLED) {
+					continue;
+				}
+				Vector3fc position = gameItem.getPosition();
+				if (castsShadow) {
+					// Distance along the light, which looks down its negative z axis
+					float depth = -(lightViewMatrix.m02() * position.x() + lightViewMatrix.m12() * position.y()
+							+ lightViewMatrix.m22() * position.z() + lightViewMatrix.m32());
+					renderQueue.add(RenderQueue.key(RenderQueue.PASS_SHADOW, DEPTH_SHADER, RenderQueue.NO_MATERIAL,
+							mesh.getId(), level, depth), gameItem);
+				}
+				if (visible) {
+					// Squared distances sort the same as distances
+					float depth = cameraPosition.distanceSquared(position);
+					renderQueue.add(RenderQueue.key(RenderQueue.PASS_OPAQUE, SCENE_SHADER, materialId, mesh.getId(),
+							level, depth), gameItem);
+				}
+			}
 		}
+		renderQueue.sort();
+	}
+	
+	private void renderDepthMap(Window window, Camera camera, Scene scene) {
+		// Setup view port to match the texture size
+		glBindFramebuffer(GL_FRAMEBUFFER, shadowMap.getDepthMapFBO());
+		glViewport(0, 0, ShadowMap.SHADOW_MAP_WIDTH, ShadowMap.SHADOW_MAP_HEIGHT);
+		glClear(GL_DEPTH_BUFFER_BIT);
+		
+		depthShaderProgram.bind();
+		
+		depthShaderProgram.setUniform("orthoProjectionMatrix", transformation.getOrthoProjectionMatrix());
+		depthShaderProgram.setUniform("lightViewMatrix", transformation.getLightViewMatrix());
+		// The depth shader reads no material
+		renderQueue.render(RenderQueue.PASS_SHADOW, false, instances,
+				(mesh, meshInstances, materialChanged) -> mesh.renderGeometryInstanced(meshInstances));
 		
 		// Unbind
 		depthShaderProgram.unbind();
@@ -273,7 +354,6 @@ public class Renderer {
 		terrainShaderProgram.setUniform("projectionMatrix", projectionMatrix);
 		Matrix4f orthoProjMatrix = transformation.getOrthoProjectionMatrix();
 		terrainShaderProgram.setUniform("orthoProjectionMatrix", orthoProjMatrix);
-		Matrix4f lightViewMatrix = transformation.getLightViewMatrix();
 		
 		Matrix4f viewMatrix = transformation.getViewMatrix();
 		
@@ -288,13 +368,38 @@ public class Renderer {
 		terrainShaderProgram.setUniform("rgbaMap", MultilayeredMaterial.MAX_LAYERS * 2);
 		
 		terrainShaderProgram.setUniform("shadowMap", MultilayeredMaterial.MAX_LAYERS * 2 + 1);
+		terrainShaderProgram.setUniform("heightMap", MultilayeredMaterial.MAX_LAYERS * 2 + 2);
 		
 		terrainShaderProgram.setUniform("fog", scene.getFog());
 		
-		// Render terrain mesh
-		GameItem terrain = scene.getTerrain();
-		Mesh terrainMesh = terrain.getMesh();
-		terrainShaderProgram.setUniform("multilayeredMaterial", terrainMesh.getIMaterial());
+		Terrain terrain = scene.getTerrain();
+		if (terrain != null) {
+			renderTerrain(terrain, camera);
+		}
+		
+		// Page in the tiles around the camera, they all share one material
+		StreamingTerrain streamingTerrain = scene.getStreamingTerrain();
+		if (streamingTerrain != null) {
+			streamingTerrain.update(camera.getPosition());
+			for (Terrain tile : streamingTerrain.getVisibleTiles()) {
+				renderTerrain(tile, camera);
+			}
+		}
+		
+		terrainShaderProgram.unbind();
+	}
+	
+	private void renderTerrain(Terrain terrain, Camera camera) {
+		Matrix4f projectionMatrix = transformation.getProjectionMatrix();
+		Matrix4f viewMatrix = transformation.getViewMatrix();
+		Matrix4f lightViewMatrix = transformation.getLightViewMatrix();
+		
+		// Select the terrain chunks for this frame
+		terrain.update(projectionMatrix, viewMatrix, transformation.buildModelMatrix(terrain), camera.getPosition());
+		
+		// Render terrain chunks, they all share the terrain's material
+		terrainShaderProgram.setUniform("multilayeredMaterial", terrain.getMaterial());
+		Mesh.bindTextures(terrain.getMaterial());
 		glActiveTexture(GL_TEXTURE0 + MultilayeredMaterial.MAX_LAYERS * 2 + 1);
 		glBindTexture(GL_TEXTURE_2D, shadowMap.getDepthMapTexture().getId());
 		// Set model view matrix
@@ -302,9 +407,8 @@ public class Renderer {
 		terrainShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);	
 		Matrix4f modelLightViewMatrix = transformation.buildModelLightViewMatrix(terrain, lightViewMatrix);
 		terrainShaderProgram.setUniform("modelLightViewMatrix", modelLightViewMatrix);
-		terrainMesh.render();
-		
-		terrainShaderProgram.unbind();
+		terrain.render(terrainShaderProgram, MultilayeredMaterial.MAX_LAYERS * 2 + 2);
+		glBindTexture(GL_TEXTURE_2D, 0);
 	}
 	
 	private void renderScene(Window window, Camera camera, Scene scene) {
@@ -315,8 +419,10 @@ public class Renderer {
 		Matrix4f orthoProjMatrix = transformation.getOrthoProjectionMatrix();
 		sceneShaderProgram.setUniform("orthoProjectionMatrix", orthoProjMatrix);
 		Matrix4f lightViewMatrix = transformation.getLightViewMatrix();
+		sceneShaderProgram.setUniform("lightViewMatrix", lightViewMatrix);
 		
 		Matrix4f viewMatrix = transformation.getViewMatrix();
+		sceneShaderProgram.setUniform("viewMatrix", viewMatrix);
 		
 		// Update light uniforms
 		SceneLight sceneLight = scene.getSceneLight();
@@ -328,20 +434,18 @@ public class Renderer {
 		
 		sceneShaderProgram.setUniform("fog", scene.getFog());
 		
-		// Render each mesh with the associated game items
-		Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
-		for (Mesh mesh : mapMeshes.keySet()) {
-			sceneShaderProgram.setUniform("material", mesh.getIMaterial());
-			glActiveTexture(GL_TEXTURE2);
-			glBindTexture(GL_TEXTURE_2D, shadowMap.getDepthMapTexture().getId());
-			mesh.renderList(mapMeshes.get(mesh), gameItem -> {
-				// Set model view matrix for this gameItem
-				Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(gameItem, viewMatrix);
-				sceneShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
-				Matrix4f modelLightViewMatrix = transformation.buildModelLightViewMatrix(gameItem, lightViewMatrix);
-				sceneShaderProgram.setUniform("modelLightViewMatrix", modelLightViewMatrix);
-			});
-		}
+		glActiveTexture(GL_TEXTURE2);
+		glBindTexture(GL_TEXTURE_2D, shadowMap.getDepthMapTexture().getId());
+		
+		// Render the queued game items, binding each material once
+		renderQueue.render(RenderQueue.PASS_OPAQUE, true, instances, (mesh, meshInstances, materialChanged) -> {
+			if (materialChanged) {
+				sceneShaderProgram.setUniform("material", mesh.getIMaterial());
+				Mesh.bindTextures(mesh.getIMaterial());
+			}
+			mesh.renderGeometryInstanced(meshInstances);
+		});
+		glBindTexture(GL_TEXTURE_2D, 0);
 		
 		sceneShaderProgram.unbind();
 	}
@@ -393,6 +497,31 @@ public class Renderer {
 		shaderProgram.setUniform("directionalLight", currDirLight);
 	}
 
+	public LodSelector getLodSelector() {
+		return lodSelector;
+	}
+
+	/**
+	 * Culling of the game items in the last frame's camera pass
+	 */
+	public FrustumCuller getSceneCuller() {
+		return sceneCuller;
+	}
+
+	/**
+	 * Culling of the game items in the last frame's shadow pass
+	 */
+	public FrustumCuller getShadowCuller() {
+		return shadowCuller;
+	}
+
+	/**
+	 * Draws and state changes of the last frame
+	 */
+	public RenderQueue getRenderQueue() {
+		return renderQueue;
+	}
+
 	public void cleanup() {
 		if (skyShaderProgram != null) {
 			skyShaderProgram.cleanup();
@@ -405,5 +534,7 @@ public class Renderer {
 		if (sceneShaderProgram != null) {
 			sceneShaderProgram.cleanup();
 		}
+		
+		instances.free();
 	}
 }
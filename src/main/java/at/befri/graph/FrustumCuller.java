@@ -0,0 +1,98 @@
+package at.befri.graph;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import at.befri.engine.items.GameItem;
+
+/**
+ * Culls game items against the frustum of a projection and view matrix by the bounds of their mesh. The bounding
+ * sphere is tested first, only items it leaves undecided pay for transforming the mesh's box by the model matrix.
+ * Counts the tested and culled items since the last update.
+ */
+public class FrustumCuller {
+	/**
+	 * All planes but the far one, which degenerates in float precision with the renderer's far to near ratio
+	 */
+	public static final int PERSPECTIVE_PLANES = FrustumIntersection.PLANE_MASK_NX
+			| FrustumIntersection.PLANE_MASK_PX | FrustumIntersection.PLANE_MASK_NY
+			| FrustumIntersection.PLANE_MASK_PY | FrustumIntersection.PLANE_MASK_NZ;
+	public static final int ALL_PLANES = PERSPECTIVE_PLANES | FrustumIntersection.PLANE_MASK_PZ;
+
+	private final FrustumIntersection frustum;
+	private final Matrix4f matrix;
+	private final Vector3f center;
+	private final Vector3f min;
+	private final Vector3f max;
+	private int planeMask;
+	private int testedCount;
+	private int culledCount;
+
+	public FrustumCuller() {
+		frustum = new FrustumIntersection();
+		matrix = new Matrix4f();
+		center = new Vector3f();
+		min = new Vector3f();
+		max = new Vector3f();
+		planeMask = ALL_PLANES;
+	}
+
+	/**
+	 * Sets the frustum for a frame and resets the counts. planeMask selects the planes tested, see
+	 * {@link #PERSPECTIVE_PLANES} and {@link #ALL_PLANES}.
+	 */
+	public void update(Matrix4f projectionMatrix, Matrix4f viewMatrix, int planeMask) {
+		frustum.set(matrix.set(projectionMatrix).mul(viewMatrix));
+		this.planeMask = planeMask;
+		testedCount = 0;
+		culledCount = 0;
+	}
+
+	/**
+	 * Whether any part of the game item's mesh may be inside the frustum.
+	 */
+	public boolean isVisible(GameItem gameItem) {
+		testedCount++;
+		Mesh mesh = gameItem.getMesh();
+		Vector3f meshMin = mesh.getMin();
+		Vector3f meshMax = mesh.getMax();
+		Matrix4f modelMatrix = gameItem.getModelMatrix();
+
+		// Sphere around the center of the bounds
+		modelMatrix.transformPosition(center.set(meshMin).add(meshMax).mul(0.5f));
+		float radius = mesh.getRadius() * Math.abs(gameItem.getScale());
+		// The box around the sphere, FrustumIntersection can only skip planes for boxes
+		int result = frustum.intersectAab(center.x - radius, center.y - radius, center.z - radius,
+				center.x + radius, center.y + radius, center.z + radius, planeMask);
+		if (result == FrustumIntersection.INSIDE) {
+			return true;
+		}
+		if (result >= 0) {
+			culledCount++;
+			return false;
+		}
+
+		// Undecided, test the box of the mesh in world space
+		modelMatrix.transformAab(meshMin, meshMax, min, max);
+		if (frustum.intersectAab(min, max, planeMask) >= 0) {
+			culledCount++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Items tested since the last update
+	 */
+	public int getTestedCount() {
+		return testedCount;
+	}
+
+	/**
+	 * Items found outside the frustum since the last update
+	 */
+	public int getCulledCount() {
+		return culledCount;
+	}
+}
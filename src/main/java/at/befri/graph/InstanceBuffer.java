@@ -0,0 +1,88 @@
+package at.befri.graph;
+
+import java.nio.FloatBuffer;
+
+import org.joml.Matrix4f;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Off-heap model matrices of the instances of a mesh, grouped by level of detail, for
+ * {@link Mesh#renderGeometryInstanced(InstanceBuffer)}. Matrices are stored as their top three rows, the bottom row
+ * of a model matrix is always 0, 0, 0, 1, so an instance takes {@link #INSTANCE_SIZE} bytes. Filling the buffer does
+ * not touch OpenGL, the buffers grow as needed and are reused after {@link #clear()} until {@link #free()}.
+ */
+public class InstanceBuffer {
+	public static final int INSTANCE_FLOATS = 12;
+	public static final int INSTANCE_SIZE = INSTANCE_FLOATS * 4;
+
+	private final FloatBuffer[] levels;
+	private final int[] counts;
+
+	public InstanceBuffer() {
+		levels = new FloatBuffer[MeshData.MAX_LOD_LEVELS];
+		counts = new int[MeshData.MAX_LOD_LEVELS];
+	}
+
+	public void clear() {
+		for (int level = 0; level < counts.length; level++) {
+			counts[level] = 0;
+		}
+	}
+
+	/**
+	 * Adds an instance drawn with the given level of detail. The matrix must be affine.
+	 */
+	public void add(int level, Matrix4f modelMatrix) {
+		int count = counts[level];
+		FloatBuffer buffer = levels[level];
+		if (buffer == null) {
+			buffer = MemoryUtil.memAllocFloat(64 * INSTANCE_FLOATS);
+			levels[level] = buffer;
+		} else if ((count + 1) * INSTANCE_FLOATS > buffer.capacity()) {
+			buffer = MemoryUtil.memRealloc(buffer, buffer.capacity() * 2);
+			levels[level] = buffer;
+		}
+		modelMatrix.get4x3Transposed(count * INSTANCE_FLOATS, buffer);
+		counts[level] = count + 1;
+	}
+
+	public int getCount(int level) {
+		return counts[level];
+	}
+
+	/**
+	 * Instances of all levels of detail
+	 */
+	public int getCount() {
+		int count = 0;
+		for (int levelCount : counts) {
+			count += levelCount;
+		}
+		return count;
+	}
+
+	/**
+	 * The instances of a level of detail, from position 0 to the limit. The view is only valid until the next
+	 * {@link #add(int, Matrix4f)}.
+	 */
+	public FloatBuffer getBuffer(int level) {
+		FloatBuffer buffer = levels[level];
+		if (buffer == null) {
+			return null;
+		}
+		FloatBuffer view = buffer.duplicate();
+		view.position(0);
+		view.limit(counts[level] * INSTANCE_FLOATS);
+		return view;
+	}
+
+	public void free() {
+		for (int level = 0; level < levels.length; level++) {
+			if (levels[level] != null) {
+				MemoryUtil.memFree(levels[level]);
+				levels[level] = null;
+			}
+			counts[level] = 0;
+		}
+	}
+}
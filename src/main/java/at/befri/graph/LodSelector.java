@@ -0,0 +1,87 @@
+package at.befri.graph;
+
+import org.joml.Vector3f;
+
+import at.befri.engine.items.GameItem;
+
+/**
+ * Picks the level of detail of game items from their projected size on screen. A level is good enough when its
+ * simplification error covers less than {@link #getMaxErrorPixels()} pixels; items smaller than
+ * {@link #getMinScreenSizePixels()} are not drawn at all.
+ */
+public class LodSelector {
+	public static final int CULLED = -1;
+
+	private final Vector3f cameraPosition;
+	/**
+	 * Pixels covered by one unit at a distance of one unit
+	 */
+	private float projectionScale;
+	private float maxErrorPixels;
+	private float minScreenSizePixels;
+
+	public LodSelector() {
+		cameraPosition = new Vector3f();
+		maxErrorPixels = 1.0f;
+		minScreenSizePixels = 2.0f;
+	}
+
+	/**
+	 * Must be called once per frame before selecting levels.
+	 */
+	public void update(Camera camera, float fov, int viewportHeight) {
+		cameraPosition.set(camera.getPosition());
+		projectionScale = viewportHeight / (2.0f * (float) Math.tan(fov / 2.0f));
+	}
+
+	/**
+	 * Returns the level of detail to draw the game item with, or {@link #CULLED} if it is too small to be seen.
+	 */
+	public int select(GameItem gameItem) {
+		Mesh mesh = gameItem.getMesh();
+		Vector3f min = mesh.getMin();
+		Vector3f max = mesh.getMax();
+		// Mirroring scales are negative, the size on screen is the same
+		float scale = Math.abs(gameItem.getScale());
+
+		// Sphere around the item's position that contains the mesh in any rotation
+		float centerDistance = (float) Math.sqrt(square(min.x + max.x) + square(min.y + max.y)
+				+ square(min.z + max.z)) / 2.0f;
+		float radius = (centerDistance + mesh.getRadius()) * scale;
+
+		float distance = cameraPosition.distance(gameItem.getPosition()) - radius;
+		if (distance <= 0) {
+			return 0;
+		}
+		float pixelsPerUnit = projectionScale / distance;
+		if (2.0f * radius * pixelsPerUnit < minScreenSizePixels) {
+			return CULLED;
+		}
+		for (int level = mesh.getLodCount() - 1; level > 0; level--) {
+			if (mesh.getLodError(level) * scale * pixelsPerUnit <= maxErrorPixels) {
+				return level;
+			}
+		}
+		return 0;
+	}
+
+	public float getMaxErrorPixels() {
+		return maxErrorPixels;
+	}
+
+	public void setMaxErrorPixels(float maxErrorPixels) {
+		this.maxErrorPixels = maxErrorPixels;
+	}
+
+	public float getMinScreenSizePixels() {
+		return minScreenSizePixels;
+	}
+
+	public void setMinScreenSizePixels(float minScreenSizePixels) {
+		this.minScreenSizePixels = minScreenSizePixels;
+	}
+
+	private static float square(float value) {
+		return value * value;
+	}
+}
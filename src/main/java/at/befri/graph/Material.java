@@ -4,6 +4,11 @@ import org.joml.Vector4f;
 
 public class Material implements IMaterial {
 	private static final Vector4f DEFAULT_COLOR = new Vector4f(1f, 1f, 1f, 1f);
+	private static int nextId = 1;
+	/**
+	 * Sequence number in creation order, so sorting by it is the same in every run
+	 */
+	private final int id;
 	private Vector4f ambientColor;
 	private Vector4f diffuseColor;
 	private Vector4f specularColor;
@@ -12,12 +17,17 @@ public class Material implements IMaterial {
 	private float reflectance;
 	
 	public Material() {
+		id = nextId++;
 		ambientColor = DEFAULT_COLOR;
 		diffuseColor = DEFAULT_COLOR;
 		specularColor = DEFAULT_COLOR;
 		reflectance = 0f;
 	}
 	
+	public int getId() {
+		return id;
+	}
+	
 	public Material setColor(Vector4f color) {
 		ambientColor = color;
 		diffuseColor = color;
@@ -4,6 +4,7 @@ import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
 import static org.lwjgl.opengl.GL11.glBindTexture;
 import static org.lwjgl.opengl.GL11.glDrawElements;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
@@ -11,447 +12,180 @@ import static org.lwjgl.opengl.GL13.glActiveTexture;
 import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
 import static org.lwjgl.opengl.GL15.glBindBuffer;
 import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glBufferSubData;
 import static org.lwjgl.opengl.GL15.glDeleteBuffers;
 import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.GL_HALF_FLOAT;
 import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
 import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
+import static org.lwjgl.opengl.GL33.GL_INT_2_10_10_10_REV;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Consumer;
 
-import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
 
-import at.befri.engine.items.GameItem;
-
 public class Mesh {
+	/**
+	 * First vertex attribute of the instance model matrices, one row per attribute
+	 */
+	public static final int INSTANCE_ATTRIBUTE = 4;
+	private static final int INSTANCE_ROWS = 3;
+	private static int nextId = 1;
+
+	/**
+	 * Sequence number in creation order, so sorting by it is the same in every run
+	 */
+	private final int id;
 	private final int vaoId;
 	private final List<Integer> vboIdList;
 	private final int vertexCount;
+	private final int indexType;
+	private final VertexLayout vertexLayout;
+	/**
+	 * Byte offset into the index buffer, index count and simplification error per level of detail
+	 */
+	private final long[] lodOffsets;
+	private final int[] lodIndexCounts;
+	private final float[] lodErrors;
+	private final Vector3f min;
+	private final Vector3f max;
+	private final float radius;
+	/**
+	 * Buffer of the instance model matrices, created on the first instanced draw
+	 */
+	private int instanceVboId;
 	private IMaterial iMaterial;
 
-	public Mesh(float[] positions, float[] texCoords, float[] normals, int[] indices) {
-		FloatBuffer posBuffer = null;
-		FloatBuffer texCoordsBuffer = null;
-		FloatBuffer vecNormalsBuffer = null;
-		FloatBuffer vecTangentsBuffer = null;
-		FloatBuffer vecBitangentsBuffer = null;
-		IntBuffer indicesBuffer = null;
-		try {
-			iMaterial = new Material();
-			vertexCount = indices.length;
-			vboIdList = new ArrayList<>();
-
-			// Create the VAO and bind to it
-			vaoId = glGenVertexArrays();
-			glBindVertexArray(vaoId);
-
-			// Position VBO
-			int vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			posBuffer = MemoryUtil.memAllocFloat(positions.length);
-			posBuffer.put(positions).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, posBuffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0); // Define structure of the data
-
-			// Texture coordinates VBO
-			vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			texCoordsBuffer = MemoryUtil.memAllocFloat(texCoords.length);
-			texCoordsBuffer.put(texCoords).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, texCoordsBuffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-
-			// Vertex normals VBO
-			vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			vecNormalsBuffer = MemoryUtil.memAllocFloat(normals.length);
-			vecNormalsBuffer.put(normals).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, vecNormalsBuffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
-
-			float[] tangents = new float[normals.length];
-			float[] bitangents = new float[normals.length];
-
-			computeTangentBasis(positions, texCoords, normals, indices, tangents, bitangents);
-
-			// Tangents VBO
-			vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			vecTangentsBuffer = MemoryUtil.memAllocFloat(tangents.length);
-			vecTangentsBuffer.put(tangents).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, vecTangentsBuffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(3, 3, GL_FLOAT, false, 0, 0);
-
-			// Bitangents VBO
-			vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			vecBitangentsBuffer = MemoryUtil.memAllocFloat(bitangents.length);
-			vecBitangentsBuffer.put(bitangents).flip();
-			glBindBuffer(GL_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ARRAY_BUFFER, vecBitangentsBuffer, GL_STATIC_DRAW);
-			glVertexAttribPointer(4, 3, GL_FLOAT, false, 0, 0);
-
-			// Index VBO
-			vboId = glGenBuffers();
-			vboIdList.add(vboId);
-			indicesBuffer = MemoryUtil.memAllocInt(indices.length);
-			indicesBuffer.put(indices).flip();
-			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
-			glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
-
-			// Unbind the VBO
-			glBindBuffer(GL_ARRAY_BUFFER, 0);
+	public static Mesh create(float[] positions, float[] texCoords, float[] normals, int[] indices) {
+		return create(new MeshData(positions, texCoords, normals, indices));
+	}
 
-			// Unbind the VAO
-			glBindVertexArray(0);
+	/**
+	 * Uploads CPU side mesh data. Tangents are computed here if the data does not have them yet, loaders running
+	 * on worker threads should call {@link MeshData#computeTangents()} themselves.
+	 */
+	public static Mesh create(MeshData data) {
+		ByteBuffer vertices = null;
+		ByteBuffer indices = null;
+		try {
+			vertices = allocVertices(data);
+			indices = allocIndices(data);
+			return new Mesh(vertices, indices, data.getIndexSize(), lodIndexCounts(data), lodErrors(data),
+					data.getVertexLayout(), data.getMin(), data.getMax(), data.getRadius());
 		} finally {
-			if (posBuffer != null) {
-				MemoryUtil.memFree(posBuffer);
+			// The driver has its own copy once the mesh is created
+			if (vertices != null) {
+				MemoryUtil.memFree(vertices);
 			}
-			if (texCoordsBuffer != null) {
-				MemoryUtil.memFree(texCoordsBuffer);
-			}
-			if (vecNormalsBuffer != null) {
-				MemoryUtil.memFree(vecNormalsBuffer);
-			}
-			if (indicesBuffer != null) {
-				MemoryUtil.memFree(indicesBuffer);
+			if (indices != null) {
+				MemoryUtil.memFree(indices);
 			}
 		}
 	}
 
-	private static void computeTangentBasis(float[] positions, float[] texCoords, float[] normals, int[] indices,
-			float[] tangents, float[] bitangents) {
-//		 for (int i = 0; i < normals.length; i++) {
-//		 tangents[i] = 0.0f;
-//		 bitangents[i] = 0.0f;
-//		 }
-//		
-//		 for (int i = 0; i < indices.length; i += 3) {
-//		 int i0 = indices[i + 0];
-//		 int i1 = indices[i + 1];
-//		 int i2 = indices[i + 2];
-//		
-//		 Vector3f v0 = new Vector3f(positions[i0 * 3 + 0], positions[i0 * 3 + 1], positions[i0 * 3
-//		 + 2]);
-//		 Vector3f v1 = new Vector3f(positions[i1 * 3 + 0], positions[i1 * 3 + 1], positions[i1 * 3
-//		 + 2]);
-//		 Vector3f v2 = new Vector3f(positions[i2 * 3 + 0], positions[i2 * 3 + 1], positions[i2 * 3
-//		 + 2]);
-//		
-//		 Vector2f uv0 = new Vector2f(texCoords[i0 * 2 + 0], texCoords[i0 * 2 + 1]);
-//		 Vector2f uv1 = new Vector2f(texCoords[i1 * 2 + 0], texCoords[i1 * 2 + 1]);
-//		 Vector2f uv2 = new Vector2f(texCoords[i2 * 2 + 0], texCoords[i2 * 2 + 1]);
-//		
-//		 float x0 = v1.x - v0.x;
-//		 float x1 = v2.x - v0.x;
-//		 float y0 = v1.y - v0.y;
-//		 float y1 = v2.y - v0.y;
-//		 float z0 = v1.z - v0.z;
-//		 float z1 = v2.z - v0.z;
-//		
-//		 float s0 = uv1.x - uv0.x;
-//		 float s1 = uv2.x - uv0.x;
-//		 float t0 = uv1.y - uv0.y;
-//		 float t1 = uv2.y - uv0.y;
-//		
-//		 float aux = (s0 * t1 - s1 * t0);
-//		 float r;
-//		 if (aux != 0.0f) {
-//		 r = 1.0f / aux;
-//		 } else {
-//		 r = 1.0f;
-//		 }
-//		
-//		 Vector3f sdir = new Vector3f((t1 * x0 - t0 * x1) * r, (t1 * y0 - t0 * y1) *
-//		 r, (t1 * z0 - t0 * z1) * r);
-//		 Vector3f tdir = new Vector3f((s0 * x1 - s1 * x0) * r, (s0 * y1 - s1 * y0) *
-//		 r, (s0 * z1 - s1 * z0) * r);
-//		
-//		 tangents[i0 * 3 + 0] += sdir.x;
-//		 tangents[i0 * 3 + 1] += sdir.y;
-//		 tangents[i0 * 3 + 2] += sdir.z;
-//		 tangents[i1 * 3 + 0] += sdir.x;
-//		 tangents[i1 * 3 + 1] += sdir.y;
-//		 tangents[i1 * 3 + 2] += sdir.z;
-//		 tangents[i2 * 3 + 0] += sdir.x;
-//		 tangents[i2 * 3 + 1] += sdir.y;
-//		 tangents[i2 * 3 + 2] += sdir.z;
-//		
-//		 bitangents[i0 * 3 + 0] += tdir.x;
-//		 bitangents[i0 * 3 + 1] += tdir.y;
-//		 bitangents[i0 * 3 + 2] += tdir.z;
-//		 bitangents[i1 * 3 + 0] += tdir.x;
-//		 bitangents[i1 * 3+ 1] += tdir.y;
-//		 bitangents[i1 * 3+ 2] += tdir.z;
-//		 bitangents[i2 * 3+ 0] += tdir.x;
-//		 bitangents[i2 * 3+ 1] += tdir.y;
-//		 bitangents[i2 * 3+ 2] += tdir.z;
-//		 }
-
-		// for (long a = 0; a < vertexCount; a++)
-		// {
-		// const Vector3D& n = normal[a];
-		// const Vector3D& t = tan1[a];
-		//
-		// // Gram-Schmidt orthogonalize
-		// tangent[a] = (t - n * Dot(n, t)).Normalize();
-		//
-		// // Calculate handedness
-		// tangent[a].w = (Dot(Cross(n, t), tan2[a]) < 0.0F) ? -1.0F : 1.0F;
-		// }
-		//
-		// delete[] tan1;
-		// }
-
-		// for(int i = 0; i < indices.length; i += 3) {
-		// int i0 = indices[i + 0];
-		// int i1 = indices[i + 1];
-		// int i2 = indices[i + 2];
-		//
-		// Vector3f vertex0 = new Vector3f(positions[i0 + 0], positions[i0 + 1],
-		// positions[i0 + 2]);
-		// Vector3f vertex1 = new Vector3f(positions[i1 + 0], positions[i1 + 1],
-		// positions[i1 + 2]);
-		// Vector3f vertex2 = new Vector3f(positions[i2 + 0], positions[i2 + 1],
-		// positions[i2 + 2]);
-		//
-		// Vector3f a = new Vector3f();
-		// vertex1.sub(vertex0, a);
-		// Vector3f b = new Vector3f();
-		// vertex2.sub(vertex0, b);
-		// Vector3f normal = new Vector3f();
-		// a.cross(b, normal);
-		//
-		// Vector3f deltaPos = vertex0.equals(vertex1) ? b : a;
-		//
-		// Vector2f uv0 = new Vector2f(texCoords[i0 + 0], texCoords[i0 + 1]);
-		// Vector2f uv1 = new Vector2f(texCoords[i1 + 0], texCoords[i1 + 1]);
-		// Vector2f uv2 = new Vector2f(texCoords[i2 + 0], texCoords[i2 + 1]);
-		//
-		// Vector2f deltaUV1 = new Vector2f();
-		// uv1.sub(uv0, deltaUV1);
-		// Vector2f deltaUV2 = new Vector2f();
-		// uv2.sub(uv0, deltaUV2);
-		//
-		// Vector3f tan = new Vector3f(); // tangents
-		// Vector3f bin = new Vector3f(); // binormal
-		//
-		// // avoid divion with 0
-		// if(deltaUV1.x != 0.0f) {
-		// deltaPos.div(deltaUV1.x, tan);
-		// } else {
-		// deltaPos.div(1.0f, tan);
-		// }
-		//
-		// Vector3f c = new Vector3f();
-		// normal.mul(normal.dot(tan), c);
-		// tan.sub(c).normalize();
-		//
-		// tan.cross(normal, bin);
-		// bin.normalize();
-		//
-		// // write into array - for each vertex of the face the same value
-		// tangents[i0 + 0] = tan.x;
-		// tangents[i0 + 1] = tan.y;
-		// tangents[i0 + 2] = tan.z;
-		//
-		// tangents[i1 + 0] = tan.x;
-		// tangents[i1 + 1] = tan.y;
-		// tangents[i1 + 2] = tan.z;
-		//
-		// tangents[i2 + 0] = tan.x;
-		// tangents[i2 + 1] = tan.y;
-		// tangents[i2 + 2] = tan.z;
-		//
-		// binormals[i0 + 0] = bin.x;
-		// binormals[i0 + 1] = bin.y;
-		// binormals[i0 + 2] = bin.z;
-		//
-		// binormals[i1 + 0] = bin.x;
-		// binormals[i1 + 1] = bin.y;
-		// binormals[i1 + 2] = bin.z;
-		//
-		// binormals[i2 + 0] = bin.x;
-		// binormals[i2 + 1] = bin.y;
-		// binormals[i2 + 2] = bin.z;
-		// }
-//		List<Vector3f> vertexList = new ArrayList<>();
-//		List<Vector2f> uvList = new ArrayList<>();
-//		List<Vector3f> normalList = new ArrayList<>();
-//		List<Vector3f> tangentList = new ArrayList<>();
-//		List<Vector3f> bitangentList = new ArrayList<>();
-
-		for (int i = 0; i < indices.length; i += 3) {
-			int i0 = indices[i + 0];
-			int i1 = indices[i + 1];
-			int i2 = indices[i + 2];
-			
-			Vector3f v0 = new Vector3f(positions[i0 * 3 + 0], positions[i0 * 3 + 1], positions[i0 * 3 + 2]);
-			Vector3f v1 = new Vector3f(positions[i1 * 3 + 0], positions[i1 * 3 + 1], positions[i1 * 3 + 2]);
-			Vector3f v2 = new Vector3f(positions[i2 * 3 + 0], positions[i2 * 3 + 1], positions[i2 * 3 + 2]);
-			
-			Vector2f uv0 = new Vector2f(texCoords[i0 * 2 + 0], texCoords[i0 * 2 + 1]);
-			Vector2f uv1 = new Vector2f(texCoords[i1 * 2 + 0], texCoords[i1 * 2 + 1]);
-			Vector2f uv2 = new Vector2f(texCoords[i2 * 2 + 0], texCoords[i2 * 2 + 1]);
-			
-			Vector3f n0 = new Vector3f(normals[i0 * 3 + 0], normals[i0 * 3 + 1], normals[i0 * 3 + 2]);
-			Vector3f n1 = new Vector3f(normals[i1 * 3 + 0], normals[i1 * 3 + 1], normals[i1 * 3 + 2]);
-			Vector3f n2 = new Vector3f(normals[i2 * 3 + 0], normals[i2 * 3 + 1], normals[i2 * 3 + 2]);
-			
-			Vector3f t0 = new Vector3f();
-			Vector3f t1 = new Vector3f();
-			Vector3f t2 = new Vector3f();
-			
-			Vector3f b0 = new Vector3f();
-			Vector3f b1 = new Vector3f();
-			Vector3f b2 = new Vector3f();
-			
-			Vector3f deltaPos1 = new Vector3f();
-			v1.sub(v0, deltaPos1);
-			Vector3f deltaPos2 = new Vector3f();
-			v2.sub(v0, deltaPos2);
-			
-			Vector2f deltaUV1 = new Vector2f();
-			uv1.sub(uv0, deltaUV1);
-			Vector2f deltaUV2 = new Vector2f();
-			uv2.sub(uv0, deltaUV2);
-			
-			float r = 1.0f / (deltaUV1.x * deltaUV2.y - deltaUV1.y * deltaUV2.x);
-			Vector3f a = new Vector3f();
-			deltaPos1.mul(deltaUV2.y, a);
-			Vector3f b = new Vector3f();
-			deltaPos2.mul(deltaUV1.y, b);
-			Vector3f c = new Vector3f();
-			a.sub(b, c);
-			Vector3f tangent = new Vector3f();
-			c.mul(r, tangent);
-			Vector3f d = new Vector3f();
-			deltaPos2.mul(deltaUV1.x, d);
-			Vector3f e = new Vector3f();
-			deltaPos1.mul(deltaUV2.x, e);
-			Vector3f f = new Vector3f();
-			d.sub(e, f);
-			Vector3f bitangent = new Vector3f();
-			f.mul(r, bitangent);
-			
-			t0 = magic(n0, tangent, bitangent);
-			t1 = magic(n1, tangent, bitangent);
-			t2 = magic(n2, tangent, bitangent);
-			
-			tangents[i0 * 3 + 0] = t0.x;
-			tangents[i0 * 3 + 1] = t0.y;
-			tangents[i0 * 3 + 2] = t0.z;
-			tangents[i1 * 3 + 0] = t1.x;
-			tangents[i1 * 3 + 1] = t1.y;
-			tangents[i1 * 3 + 2] = t1.z;
-			tangents[i2 * 3 + 0] = t2.x;
-			tangents[i2 * 3 + 1] = t2.y;
-			tangents[i2 * 3 + 2] = t2.z;
-			
-			n0.cross(t0, b0); 
-			n1.cross(t1, b1);
-			n2.cross(t2, b2);
-			
-			bitangents[i0 * 3 + 0] = bitangent.x;
-			bitangents[i0 * 3 + 1] = bitangent.y;
-			bitangents[i0 * 3 + 2] = bitangent.z;
-			bitangents[i1 * 3 + 0] = bitangent.x;
-			bitangents[i1 * 3 + 1] = bitangent.y;
-			bitangents[i1 * 3 + 2] = bitangent.z;
-			bitangents[i2 * 3 + 0] = bitangent.x;
-			bitangents[i2 * 3 + 1] = bitangent.y;
-			bitangents[i2 * 3 + 2] = bitangent.z;
+	/**
+	 * Creates a mesh from a {@link MeshCache} entry. The buffers are uploaded as they are, so memory mapped cache
+	 * files go straight to the driver without an intermediate copy.
+	 */
+	public Mesh(MeshCache.Entry entry) {
+		this(entry.getVertices(), entry.getIndices(), entry.getIndexSize(), entry.getLodIndexCounts(),
+				entry.getLodErrors(), entry.getVertexLayout(),
+				new Vector3f(entry.getBounds()[0], entry.getBounds()[1], entry.getBounds()[2]),
+				new Vector3f(entry.getBounds()[3], entry.getBounds()[4], entry.getBounds()[5]), entry.getBounds()[6]);
+	}
+
+	private Mesh(ByteBuffer vertices, ByteBuffer indices, int indexSize, int[] lodIndexCounts, float[] lodErrors,
+			VertexLayout layout, Vector3f min, Vector3f max, float radius) {
+		id = nextId++;
+		iMaterial = new Material();
+		vertexCount = lodIndexCounts[0];
+		indexType = indexSize == 2 ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+		vertexLayout = layout;
+		this.lodIndexCounts = lodIndexCounts;
+		this.lodErrors = lodErrors;
+		lodOffsets = new long[lodIndexCounts.length];
+		for (int i = 1; i < lodOffsets.length; i++) {
+			lodOffsets[i] = lodOffsets[i - 1] + (long) lodIndexCounts[i - 1] * indexSize;
+		}
+		vboIdList = new ArrayList<>();
+		this.min = new Vector3f(min);
+		this.max = new Vector3f(max);
+		this.radius = radius;
+
+		// Create the VAO and bind to it
+		vaoId = glGenVertexArrays();
+		glBindVertexArray(vaoId);
+
+		// Single interleaved VBO holding all vertex attributes
+		int vboId = glGenBuffers();
+		vboIdList.add(vboId);
+		glBindBuffer(GL_ARRAY_BUFFER, vboId);
+		glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+		int stride = layout.getStride();
+		glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, 0); // Position
+		if (layout == VertexLayout.PACKED) {
+			glVertexAttribPointer(1, 2, GL_HALF_FLOAT, false, stride, 12); // Texture coordinates
+			glVertexAttribPointer(2, 4, GL_INT_2_10_10_10_REV, true, stride, 16); // Normal
+			glVertexAttribPointer(3, 4, GL_INT_2_10_10_10_REV, true, stride, 20); // Tangent and handedness
+		} else {
+			glVertexAttribPointer(1, 2, GL_FLOAT, false, stride, 12); // Texture coordinates
+			glVertexAttribPointer(2, 3, GL_FLOAT, false, stride, 20); // Normal
+			glVertexAttribPointer(3, 4, GL_FLOAT, false, stride, 32); // Tangent and handedness
 		}
 
-//		for (int i = 0; i < vertexList.size(); i += 3) {
-//			// Shortcuts for vertices
-//			Vector3f v0 = vertexList.get(i + 0);
-//			Vector3f v1 = vertexList.get(i + 1);
-//			Vector3f v2 = vertexList.get(i + 2);
-//
-//			// Shortcuts for UVs
-//			Vector2f uv0 = uvList.get(i + 0);
-//			Vector2f uv1 = uvList.get(i + 1);
-//			Vector2f uv2 = uvList.get(i + 2);
-//
-//			// Edges of the triangle : position delta
-//			Vector3f deltaPos1 = new Vector3f();
-//			v1.sub(v0, deltaPos1);
-//			Vector3f deltaPos2 = new Vector3f();
-//			v2.sub(v0, deltaPos2);
-//
-//			// UV delta
-//			Vector2f deltaUV1 = new Vector2f();
-//			uv1.sub(uv0, deltaUV1);
-//			Vector2f deltaUV2 = new Vector2f();
-//			uv2.sub(uv0, deltaUV2);
-//
-//			float r = 1.0f / (deltaUV1.x * deltaUV2.y - deltaUV1.y * deltaUV2.x);
-//			Vector3f a = new Vector3f();
-//			deltaPos1.mul(deltaUV2.y, a);
-//			Vector3f b = new Vector3f();
-//			deltaPos2.mul(deltaUV1.y, b);
-//			Vector3f c = new Vector3f();
-//			a.sub(b, c);
-//			Vector3f tangent = new Vector3f();
-//			c.mul(r, tangent);
-//			Vector3f d = new Vector3f();
-//			deltaPos2.mul(deltaUV1.x, d);
-//			Vector3f e = new Vector3f();
-//			deltaPos1.mul(deltaUV2.x, e);
-//			Vector3f f = new Vector3f();
-//			d.sub(e, f);
-//			Vector3f bitangent = new Vector3f();
-//			f.mul(r, bitangent);
-//
-//			Vector3f n0 = normalList.get(i + 0);
-//			Vector3f n1 = normalList.get(i + 1);
-//			Vector3f n2 = normalList.get(i + 2);
-//			
-//			tangentList.add(magic(n0, tangent, bitangent));
-//			tangentList.add(magic(n1, tangent, bitangent));
-//			tangentList.add(magic(n2, tangent, bitangent));
-//			
-//			bitangentList.add(bitangent);
-//			bitangentList.add(bitangent);
-//			bitangentList.add(bitangent);
-//		}
-
-		
+		// Index VBO
+		vboId = glGenBuffers();
+		vboIdList.add(vboId);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+
+		// Unbind the VBO
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+		// Unbind the VAO
+		glBindVertexArray(0);
+	}
+
+	private static ByteBuffer allocVertices(MeshData data) {
+		ByteBuffer buffer = MemoryUtil.memAlloc(data.getVertexCount() * data.getVertexLayout().getStride());
+		data.writeVertices(buffer);
+		buffer.flip();
+		return buffer;
 	}
 
-	private static Vector3f magic(Vector3f n, Vector3f t, Vector3f b) {
-		Vector3f result = new Vector3f();
-		
-		// Gram-Schmidt orthogonalize
-		Vector3f a = new Vector3f();
-		n.mul(n.dot(t), a);
-		t.sub(a, result);
-		result.normalize();
-
-		// Calculate handedness
-		a = new Vector3f();
-		n.cross(result, a);
-		if (a.dot(b) < 0.0f) {
-			return result.mul(-1.0f);
+	private static ByteBuffer allocIndices(MeshData data) {
+		ByteBuffer buffer = MemoryUtil.memAlloc(data.getTotalIndexCount() * data.getIndexSize());
+		data.writeIndices(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int[] lodIndexCounts(MeshData data) {
+		int[] counts = new int[data.getLodCount()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = data.getLodIndices(i).length;
+		}
+		return counts;
+	}
+
+	private static float[] lodErrors(MeshData data) {
+		float[] errors = new float[data.getLodCount()];
+		for (int i = 0; i < errors.length; i++) {
+			errors[i] = data.getLodError(i);
 		}
-		return result;
+		return errors;
 	}
 
 	public int getVaoId() {
@@ -462,6 +196,57 @@ public class Mesh {
 		return vertexCount;
 	}
 
+	public VertexLayout getVertexLayout() {
+		return vertexLayout;
+	}
+
+	/**
+	 * Overwrites the vertices from firstVertex on with the vertices of data, encoded in this mesh's layout. Only
+	 * the changed byte range is uploaded. data must have tangents.
+	 */
+	public void updateVertices(int firstVertex, MeshData data) {
+		ByteBuffer buffer = MemoryUtil.memAlloc(data.getVertexCount() * vertexLayout.getStride());
+		try {
+			VertexPacker.write(data, vertexLayout, buffer);
+			buffer.flip();
+			glBindBuffer(GL_ARRAY_BUFFER, vboIdList.get(0));
+			glBufferSubData(GL_ARRAY_BUFFER, (long) firstVertex * vertexLayout.getStride(), buffer);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+		} finally {
+			MemoryUtil.memFree(buffer);
+		}
+	}
+
+	public int getLodCount() {
+		return lodIndexCounts.length;
+	}
+
+	/**
+	 * Simplification error of a level of detail in model units, 0 for the full mesh.
+	 */
+	public float getLodError(int level) {
+		return lodErrors[level];
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Vector3f getMin() {
+		return min;
+	}
+
+	public Vector3f getMax() {
+		return max;
+	}
+
+	/**
+	 * Radius of the bounding sphere around the center of {@link #getMin()} and {@link #getMax()}
+	 */
+	public float getRadius() {
+		return radius;
+	}
+
 	public IMaterial getIMaterial() {
 		return iMaterial;
 	}
@@ -472,8 +257,21 @@ public class Mesh {
 	}
 
 	public void initRender() {
-		if (iMaterial.isMultilayered()) {
-			MultilayeredMaterial multilayeredMaterial = (MultilayeredMaterial) iMaterial;
+		bindTextures(iMaterial);
+		initGeometry();
+	}
+
+	public void endRender() {
+		endGeometry();
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Binds the textures of a material to the texture units the shaders expect.
+	 */
+	public static void bindTextures(IMaterial material) {
+		if (material.isMultilayered()) {
+			MultilayeredMaterial multilayeredMaterial = (MultilayeredMaterial) material;
 			Texture[] diffuseMaps = multilayeredMaterial.getDiffuseMaps();
 			Texture[] normalMaps = multilayeredMaterial.getNormalMaps();
 			for (int i = 0; i < MultilayeredMaterial.MAX_LAYERS; i++) {
@@ -503,15 +301,15 @@ public class Mesh {
 				glBindTexture(GL_TEXTURE_2D, rgbaMap.getId());
 			}
 		} else {
-			Material material = (Material) iMaterial;
-			Texture diffuseMap = material.getDiffuseMap();
+			Material singleMaterial = (Material) material;
+			Texture diffuseMap = singleMaterial.getDiffuseMap();
 			if (diffuseMap != null) {
 				// Activate texture bank
 				glActiveTexture(GL_TEXTURE0 + 0);
 				// Bind the texture
 				glBindTexture(GL_TEXTURE_2D, diffuseMap.getId());
 			}
-			Texture normalMap = material.getNormalMap();
+			Texture normalMap = singleMaterial.getNormalMap();
 			if (normalMap != null) {
 				// Activate texture bank
 				glActiveTexture(GL_TEXTURE0 + 1);
@@ -520,47 +318,96 @@ public class Mesh {
 			}
 
 		}
+	}
+
+	private void initGeometry() {
 		// Bind the VAO
 		glBindVertexArray(vaoId);
 		glEnableVertexAttribArray(0);
 		glEnableVertexAttribArray(1);
 		glEnableVertexAttribArray(2);
 		glEnableVertexAttribArray(3);
-		glEnableVertexAttribArray(4);
 	}
 
-	public void endRender() {
+	private void endGeometry() {
 		// Restore state
 		glDisableVertexAttribArray(0);
 		glDisableVertexAttribArray(1);
 		glDisableVertexAttribArray(2);
 		glDisableVertexAttribArray(3);
-		glDisableVertexAttribArray(4);
 		glBindVertexArray(0);
-		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Draws the full mesh without touching any textures, for meshes that share a material bound by the caller
+	 * with {@link #bindTextures(IMaterial)}.
+	 */
+	public void renderGeometry() {
+		initGeometry();
+		glDrawElements(GL_TRIANGLES, vertexCount, indexType, 0);
+		endGeometry();
 	}
 
 	public void render() {
 		initRender();
 
 		// Draw the mesh
-		glDrawElements(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0);
+		glDrawElements(GL_TRIANGLES, vertexCount, indexType, 0);
 
 		endRender();
 	}
 
-	public void renderList(List<GameItem> gameItems, Consumer<GameItem> consumer) {
-		initRender();
+	/**
+	 * Draws all instances with one glDrawElementsInstanced per level of detail, without touching any textures; the
+	 * caller binds the material with {@link #bindTextures(IMaterial)}. The model matrices are uploaded in one buffer
+	 * and read as three rows from vertex attributes {@link #INSTANCE_ATTRIBUTE} on, advancing per instance; the
+	 * shader must build the model matrix from them.
+	 */
+	public void renderGeometryInstanced(InstanceBuffer instances) {
+		int count = instances.getCount();
+		if (count == 0) {
+			return;
+		}
+		initGeometry();
 
-		for (GameItem gameItem : gameItems) {
-			// Set up date required by gameItem
-			consumer.accept(gameItem);
+		// Orphan last draw's data, then append the levels one after the other
+		if (instanceVboId == 0) {
+			instanceVboId = glGenBuffers();
+			vboIdList.add(instanceVboId);
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+		glBufferData(GL_ARRAY_BUFFER, (long) count * InstanceBuffer.INSTANCE_SIZE, GL_STREAM_DRAW);
+		long offset = 0;
+		for (int level = 0; level < lodIndexCounts.length; level++) {
+			if (instances.getCount(level) > 0) {
+				glBufferSubData(GL_ARRAY_BUFFER, offset, instances.getBuffer(level));
+				offset += (long) instances.getCount(level) * InstanceBuffer.INSTANCE_SIZE;
+			}
+		}
+		for (int row = 0; row < INSTANCE_ROWS; row++) {
+			glEnableVertexAttribArray(INSTANCE_ATTRIBUTE + row);
+			glVertexAttribDivisor(INSTANCE_ATTRIBUTE + row, 1);
+		}
 
-			// Render this game item
-			glDrawElements(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0);
+		// OpenGL 3.3 has no base instance, the attributes are pointed at each level's instances instead
+		offset = 0;
+		for (int level = 0; level < lodIndexCounts.length; level++) {
+			int levelCount = instances.getCount(level);
+			if (levelCount > 0) {
+				for (int row = 0; row < INSTANCE_ROWS; row++) {
+					glVertexAttribPointer(INSTANCE_ATTRIBUTE + row, 4, GL_FLOAT, false, InstanceBuffer.INSTANCE_SIZE,
+							offset + row * 16);
+				}
+				glDrawElementsInstanced(GL_TRIANGLES, lodIndexCounts[level], indexType, lodOffsets[level], levelCount);
+				offset += (long) levelCount * InstanceBuffer.INSTANCE_SIZE;
+			}
 		}
 
-		endRender();
+		for (int row = 0; row < INSTANCE_ROWS; row++) {
+			glDisableVertexAttribArray(INSTANCE_ATTRIBUTE + row);
+		}
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		endGeometry();
 	}
 
 	public void cleanUp() {
@@ -571,8 +418,16 @@ public class Mesh {
 		vboIdList.forEach(vboId -> glDeleteBuffers(vboId));
 
 		// Delete the textures
-		if (iMaterial.isMultilayered()) {
-			MultilayeredMaterial multilayeredMaterial = (MultilayeredMaterial) iMaterial;
+		cleanUpTextures(iMaterial);
+
+		// Delete the VAO
+		glBindVertexArray(0);
+		glDeleteVertexArrays(vaoId);
+	}
+
+	public static void cleanUpTextures(IMaterial material) {
+		if (material.isMultilayered()) {
+			MultilayeredMaterial multilayeredMaterial = (MultilayeredMaterial) material;
 			Texture[] diffuseMaps = multilayeredMaterial.getDiffuseMaps();
 			Texture[] normalMaps = multilayeredMaterial.getNormalMaps();
 			for (int i = 0; i < MultilayeredMaterial.MAX_LAYERS; i++) {
@@ -595,19 +450,15 @@ public class Mesh {
 				rgbaMap.cleanup();
 			}
 		} else {
-			Material material = (Material) iMaterial;
-			Texture diffuseMap = material.getDiffuseMap();
+			Material singleMaterial = (Material) material;
+			Texture diffuseMap = singleMaterial.getDiffuseMap();
 			if (diffuseMap != null) {
 				diffuseMap.cleanup();
 			}
-			Texture normalMap = material.getNormalMap();
+			Texture normalMap = singleMaterial.getNormalMap();
 			if (normalMap != null) {
 				normalMap.cleanup();
 			}
 		}
-
-		// Delete the VAO
-		glBindVertexArray(0);
-		glDeleteVertexArrays(vaoId);
 	}
 }
@@ -0,0 +1,301 @@
+package at.befri.graph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.joml.Vector3f;
+
+/**
+ * Binary cache for processed meshes (.emesh files). A file holds the final interleaved vertex data and the index
+ * data exactly as they are uploaded to the GPU, so a warm load is a memory map plus one glBufferData per buffer.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ * int    magic "EMSH"
+ * int    version
+ * long   hash of the source file
+ * int    vertex count
+ * int    index count of all levels of detail
+ * int    vertex stride in bytes
+ * float  bounds min x, y, z, max x, y, z, radius of the bounding sphere around their center
+ * int    vertex layout, see {@link VertexLayout}
+ * int    index size in bytes, 2 or 4
+ * int    level of detail count
+ * ...    per level of detail: int index count, float error
+ * byte[] vertex data, vertex count * stride
+ * byte[] index data, index count * index size
+ * </pre>
+ */
+public class MeshCache {
+	public static final int VERSION = 6;
+	public static final String EXTENSION = ".emesh";
+
+	private static final int MAGIC = 0x48534D45; // "EMSH" read as a little endian int
+	private static final int HEADER_SIZE = 68;
+	private static final int LOD_ENTRY_SIZE = 8;
+
+	private static Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "enjine", "meshcache");
+
+	private MeshCache() {
+	}
+
+	public static Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets where cache files are kept, null disables the cache.
+	 */
+	public static void setDirectory(Path directory) {
+		MeshCache.directory = directory;
+	}
+
+	/**
+	 * Hashes a source file, the hash is stored in the header so that edited sources invalidate their cache file.
+	 */
+	public static long hash(ByteBuffer source) {
+		CRC32 crc = new CRC32();
+		crc.update(source.duplicate());
+		return ((long) source.remaining() << 32) | crc.getValue();
+	}
+
+	/**
+	 * Returns a memory mapped cache file matching the source hash, or null if there is no up to date one.
+	 */
+	public static Entry load(String name, long sourceHash) {
+		if (directory == null) {
+			return null;
+		}
+		Path path = pathFor(name);
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (fc.size() < HEADER_SIZE) {
+				return null;
+			}
+			ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != sourceHash) {
+				return null;
+			}
+			int vertexCount = buffer.getInt(16);
+			int indexCount = buffer.getInt(20);
+			int stride = buffer.getInt(24);
+			int indexSize = buffer.getInt(60);
+			int lodCount = buffer.getInt(64);
+			long vertexBytes = (long) vertexCount * stride;
+			long indexBytes = (long) indexCount * indexSize;
+			if (lodCount < 1 || lodCount > MeshData.MAX_LOD_LEVELS) {
+				return null;
+			}
+			int dataOffset = HEADER_SIZE + lodCount * LOD_ENTRY_SIZE;
+			int layoutOrdinal = buffer.getInt(56);
+			if (layoutOrdinal < 0 || layoutOrdinal >= VertexLayout.values().length) {
+				return null;
+			}
+			VertexLayout layout = VertexLayout.values()[layoutOrdinal];
+			if (stride != layout.getStride() || (indexSize != 2 && indexSize != 4) || dataOffset + vertexBytes + indexBytes != fc.size()) {
+				return null;
+			}
+			int[] lodIndexCounts = new int[lodCount];
+			float[] lodErrors = new float[lodCount];
+			long lodIndexTotal = 0;
+			for (int i = 0; i < lodCount; i++) {
+				lodIndexCounts[i] = buffer.getInt(HEADER_SIZE + i * LOD_ENTRY_SIZE);
+				lodErrors[i] = buffer.getFloat(HEADER_SIZE + i * LOD_ENTRY_SIZE + 4);
+				// Every level is smaller than the one before, all of them fit into the index data
+				if (lodIndexCounts[i] < 0 || (i > 0 && lodIndexCounts[i] >= lodIndexCounts[i - 1])) {
+					return null;
+				}
+				lodIndexTotal += lodIndexCounts[i];
+			}
+			if (lodIndexTotal > indexCount) {
+				return null;
+			}
+			float[] bounds = new float[7];
+			for (int i = 0; i < 7; i++) {
+				bounds[i] = buffer.getFloat(28 + i * 4);
+			}
+			ByteBuffer vertices = slice(buffer, dataOffset, (int) vertexBytes);
+			ByteBuffer indices = slice(buffer, dataOffset + (int) vertexBytes, (int) indexBytes);
+			return new Entry(vertices, indices, layout, indexSize, vertexCount, lodIndexCounts, lodErrors, bounds);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a cache file. Failing to write the cache is not fatal, the mesh just gets rebuilt next time.
+	 */
+	public static void store(String name, long sourceHash, Entry entry) {
+		if (directory == null) {
+			return;
+		}
+		Path path = pathFor(name);
+		try {
+			Files.createDirectories(directory);
+			int lodCount = entry.getLodIndexCounts().length;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + lodCount * LOD_ENTRY_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(sourceHash);
+			header.putInt(entry.getVertexCount());
+			header.putInt(entry.getIndexCount());
+			header.putInt(entry.getVertexLayout().getStride());
+			for (float bound : entry.getBounds()) {
+				header.putFloat(bound);
+			}
+			header.putInt(entry.getVertexLayout().ordinal());
+			header.putInt(entry.getIndexSize());
+			header.putInt(lodCount);
+			header.position(HEADER_SIZE);
+			for (int i = 0; i < lodCount; i++) {
+				header.putInt(entry.getLodIndexCounts()[i]);
+				header.putFloat(entry.getLodErrors()[i]);
+			}
+			header.rewind();
+
+			// Write to a temporary file first so a crash never leaves a truncated cache behind
+			Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				writeFully(fc, header);
+				writeFully(fc, entry.getVertices().duplicate());
+				writeFully(fc, entry.getIndices().duplicate());
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.err.println("Warning could not write mesh cache " + path + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Interleaves mesh data into the cache layout. The returned buffers are direct and little endian, ready to be
+	 * written to a cache file or handed to OpenGL.
+	 */
+	public static Entry interleave(MeshData data) {
+		VertexLayout layout = data.getVertexLayout();
+		ByteBuffer vertices = ByteBuffer.allocateDirect(data.getVertexCount() * layout.getStride())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		data.writeVertices(vertices);
+		vertices.flip();
+		ByteBuffer indices = ByteBuffer.allocateDirect(data.getTotalIndexCount() * data.getIndexSize())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		data.writeIndices(indices);
+		indices.flip();
+		Vector3f min = data.getMin();
+		Vector3f max = data.getMax();
+		float[] bounds = { min.x, min.y, min.z, max.x, max.y, max.z, data.getRadius() };
+		int[] lodIndexCounts = new int[data.getLodCount()];
+		float[] lodErrors = new float[data.getLodCount()];
+		for (int i = 0; i < lodIndexCounts.length; i++) {
+			lodIndexCounts[i] = data.getLodIndices(i).length;
+			lodErrors[i] = data.getLodError(i);
+		}
+		return new Entry(vertices, indices, layout, data.getIndexSize(), data.getVertexCount(), lodIndexCounts,
+				lodErrors, bounds);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.position(offset);
+		dup.limit(offset + length);
+		return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void writeFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			fc.write(buffer);
+		}
+	}
+
+	private static Path pathFor(String name) {
+		return directory.resolve(name.replaceAll("[^A-Za-z0-9._-]", "_") + EXTENSION);
+	}
+
+	public static class Entry {
+		private final ByteBuffer vertices;
+		private final ByteBuffer indices;
+		private final VertexLayout vertexLayout;
+		private final int indexSize;
+		private final int vertexCount;
+		private final int indexCount;
+		private final int[] lodIndexCounts;
+		private final float[] lodErrors;
+		private final float[] bounds;
+
+		public Entry(ByteBuffer vertices, ByteBuffer indices, VertexLayout vertexLayout, int indexSize,
+				int vertexCount, int[] lodIndexCounts, float[] lodErrors, float[] bounds) {
+			this.vertices = vertices;
+			this.indices = indices;
+			this.vertexLayout = vertexLayout;
+			this.indexSize = indexSize;
+			this.vertexCount = vertexCount;
+			this.lodIndexCounts = lodIndexCounts;
+			this.lodErrors = lodErrors;
+			int count = 0;
+			for (int lodIndexCount : lodIndexCounts) {
+				count += lodIndexCount;
+			}
+			indexCount = count;
+			this.bounds = bounds;
+		}
+
+		public ByteBuffer getVertices() {
+			return vertices;
+		}
+
+		public ByteBuffer getIndices() {
+			return indices;
+		}
+
+		public VertexLayout getVertexLayout() {
+			return vertexLayout;
+		}
+
+		/**
+		 * Bytes per index, 2 or 4
+		 */
+		public int getIndexSize() {
+			return indexSize;
+		}
+
+		public int getVertexCount() {
+			return vertexCount;
+		}
+
+		/**
+		 * Number of indices of all levels of detail together
+		 */
+		public int getIndexCount() {
+			return indexCount;
+		}
+
+		/**
+		 * Index count per level of detail, the levels are stored one after the other
+		 */
+		public int[] getLodIndexCounts() {
+			return lodIndexCounts;
+		}
+
+		public float[] getLodErrors() {
+			return lodErrors;
+		}
+
+		/**
+		 * min x, y, z followed by max x, y, z
+		 */
+		public float[] getBounds() {
+			return bounds;
+		}
+	}
+}
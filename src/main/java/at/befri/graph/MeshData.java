@@ -0,0 +1,309 @@
+package at.befri.graph;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.joml.Vector3f;
+
+/**
+ * CPU side geometry of a mesh: positions, texture coordinates, normals, tangents, indices and bounds. Creating
+ * and processing MeshData does not touch OpenGL, so it can happen on any thread; {@link Mesh#create(MeshData)}
+ * does the upload on the GL thread.
+ */
+public class MeshData {
+	/**
+	 * Meshes with fewer vertices use 16 bit indices
+	 */
+	public static final int MAX_SHORT_INDEX_VERTICES = 1 << 16;
+	public static final int MAX_LOD_LEVELS = 8;
+
+	/**
+	 * Levels with fewer triangles are not worth an extra draw range
+	 */
+	private static final int MIN_LOD_TRIANGLES = 16;
+	/**
+	 * Largest simplification error, relative to the diagonal of the bounds
+	 */
+	private static final float MAX_RELATIVE_LOD_ERROR = 0.1f;
+
+	private final float[] positions;
+	private final float[] texCoords;
+	private final float[] normals;
+	private final int[] indices;
+	/**
+	 * x, y, z and handedness (+1 or -1) per vertex
+	 */
+	private float[] tangents;
+	private final Vector3f min;
+	private final Vector3f max;
+	private final float radius;
+	private VertexLayout vertexLayout;
+	/**
+	 * Index lists per level of detail, level 0 is the full mesh. All levels share the vertices.
+	 */
+	private int[][] lodIndices;
+	/**
+	 * Simplification error per level of detail in model units
+	 */
+	private float[] lodErrors;
+
+	public MeshData(float[] positions, float[] texCoords, float[] normals, int[] indices) {
+		this.positions = positions;
+		this.texCoords = texCoords;
+		this.normals = normals;
+		this.indices = indices;
+		lodIndices = new int[][] { indices };
+		lodErrors = new float[] { 0 };
+		min = new Vector3f();
+		max = new Vector3f();
+		computeBounds(positions, min, max);
+		radius = computeRadius(positions, min, max);
+	}
+
+	public float[] getPositions() {
+		return positions;
+	}
+
+	public float[] getTexCoords() {
+		return texCoords;
+	}
+
+	public float[] getNormals() {
+		return normals;
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public float[] getTangents() {
+		return tangents;
+	}
+
+	/**
+	 * Sets tangents known from the way the geometry was generated, in the layout of {@link #computeTangents()}.
+	 */
+	public MeshData setTangents(float[] tangents) {
+		this.tangents = tangents;
+		return this;
+	}
+
+	public boolean hasTangents() {
+		return tangents != null;
+	}
+
+	public int getVertexCount() {
+		return positions.length / 3;
+	}
+
+	public int getIndexCount() {
+		return indices.length;
+	}
+
+	public int getLodCount() {
+		return lodIndices.length;
+	}
+
+	public int[] getLodIndices(int level) {
+		return lodIndices[level];
+	}
+
+	public float getLodError(int level) {
+		return lodErrors[level];
+	}
+
+	/**
+	 * Number of indices of all levels of detail together
+	 */
+	public int getTotalIndexCount() {
+		int count = 0;
+		for (int[] levelIndices : lodIndices) {
+			count += levelIndices.length;
+		}
+		return count;
+	}
+
+	/**
+	 * Bytes per index: 2 if all vertices can be addressed with unsigned shorts, 4 otherwise.
+	 */
+	public int getIndexSize() {
+		return getVertexCount() < MAX_SHORT_INDEX_VERTICES ? 2 : 4;
+	}
+
+	public Vector3f getMin() {
+		return min;
+	}
+
+	public Vector3f getMax() {
+		return max;
+	}
+
+	/**
+	 * Radius of the bounding sphere around the center of the bounds
+	 */
+	public float getRadius() {
+		return radius;
+	}
+
+	/**
+	 * The layout the vertices are uploaded with. Unless set explicitly, the most compact suitable one is chosen.
+	 */
+	public VertexLayout getVertexLayout() {
+		if (vertexLayout == null) {
+			vertexLayout = VertexLayout.choose(this);
+		}
+		return vertexLayout;
+	}
+
+	public MeshData setVertexLayout(VertexLayout vertexLayout) {
+		this.vertexLayout = vertexLayout;
+		return this;
+	}
+
+	/**
+	 * Computes the per vertex tangents used for normal mapping, if not done yet. See {@link TangentSpace}.
+	 */
+	public MeshData computeTangents() {
+		if (tangents == null) {
+			float[] newTangents = new float[getVertexCount() * 4];
+			TangentSpace.compute(positions, texCoords, normals, indices, newTangents);
+			tangents = newTangents;
+		}
+		return this;
+	}
+
+	/**
+	 * Reorders the triangles for the post-transform vertex cache and the vertices in order of first use, see
+	 * {@link VertexCacheOptimizer}. The arrays are rearranged in place; if stats is not null, it is filled with the
+	 * cache efficiency before and after.
+	 */
+	public MeshData optimizeVertexCache(VertexCacheOptimizer.Stats stats) {
+		int vertexCount = getVertexCount();
+		if (stats != null) {
+			stats.setBefore(VertexCacheOptimizer.acmr(indices, vertexCount),
+					VertexCacheOptimizer.atvr(indices, vertexCount));
+		}
+
+		int[] optimized = VertexCacheOptimizer.optimizeTriangles(indices, vertexCount);
+		int[] remap = VertexCacheOptimizer.optimizeVertexFetch(optimized, vertexCount);
+		for (int i = 0; i < optimized.length; i++) {
+			indices[i] = remap[optimized[i]];
+		}
+		for (int level = 1; level < lodIndices.length; level++) {
+			int[] levelIndices = lodIndices[level];
+			for (int i = 0; i < levelIndices.length; i++) {
+				levelIndices[i] = remap[levelIndices[i]];
+			}
+		}
+		remapVertices(positions, 3, remap);
+		remapVertices(texCoords, 2, remap);
+		remapVertices(normals, 3, remap);
+		if (tangents != null) {
+			remapVertices(tangents, 4, remap);
+		}
+
+		if (stats != null) {
+			stats.setAfter(VertexCacheOptimizer.acmr(indices, vertexCount),
+					VertexCacheOptimizer.atvr(indices, vertexCount));
+		}
+		return this;
+	}
+
+	/**
+	 * Builds a chain of up to maxLevels levels of detail, each with about half the triangles of the one before,
+	 * using {@link MeshSimplifier}. Every level is simplified further from the one before and ordered for the vertex
+	 * cache.
+	 * The chain ends early when the mesh cannot be reduced any further without too much error.
+	 */
+	public MeshData generateLods(int maxLevels) {
+		int vertexCount = getVertexCount();
+		float maxError = MAX_RELATIVE_LOD_ERROR * max.distance(min);
+		int[][] newLodIndices = new int[maxLevels][];
+		float[] newLodErrors = new float[maxLevels];
+		newLodIndices[0] = indices;
+		int levels = 1;
+		MeshSimplifier simplifier = new MeshSimplifier(positions, indices);
+		while (levels < maxLevels) {
+			int[] previous = newLodIndices[levels - 1];
+			int target = previous.length / 6 * 3;
+			if (target < MIN_LOD_TRIANGLES * 3) {
+				break;
+			}
+			int[] simplified = simplifier.simplify(target, maxError);
+			if (simplified.length > previous.length * 0.9f) {
+				break;
+			}
+			newLodIndices[levels] = VertexCacheOptimizer.optimizeTriangles(simplified, vertexCount);
+			newLodErrors[levels] = simplifier.getError();
+			levels++;
+		}
+		lodIndices = Arrays.copyOf(newLodIndices, levels);
+		lodErrors = Arrays.copyOf(newLodErrors, levels);
+		return this;
+	}
+
+	/**
+	 * Writes the vertices in the interleaved {@link #getVertexLayout() layout} at the buffer's current position.
+	 * Tangents are computed first if necessary.
+	 */
+	public void writeVertices(ByteBuffer dest) {
+		computeTangents();
+		VertexPacker.write(this, getVertexLayout(), dest);
+	}
+
+	/**
+	 * Writes the indices of all levels of detail one after the other, with {@link #getIndexSize()} bytes each.
+	 */
+	public void writeIndices(ByteBuffer dest) {
+		boolean shortIndices = getIndexSize() == 2;
+		for (int[] levelIndices : lodIndices) {
+			for (int index : levelIndices) {
+				if (shortIndices) {
+					dest.putShort((short) index);
+				} else {
+					dest.putInt(index);
+				}
+			}
+		}
+	}
+
+	private static void remapVertices(float[] attribute, int size, int[] remap) {
+		float[] source = attribute.clone();
+		for (int v = 0; v < remap.length; v++) {
+			System.arraycopy(source, v * size, attribute, remap[v] * size, size);
+		}
+	}
+
+	private static float computeRadius(float[] positions, Vector3f min, Vector3f max) {
+		float centerX = (min.x + max.x) * 0.5f;
+		float centerY = (min.y + max.y) * 0.5f;
+		float centerZ = (min.z + max.z) * 0.5f;
+		float radiusSquared = 0;
+		for (int i = 0; i < positions.length; i += 3) {
+			float x = positions[i] - centerX;
+			float y = positions[i + 1] - centerY;
+			float z = positions[i + 2] - centerZ;
+			radiusSquared = Math.max(radiusSquared, x * x + y * y + z * z);
+		}
+		return (float) Math.sqrt(radiusSquared);
+	}
+
+	private static void computeBounds(float[] positions, Vector3f min, Vector3f max) {
+		if (positions.length == 0) {
+			return;
+		}
+		min.set(Float.POSITIVE_INFINITY);
+		max.set(Float.NEGATIVE_INFINITY);
+		for (int i = 0; i < positions.length; i += 3) {
+			float x = positions[i];
+			float y = positions[i + 1];
+			float z = positions[i + 2];
+			min.x = Math.min(min.x, x);
+			min.y = Math.min(min.y, y);
+			min.z = Math.min(min.z, z);
+			max.x = Math.max(max.x, x);
+			max.y = Math.max(max.y, y);
+			max.z = Math.max(max.z, z);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package at.befri.graph;
+
+import java.util.Arrays;
+
+import at.befri.engine.LongIntHashMap;
+
+/**
+ * Quadric error metric simplification (Garland and Heckbert) by edge collapse.
+ * <p>
+ * Only the index list is simplified: a collapse moves one vertex of an edge onto the other, so the result still
+ * references the original vertices and all levels of detail of a mesh can share one vertex buffer. Vertices on open
+ * edges are locked, which also keeps UV seams and hard edges in place since the welded vertices on either side of
+ * a seam are different vertices. Collapses that would flip a triangle are rejected.
+ * <p>
+ * The error of a collapse is the area weighted mean squared distance of the new position to the planes of the
+ * original triangles around both vertices; the reported error is its square root, a distance in model units.
+ */
+public class MeshSimplifier {
+	/**
+	 * Quadric coefficients a2, ab, ac, ad, b2, bc, bd, c2, cd, d2 and the summed area weight
+	 */
+	private static final int QUADRIC_SIZE = 11;
+
+	private final float[] positions;
+	private final int vertexCount;
+	private final double[] quadrics;
+	private final boolean[] locked;
+	private final int[] remap;
+	private final boolean[] touched;
+	private int[] current;
+	private int indexCount;
+	private double appliedCost;
+
+	public MeshSimplifier(float[] positions, int[] indices) {
+		this.positions = positions;
+		vertexCount = positions.length / 3;
+		quadrics = new double[vertexCount * QUADRIC_SIZE];
+		for (int i = 0; i < indices.length; i += 3) {
+			addTriangleQuadric(positions, indices[i], indices[i + 1], indices[i + 2], quadrics);
+		}
+		locked = findOpenEdgeVertices(indices, vertexCount);
+		remap = new int[vertexCount];
+		touched = new boolean[vertexCount];
+		current = indices.clone();
+		indexCount = current.length;
+	}
+
+	/**
+	 * Continues simplifying until the triangle list has at most targetIndexCount indices or no collapse with an
+	 * error below maxError is left. Calling this with decreasing targets yields a chain of levels of detail in one
+	 * run, every level being a simplification of the one before.
+	 *
+	 * @return the simplified indices, referencing the same vertices
+	 */
+	public int[] simplify(int targetIndexCount, float maxError) {
+		double maxCost = (double) maxError * maxError;
+		while (indexCount > targetIndexCount) {
+			int triangleCount = indexCount / 3;
+			int[][] adjacency = buildAdjacency(current, indexCount, vertexCount);
+			int[] offsets = adjacency[0];
+			int[] triangles = adjacency[1];
+
+			// Every interior edge is seen from two triangles in opposite directions, keep one of them
+			int[] from = new int[indexCount];
+			int[] to = new int[indexCount];
+			double[] cost = new double[indexCount];
+			int edgeCount = 0;
+			for (int i = 0; i < indexCount; i++) {
+				int a = current[i];
+				int b = current[i % 3 == 2 ? i - 2 : i + 1];
+				if (a > b || (locked[a] && locked[b])) {
+					continue;
+				}
+				double costAB = locked[a] ? Double.MAX_VALUE : collapseCost(quadrics, a, b, positions);
+				double costBA = locked[b] ? Double.MAX_VALUE : collapseCost(quadrics, b, a, positions);
+				from[edgeCount] = costAB <= costBA ? a : b;
+				to[edgeCount] = costAB <= costBA ? b : a;
+				cost[edgeCount] = Math.min(costAB, costBA);
+				edgeCount++;
+			}
+
+			// Sort by cost, the cost is non negative so its float bits sort like the value
+			long[] order = new long[edgeCount];
+			for (int e = 0; e < edgeCount; e++) {
+				order[e] = ((long) Float.floatToIntBits((float) cost[e]) << 32) | e;
+			}
+			Arrays.sort(order);
+
+			for (int v = 0; v < vertexCount; v++) {
+				remap[v] = v;
+			}
+			Arrays.fill(touched, false);
+			// Each collapse of an interior edge removes two triangles
+			int collapsesWanted = (indexCount - targetIndexCount) / 6 + 1;
+			int collapses = 0;
+			for (int k = 0; k < edgeCount && collapses < collapsesWanted; k++) {
+				int e = (int) order[k];
+				if (cost[e] > maxCost) {
+					break;
+				}
+				int a = from[e];
+				int b = to[e];
+				if (touched[a] || touched[b] || flips(positions, current, offsets, triangles, a, b)) {
+					continue;
+				}
+				remap[a] = b;
+				collapses++;
+				appliedCost = Math.max(appliedCost, cost[e]);
+				for (int q = 0; q < QUADRIC_SIZE; q++) {
+					quadrics[b * QUADRIC_SIZE + q] += quadrics[a * QUADRIC_SIZE + q];
+				}
+				// The flip test of later collapses in this pass must see the ring around a unchanged
+				for (int j = offsets[a]; j < offsets[a + 1]; j++) {
+					int t = triangles[j];
+					touched[current[t * 3]] = true;
+					touched[current[t * 3 + 1]] = true;
+					touched[current[t * 3 + 2]] = true;
+				}
+			}
+			if (collapses == 0) {
+				break;
+			}
+
+			// Apply the collapses and drop the triangles that became degenerate
+			int write = 0;
+			for (int t = 0; t < triangleCount; t++) {
+				int a = remap[current[t * 3]];
+				int b = remap[current[t * 3 + 1]];
+				int c = remap[current[t * 3 + 2]];
+				if (a != b && b != c && a != c) {
+					current[write++] = a;
+					current[write++] = b;
+					current[write++] = c;
+				}
+			}
+			indexCount = write;
+		}
+
+		return Arrays.copyOf(current, indexCount);
+	}
+
+	/**
+	 * The largest error of all collapses so far
+	 */
+	public float getError() {
+		return (float) Math.sqrt(appliedCost);
+	}
+
+	private static void addTriangleQuadric(float[] positions, int i0, int i1, int i2, double[] quadrics) {
+		double x0 = positions[i0 * 3], y0 = positions[i0 * 3 + 1], z0 = positions[i0 * 3 + 2];
+		double e1x = positions[i1 * 3] - x0, e1y = positions[i1 * 3 + 1] - y0, e1z = positions[i1 * 3 + 2] - z0;
+		double e2x = positions[i2 * 3] - x0, e2y = positions[i2 * 3 + 1] - y0, e2z = positions[i2 * 3 + 2] - z0;
+		double nx = e1y * e2z - e1z * e2y;
+		double ny = e1z * e2x - e1x * e2z;
+		double nz = e1x * e2y - e1y * e2x;
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0) {
+			return;
+		}
+		double area = length * 0.5;
+		nx /= length;
+		ny /= length;
+		nz /= length;
+		double d = -(nx * x0 + ny * y0 + nz * z0);
+
+		addQuadric(quadrics, i0, area, nx, ny, nz, d);
+		addQuadric(quadrics, i1, area, nx, ny, nz, d);
+		addQuadric(quadrics, i2, area, nx, ny, nz, d);
+	}
+
+	private static void addQuadric(double[] quadrics, int v, double area, double nx, double ny, double nz, double d) {
+		int q = v * QUADRIC_SIZE;
+		quadrics[q] += area * nx * nx;
+		quadrics[q + 1] += area * nx * ny;
+		quadrics[q + 2] += area * nx * nz;
+		quadrics[q + 3] += area * nx * d;
+		quadrics[q + 4] += area * ny * ny;
+		quadrics[q + 5] += area * ny * nz;
+		quadrics[q + 6] += area * ny * d;
+		quadrics[q + 7] += area * nz * nz;
+		quadrics[q + 8] += area * nz * d;
+		quadrics[q + 9] += area * d * d;
+		quadrics[q + 10] += area;
+	}
+
+	/**
+	 * Error of moving vertex a onto vertex b, measured with the combined quadric of both.
+	 */
+	private static double collapseCost(double[] quadrics, int a, int b, float[] positions) {
+		double x = positions[b * 3], y = positions[b * 3 + 1], z = positions[b * 3 + 2];
+		int qa = a * QUADRIC_SIZE;
+		int qb = b * QUADRIC_SIZE;
+		double weight = quadrics[qa + 10] + quadrics[qb + 10];
+		if (weight == 0) {
+			return 0;
+		}
+		double sum = evaluate(quadrics, qa, x, y, z) + evaluate(quadrics, qb, x, y, z);
+		return Math.max(0, sum / weight);
+	}
+
+	private static double evaluate(double[] quadrics, int q, double x, double y, double z) {
+		return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z
+				+ 2 * quadrics[q + 3] * x + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z
+				+ 2 * quadrics[q + 6] * y + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z + quadrics[q + 9];
+	}
+
+	/**
+	 * Checks whether moving a onto b turns any remaining triangle around a upside down.
+	 */
+	private static boolean flips(float[] positions, int[] indices, int[] offsets, int[] triangles, int a, int b) {
+		for (int j = offsets[a]; j < offsets[a + 1]; j++) {
+			int t = triangles[j] * 3;
+			int i0 = indices[t], i1 = indices[t + 1], i2 = indices[t + 2];
+			if (i0 == b || i1 == b || i2 == b) {
+				// Collapses to a degenerate triangle and is removed
+				continue;
+			}
+			// Rotate so that a comes first
+			int p = i0 == a ? i1 : i1 == a ? i2 : i0;
+			int q = i0 == a ? i2 : i1 == a ? i0 : i1;
+			float px = positions[p * 3], py = positions[p * 3 + 1], pz = positions[p * 3 + 2];
+			float qx = positions[q * 3] - px, qy = positions[q * 3 + 1] - py, qz = positions[q * 3 + 2] - pz;
+			float ax = positions[a * 3] - px, ay = positions[a * 3 + 1] - py, az = positions[a * 3 + 2] - pz;
+			float bx = positions[b * 3] - px, by = positions[b * 3 + 1] - py, bz = positions[b * 3 + 2] - pz;
+			// Normals before and after, up to scale
+			float n0x = qy * az - qz * ay, n0y = qz * ax - qx * az, n0z = qx * ay - qy * ax;
+			float n1x = qy * bz - qz * by, n1y = qz * bx - qx * bz, n1z = qx * by - qy * bx;
+			if (n0x * n1x + n0y * n1y + n0z * n1z <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean[] findOpenEdgeVertices(int[] indices, int vertexCount) {
+		LongIntHashMap edges = new LongIntHashMap(indices.length);
+		for (int i = 0; i < indices.length; i++) {
+			long key = edgeKey(indices[i], indices[i % 3 == 2 ? i - 2 : i + 1]);
+			edges.put(key, edges.get(key, 0) + 1);
+		}
+		boolean[] locked = new boolean[vertexCount];
+		for (int i = 0; i < indices.length; i++) {
+			int a = indices[i];
+			int b = indices[i % 3 == 2 ? i - 2 : i + 1];
+			if (edges.get(edgeKey(a, b), 0) == 1) {
+				locked[a] = true;
+				locked[b] = true;
+			}
+		}
+		return locked;
+	}
+
+	private static long edgeKey(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	/**
+	 * Triangles per vertex: triangles[offsets[v]] to triangles[offsets[v + 1] - 1]
+	 */
+	private static int[][] buildAdjacency(int[] indices, int indexCount, int vertexCount) {
+		int[] offsets = new int[vertexCount + 1];
+		for (int i = 0; i < indexCount; i++) {
+			offsets[indices[i] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		int[] triangles = new int[indexCount];
+		for (int i = 0; i < indexCount; i++) {
+			triangles[fill[indices[i]]++] = i / 3;
+		}
+		return new int[][] { offsets, triangles };
+	}
+}
@@ -0,0 +1,104 @@
+package at.befri.graph;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Builds mesh data on worker threads and hands it to the GL thread for upload. Loaders are submitted from any
+ * thread; the GL thread calls {@link #upload(int)} once per frame to turn finished data into meshes.
+ */
+public class MeshUploadQueue {
+	private final ExecutorService executor;
+	private final Queue<Ready> ready;
+	private final AtomicInteger inFlight;
+
+	public MeshUploadQueue(int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "MESH_LOADER_THREAD_" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		ready = new ConcurrentLinkedQueue<>();
+		inFlight = new AtomicInteger();
+	}
+
+	/**
+	 * Runs the loader on a worker thread. Once uploaded, onUploaded is called on the GL thread with the new mesh.
+	 * A failing loader is only reported as a warning.
+	 */
+	public void submit(Callable<MeshData> loader, Consumer<Mesh> onUploaded) {
+		submit(loader, onUploaded, null);
+	}
+
+	/**
+	 * Like {@link #submit(Callable, Consumer)}, but if the loader fails onFailed is called on the GL thread with
+	 * its exception instead of onUploaded.
+	 */
+	public void submit(Callable<MeshData> loader, Consumer<Mesh> onUploaded, Consumer<Exception> onFailed) {
+		inFlight.incrementAndGet();
+		executor.execute(() -> {
+			try {
+				MeshData data = loader.call();
+				// Do the remaining CPU work here rather than on the GL thread
+				data.computeTangents();
+				ready.add(new Ready(data, null, onUploaded, onFailed));
+			} catch (Exception e) {
+				System.err.println("Warning could not load mesh: " + e.getMessage());
+				ready.add(new Ready(null, e, onUploaded, onFailed));
+			}
+		});
+	}
+
+	/**
+	 * Uploads at most maxUploads finished meshes and reports the failed loaders. Must be called on the GL thread.
+	 *
+	 * @return the number of meshes uploaded
+	 */
+	public int upload(int maxUploads) {
+		int uploaded = 0;
+		Ready next;
+		while (uploaded < maxUploads && (next = ready.poll()) != null) {
+			inFlight.decrementAndGet();
+			if (next.failure != null) {
+				if (next.onFailed != null) {
+					next.onFailed.accept(next.failure);
+				}
+				continue;
+			}
+			next.onUploaded.accept(Mesh.create(next.data));
+			uploaded++;
+		}
+		return uploaded;
+	}
+
+	/**
+	 * Number of submitted loaders that have not been uploaded yet.
+	 */
+	public int getPendingCount() {
+		return inFlight.get();
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static class Ready {
+		private final MeshData data;
+		private final Exception failure;
+		private final Consumer<Mesh> onUploaded;
+		private final Consumer<Exception> onFailed;
+
+		private Ready(MeshData data, Exception failure, Consumer<Mesh> onUploaded, Consumer<Exception> onFailed) {
+			this.data = data;
+			this.failure = failure;
+			this.onUploaded = onUploaded;
+			this.onFailed = onFailed;
+		}
+	}
+}
@@ -1,164 +1,170 @@
 package at.befri.graph;
 
-import java.util.ArrayList;
-import java.util.List;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
+import at.befri.engine.FloatList;
+import at.befri.engine.IntList;
+import at.befri.engine.LongIntHashMap;
 import at.befri.engine.Utils;
 
 public class OBJLoader {
 
     public static Mesh loadMesh(String fileName) throws Exception {
-        List<String> lines = Utils.readAllLines(fileName);
-        
-        List<Vector3f> vertices = new ArrayList<>();
-        List<Vector2f> textures = new ArrayList<>();
-        List<Vector3f> normals = new ArrayList<>();
-        List<Face> faces = new ArrayList<>();
-
-        for (String line : lines) {
-            String[] tokens = line.split("\\s+");
-            switch (tokens[0]) {
-                case "v":
-                    // Geometric vertex
-                    Vector3f vec3f = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    vertices.add(vec3f);
-                    break;
-                case "vt":
-                    // Texture coordinate
-                    Vector2f vec2f = new Vector2f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]));
-                    textures.add(vec2f);
-                    break;
-                case "vn":
-                    // Vertex normal
-                    Vector3f vec3fNorm = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    normals.add(vec3fNorm);
-                    break;
-                case "f":
-                    Face face = new Face(tokens[1], tokens[2], tokens[3]);
-                    faces.add(face);
-                    break;
-                default:
-                    // Ignore other lines
-                    break;
-            }
-        }
-        return reorderLists(vertices, textures, normals, faces);
+        return loadMesh(fileName, null);
     }
 
-    private static Mesh reorderLists(List<Vector3f> posList, List<Vector2f> textCoordList,
-            List<Vector3f> normList, List<Face> facesList) {
-
-        List<Integer> indices = new ArrayList<>();
-        // Create position array in the order it has been declared
-        float[] posArr = new float[posList.size() * 3];
-        int i = 0;
-        for (Vector3f pos : posList) {
-            posArr[i * 3] = pos.x;
-            posArr[i * 3 + 1] = pos.y;
-            posArr[i * 3 + 2] = pos.z;
-            i++;
-        }
-        float[] textCoordArr = new float[posList.size() * 2];
-        float[] normArr = new float[posList.size() * 3];
-
-        for (Face face : facesList) {
-            IdxGroup[] faceVertexIndices = face.getFaceVertexIndices();
-            for (IdxGroup indValue : faceVertexIndices) {
-                processFaceVertex(indValue, textCoordList, normList,
-                        indices, textCoordArr, normArr);
-            }
+    /**
+     * Loads a mesh and, if stats is not null, fills it with information about the vertex welding.
+     */
+    public static Mesh loadMesh(String fileName, LoadStats stats) throws Exception {
+        return loadMesh(fileName, stats, true);
+    }
+
+    /**
+     * In parallel mode big files are parsed in chunks on the common fork join pool. The result is the same as
+     * for a sequential parse.
+     */
+    public static Mesh loadMesh(String fileName, LoadStats stats, boolean parallel) throws Exception {
+        return new Mesh(loadCached(fileName, stats, parallel));
+    }
+
+    /**
+     * Loads the processed vertex and index data of a model, going through the {@link MeshCache}. Does not need an
+     * OpenGL context, so it can run on any thread; the result is uploaded with {@link Mesh#Mesh(MeshCache.Entry)}.
+     */
+    public static MeshCache.Entry loadCached(String fileName, LoadStats stats, boolean parallel) throws Exception {
+        ByteBuffer buffer = Utils.readResource(fileName);
+
+        // Reuse the processed mesh of an earlier run if the source did not change
+        long sourceHash = MeshCache.hash(buffer);
+        MeshCache.Entry entry = MeshCache.load(fileName, sourceHash);
+        if (entry == null) {
+            MeshData data = parse(buffer, stats, parallel);
+            // Only done on a cache miss, the cache file then holds the optimized order and the levels of detail
+            data.optimizeVertexCache(stats != null ? stats.vertexCacheStats = new VertexCacheOptimizer.Stats() : null)
+                    .generateLods(MeshData.MAX_LOD_LEVELS);
+            entry = MeshCache.interleave(data);
+            MeshCache.store(fileName, sourceHash, entry);
+        } else if (stats != null) {
+            stats.faceVertexCount = entry.getLodIndexCounts()[0];
+            stats.uniqueVertexCount = entry.getVertexCount();
         }
-        int[] indicesArr = new int[indices.size()];
-        indicesArr = indices.stream().mapToInt((Integer v) -> v).toArray();
-        Mesh mesh = new Mesh(posArr, textCoordArr, normArr, indicesArr);
-        return mesh;
+        return entry;
     }
 
-    private static void processFaceVertex(IdxGroup indices, List<Vector2f> textCoordList,
-            List<Vector3f> normList, List<Integer> indicesList,
-            float[] texCoordArr, float[] normArr) {
+    /**
+     * Parses a model into CPU side mesh data, bypassing the cache. Does not need an OpenGL context.
+     */
+    public static MeshData loadMeshData(String fileName, LoadStats stats, boolean parallel) throws Exception {
+        return parse(Utils.readResource(fileName), stats, parallel);
+    }
+
+    private static MeshData parse(ByteBuffer buffer, LoadStats stats, boolean parallel) {
+        int parallelism = parallel ? ForkJoinPool.getCommonPoolParallelism() : 1;
+        OBJParser parser = OBJParser.parse(buffer, parallelism);
 
-        // Set index for vertex coordinates
-        int posIndex = indices.idxPos;
-        indicesList.add(posIndex);
+        return reorderLists(parser.getPositions().elements(), parser.getTexCoords().elements(),
+                parser.getNormals().elements(), parser.getFaceVertices(), stats);
+    }
 
-        // Reorder texture coordinates
-        if (indices.idxTextCoord >= 0) {
-            Vector2f textCoord = textCoordList.get(indices.idxTextCoord);
-            texCoordArr[posIndex * 2] = textCoord.x;
-            texCoordArr[posIndex * 2 + 1] = 1 - textCoord.y;
+    /**
+     * Welds the face vertices into a single indexed vertex buffer. Every distinct (position, texture coordinate,
+     * normal) triple becomes one vertex, so UV seams and hard edges are kept while shared corners are stored once.
+     */
+    private static MeshData reorderLists(float[] posList, float[] textCoordList, float[] normList,
+            IntList faceVertices, LoadStats stats) {
+
+        int[] faceArr = faceVertices.elements();
+        int numFaceVertices = faceVertices.size() / 3;
+        int[] indicesArr = new int[numFaceVertices];
+
+        // The triple does not fit into a single long, so it is resolved in two steps:
+        // (position, texture coordinate) -> pair id and (pair id, normal) -> vertex id
+        LongIntHashMap pairMap = new LongIntHashMap(numFaceVertices / 2);
+        LongIntHashMap vertexMap = new LongIntHashMap(numFaceVertices / 2);
+        int numPairs = 0;
+
+        FloatList posArr = new FloatList(numFaceVertices);
+        FloatList textCoordArr = new FloatList(numFaceVertices * 2 / 3);
+        FloatList normArr = new FloatList(numFaceVertices);
+
+        for (int i = 0; i < numFaceVertices; i++) {
+            int idxPos = faceArr[i * 3];
+            int idxTextCoord = faceArr[i * 3 + 1];
+            int idxVecNormal = faceArr[i * 3 + 2];
+
+            int pairId = pairMap.getOrPut(pack(idxPos, idxTextCoord), numPairs);
+            if (pairId == numPairs) {
+                numPairs++;
+            }
+            int numVertices = posArr.size() / 3;
+            int vertexId = vertexMap.getOrPut(pack(pairId, idxVecNormal), numVertices);
+            if (vertexId == numVertices) {
+                processFaceVertex(idxPos, idxTextCoord, idxVecNormal, posList, textCoordList, normList,
+                        posArr, textCoordArr, normArr);
+            }
+            indicesArr[i] = vertexId;
         }
-        if (indices.idxVecNormal >= 0) {
-            // Reorder vectornormals
-            Vector3f vecNorm = normList.get(indices.idxVecNormal);
-            normArr[posIndex * 3] = vecNorm.x;
-            normArr[posIndex * 3 + 1] = vecNorm.y;
-            normArr[posIndex * 3 + 2] = vecNorm.z;
+
+        if (stats != null) {
+            stats.faceVertexCount = numFaceVertices;
+            stats.uniqueVertexCount = posArr.size() / 3;
         }
+        return new MeshData(posArr.toArray(), textCoordArr.toArray(), normArr.toArray(), indicesArr)
+                .computeTangents();
     }
 
-    protected static class Face {
+    private static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
 
-        /**
-         * List of idxGroup groups for a face triangle (3 vertices per face).
-         */
-        private IdxGroup[] idxGroups = new IdxGroup[3];
-
-        public Face(String v1, String v2, String v3) {
-            idxGroups = new IdxGroup[3];
-            // Parse the lines
-            idxGroups[0] = parseLine(v1);
-            idxGroups[1] = parseLine(v2);
-            idxGroups[2] = parseLine(v3);
-        }
+    private static void processFaceVertex(int idxPos, int idxTextCoord, int idxVecNormal, float[] posList,
+            float[] textCoordList, float[] normList, FloatList posArr, FloatList texCoordArr, FloatList normArr) {
 
-        private IdxGroup parseLine(String line) {
-            IdxGroup idxGroup = new IdxGroup();
-
-            String[] lineTokens = line.split("/");
-            int length = lineTokens.length;
-            idxGroup.idxPos = Integer.parseInt(lineTokens[0]) - 1;
-            if (length > 1) {
-                // It can be empty if the obj does not define text coords
-                String textCoord = lineTokens[1];
-                idxGroup.idxTextCoord = textCoord.length() > 0 ? Integer.parseInt(textCoord) - 1 : IdxGroup.NO_VALUE;
-                if (length > 2) {
-                    idxGroup.idxVecNormal = Integer.parseInt(lineTokens[2]) - 1;
-                }
-            }
+        posArr.add(posList[idxPos * 3], posList[idxPos * 3 + 1], posList[idxPos * 3 + 2]);
 
-            return idxGroup;
+        if (idxTextCoord != OBJParser.NO_VALUE) {
+            texCoordArr.add(textCoordList[idxTextCoord * 2], 1 - textCoordList[idxTextCoord * 2 + 1]);
+        } else {
+            texCoordArr.add(0, 0);
         }
-
-        public IdxGroup[] getFaceVertexIndices() {
-            return idxGroups;
+        if (idxVecNormal != OBJParser.NO_VALUE) {
+            normArr.add(normList[idxVecNormal * 3], normList[idxVecNormal * 3 + 1], normList[idxVecNormal * 3 + 2]);
+        } else {
+            normArr.add(0, 0, 0);
         }
     }
 
-    protected static class IdxGroup {
+    public static class LoadStats {
+
+        private int faceVertexCount;
+
+        private int uniqueVertexCount;
 
-        public static final int NO_VALUE = -1;
+        private VertexCacheOptimizer.Stats vertexCacheStats;
 
-        public int idxPos;
+        public int getFaceVertexCount() {
+            return faceVertexCount;
+        }
 
-        public int idxTextCoord;
+        public int getUniqueVertexCount() {
+            return uniqueVertexCount;
+        }
 
-        public int idxVecNormal;
+        /**
+         * Vertex cache efficiency before and after optimization. Only known when the mesh was processed, null if
+         * it was loaded from the {@link MeshCache}.
+         */
+        public VertexCacheOptimizer.Stats getVertexCacheStats() {
+            return vertexCacheStats;
+        }
 
-        public IdxGroup() {
-            idxPos = NO_VALUE;
-            idxTextCoord = NO_VALUE;
-            idxVecNormal = NO_VALUE;
+        /**
+         * Unique vertices per face vertex: 1 means nothing could be shared, 1/6 is a typical closed grid.
+         */
+        public float getUniqueVertexRatio() {
+            return faceVertexCount > 0 ? (float) uniqueVertexCount / faceVertexCount : 0;
         }
     }
 }
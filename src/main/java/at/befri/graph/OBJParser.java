@@ -0,0 +1,445 @@
+package at.befri.graph;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import at.befri.engine.FloatList;
+import at.befri.engine.IntList;
+
+/**
+ * Byte level Wavefront OBJ parser. Reads the <code>v</code>, <code>vt</code>, <code>vn</code> and <code>f</code>
+ * records of a buffer directly into primitive lists without creating any intermediate strings or boxed values.
+ * Polygons with more than three vertices are triangulated as fans.
+ * <p>
+ * Large buffers can be parsed in parallel: the buffer is cut into chunks on line boundaries, every chunk is parsed
+ * by its own parser on a {@link ForkJoinPool} and the results are concatenated. Positive OBJ indices are global
+ * and need no adjustment; negative ones are relative to the records seen so far, so each chunk remembers where it
+ * resolved one and those entries are shifted by the counts of all previous chunks when merging. The merged result
+ * is identical to a sequential parse.
+ */
+class OBJParser {
+	public static final int NO_VALUE = -1;
+
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	private static final int MAX_MANTISSA_DIGITS = 18;
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final FloatList positions;
+	private final FloatList texCoords;
+	private final FloatList normals;
+	/**
+	 * Three entries (position, texture coordinate, normal) per face vertex, zero based, NO_VALUE if absent.
+	 */
+	private final IntList faceVertices;
+	/**
+	 * Offsets into faceVertices of indices that were resolved relative to this parser's own counts.
+	 */
+	private final IntList relativeIndices;
+
+	private ByteBuffer buf;
+	private int pos;
+	private int end;
+
+	public OBJParser() {
+		positions = new FloatList(1024);
+		texCoords = new FloatList(1024);
+		normals = new FloatList(1024);
+		faceVertices = new IntList(4096);
+		relativeIndices = new IntList();
+	}
+
+	private OBJParser(int numPositions, int numTexCoords, int numNormals, int numFaceVertices) {
+		positions = new FloatList(numPositions);
+		texCoords = new FloatList(numTexCoords);
+		normals = new FloatList(numNormals);
+		faceVertices = new IntList(numFaceVertices);
+		relativeIndices = new IntList(1);
+	}
+
+	/**
+	 * Parses the whole buffer, splitting it into at most the given number of chunks which are parsed concurrently.
+	 */
+	public static OBJParser parse(ByteBuffer buffer, int parallelism) {
+		return parseInChunks(buffer, parallelism, MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * Like {@link #parse(ByteBuffer, int)} with chunks of at least minChunkSize bytes, small ones let tests split
+	 * small files.
+	 */
+	static OBJParser parseInChunks(ByteBuffer buffer, int parallelism, int minChunkSize) {
+		int start = buffer.position();
+		int end = buffer.limit();
+		int numChunks = Math.max(1, Math.min(parallelism * 4, (end - start) / minChunkSize));
+		if (numChunks == 1) {
+			OBJParser parser = new OBJParser();
+			parser.parse(buffer, start, end);
+			return parser;
+		}
+
+		List<ChunkTask> tasks = new ArrayList<>(numChunks);
+		int chunkStart = start;
+		for (int i = 1; i <= numChunks && chunkStart < end; i++) {
+			int chunkEnd = i == numChunks ? end : nextLine(buffer, start + (int) ((long) (end - start) * i / numChunks), end);
+			if (chunkEnd > chunkStart) {
+				tasks.add(new ChunkTask(buffer, chunkStart, chunkEnd));
+			}
+			chunkStart = chunkEnd;
+		}
+		ForkJoinTask.invokeAll(tasks);
+
+		OBJParser[] parts = new OBJParser[tasks.size()];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = tasks.get(i).parser;
+		}
+		return merge(parts);
+	}
+
+	private static int nextLine(ByteBuffer buffer, int from, int end) {
+		int i = from;
+		while (i < end && buffer.get(i) != '\n') {
+			i++;
+		}
+		return Math.min(end, i + 1);
+	}
+
+	private static OBJParser merge(OBJParser[] parts) {
+		int numPositions = 0;
+		int numTexCoords = 0;
+		int numNormals = 0;
+		int numFaceVertices = 0;
+		for (OBJParser part : parts) {
+			numPositions += part.positions.size();
+			numTexCoords += part.texCoords.size();
+			numNormals += part.normals.size();
+			numFaceVertices += part.faceVertices.size();
+		}
+
+		OBJParser merged = new OBJParser(numPositions, numTexCoords, numNormals, numFaceVertices);
+		int basePos = 0;
+		int baseTexCoord = 0;
+		int baseNormal = 0;
+		for (OBJParser part : parts) {
+			merged.positions.addAll(part.positions.elements(), 0, part.positions.size());
+			merged.texCoords.addAll(part.texCoords.elements(), 0, part.texCoords.size());
+			merged.normals.addAll(part.normals.elements(), 0, part.normals.size());
+
+			int faceOffset = merged.faceVertices.size();
+			merged.faceVertices.addAll(part.faceVertices.elements(), 0, part.faceVertices.size());
+			int[] faces = merged.faceVertices.elements();
+			int[] relative = part.relativeIndices.elements();
+			for (int i = 0; i < part.relativeIndices.size(); i++) {
+				int offset = relative[i];
+				switch (offset % 3) {
+					case 0:
+						faces[faceOffset + offset] += basePos;
+						break;
+					case 1:
+						faces[faceOffset + offset] += baseTexCoord;
+						break;
+					default:
+						faces[faceOffset + offset] += baseNormal;
+						break;
+				}
+			}
+
+			basePos += part.positions.size() / 3;
+			baseTexCoord += part.texCoords.size() / 2;
+			baseNormal += part.normals.size() / 3;
+		}
+		return merged;
+	}
+
+	public void parse(ByteBuffer buffer) {
+		parse(buffer, buffer.position(), buffer.limit());
+	}
+
+	public void parse(ByteBuffer buffer, int start, int end) {
+		this.buf = buffer;
+		this.pos = start;
+		this.end = end;
+		// Rough guess assuming ~30 bytes per record, saves most of the regrowing for big files
+		int estimate = (end - start) / 30;
+		positions.ensureCapacity(estimate);
+		faceVertices.ensureCapacity(estimate * 3);
+		while (pos < end) {
+			parseLine();
+		}
+		this.buf = null;
+	}
+
+	public FloatList getPositions() {
+		return positions;
+	}
+
+	public FloatList getTexCoords() {
+		return texCoords;
+	}
+
+	public FloatList getNormals() {
+		return normals;
+	}
+
+	public IntList getFaceVertices() {
+		return faceVertices;
+	}
+
+	private void parseLine() {
+		skipBlanks();
+		if (pos >= end) {
+			return;
+		}
+		byte c0 = buf.get(pos);
+		byte c1 = pos + 1 < end ? buf.get(pos + 1) : (byte) '\n';
+		if (c0 == 'v') {
+			if (isBlank(c1)) {
+				// Geometric vertex
+				pos += 1;
+				positions.add(parseFloat(), parseFloat(), parseFloat());
+			} else if (c1 == 't' && isBlankAt(pos + 2)) {
+				// Texture coordinate
+				pos += 2;
+				texCoords.add(parseFloat(), parseFloat());
+			} else if (c1 == 'n' && isBlankAt(pos + 2)) {
+				// Vertex normal
+				pos += 2;
+				normals.add(parseFloat(), parseFloat(), parseFloat());
+			}
+		} else if (c0 == 'f' && isBlank(c1)) {
+			pos += 1;
+			parseFace();
+		}
+		// Ignore other lines and anything left over on this one
+		skipLine();
+	}
+
+	private void parseFace() {
+		int first = faceVertices.size();
+		int firstRelative = 0;
+		int previousRelative = 0;
+		int count = 0;
+		skipBlanks();
+		while (pos < end && !isEol(buf.get(pos))) {
+			if (count >= 3) {
+				// Fan triangulation: repeat the first and the previous vertex
+				int previous = faceVertices.size() - 3;
+				copyFaceVertex(first, firstRelative);
+				copyFaceVertex(previous, previousRelative);
+			}
+			previousRelative = parseFaceVertex();
+			if (count == 0) {
+				firstRelative = previousRelative;
+			}
+			count++;
+			skipBlanks();
+		}
+		if (count < 3) {
+			throw new IllegalArgumentException("Face with less than three vertices before byte " + pos);
+		}
+	}
+
+	private void copyFaceVertex(int from, int relative) {
+		int offset = faceVertices.size();
+		faceVertices.add(faceVertices.get(from), faceVertices.get(from + 1), faceVertices.get(from + 2));
+		for (int i = 0; i < 3; i++) {
+			if ((relative & (1 << i)) != 0) {
+				relativeIndices.add(offset + i);
+			}
+		}
+	}
+
+	/**
+	 * Returns a bit mask telling which of the three indices were given as relative indices.
+	 */
+	private int parseFaceVertex() {
+		int offset = faceVertices.size();
+		int relative = 0;
+		int index = parseInt();
+		int idxPos = resolveIndex(index, positions.size() / 3, offset);
+		relative |= index < 0 ? 1 : 0;
+		int idxTextCoord = NO_VALUE;
+		int idxVecNormal = NO_VALUE;
+		if (pos < end && buf.get(pos) == '/') {
+			pos++;
+			// It can be empty if the obj does not define text coords
+			if (pos < end && buf.get(pos) != '/' && !isBlank(buf.get(pos))) {
+				index = parseInt();
+				idxTextCoord = resolveIndex(index, texCoords.size() / 2, offset + 1);
+				relative |= index < 0 ? 2 : 0;
+			}
+			if (pos < end && buf.get(pos) == '/') {
+				pos++;
+				index = parseInt();
+				idxVecNormal = resolveIndex(index, normals.size() / 3, offset + 2);
+				relative |= index < 0 ? 4 : 0;
+			}
+		}
+		faceVertices.add(idxPos, idxTextCoord, idxVecNormal);
+		return relative;
+	}
+
+	/**
+	 * OBJ indices are 1-based, negative values are relative to the current end of the list.
+	 */
+	private int resolveIndex(int index, int count, int offset) {
+		if (index < 0) {
+			relativeIndices.add(offset);
+			return count + index;
+		}
+		return index - 1;
+	}
+
+	private int parseInt() {
+		boolean negative = false;
+		if (pos < end) {
+			byte c = buf.get(pos);
+			if (c == '-') {
+				negative = true;
+				pos++;
+			} else if (c == '+') {
+				pos++;
+			}
+		}
+		int start = pos;
+		int value = 0;
+		while (pos < end) {
+			int digit = buf.get(pos) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			value = value * 10 + digit;
+			pos++;
+		}
+		if (pos == start) {
+			throw new IllegalArgumentException("Expected an index at byte " + pos);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a decimal float in place. Up to 18 significant digits are accumulated in a long which is scaled by an
+	 * exact power of ten whenever possible, so the common case needs neither allocation nor Float.parseFloat.
+	 */
+	private float parseFloat() {
+		skipBlanks();
+		boolean negative = false;
+		if (pos < end) {
+			byte c = buf.get(pos);
+			if (c == '-') {
+				negative = true;
+				pos++;
+			} else if (c == '+') {
+				pos++;
+			}
+		}
+		int start = pos;
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		while (pos < end) {
+			int digit = buf.get(pos) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			if (digits < MAX_MANTISSA_DIGITS) {
+				mantissa = mantissa * 10 + digit;
+				if (mantissa != 0) {
+					digits++;
+				}
+			} else {
+				exponent++;
+			}
+			pos++;
+		}
+		if (pos < end && buf.get(pos) == '.') {
+			pos++;
+			while (pos < end) {
+				int digit = buf.get(pos) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				if (digits < MAX_MANTISSA_DIGITS) {
+					mantissa = mantissa * 10 + digit;
+					exponent--;
+					if (mantissa != 0) {
+						digits++;
+					}
+				}
+				pos++;
+			}
+		}
+		if (pos == start) {
+			throw new IllegalArgumentException("Expected a number at byte " + pos);
+		}
+		if (pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+			pos++;
+			exponent += parseInt();
+		}
+		double value = mantissa;
+		if (exponent != 0 && mantissa != 0) {
+			if (exponent < 0 && exponent >= -22) {
+				value /= POWERS_OF_TEN[-exponent];
+			} else if (exponent > 0 && exponent <= 22) {
+				value *= POWERS_OF_TEN[exponent];
+			} else {
+				value *= Math.pow(10, exponent);
+			}
+		}
+		return (float) (negative ? -value : value);
+	}
+
+	private void skipBlanks() {
+		while (pos < end && isBlank(buf.get(pos))) {
+			pos++;
+		}
+	}
+
+	private void skipLine() {
+		while (pos < end && buf.get(pos) != '\n') {
+			pos++;
+		}
+		pos++;
+	}
+
+	private boolean isBlankAt(int index) {
+		return index >= end || isBlank(buf.get(index)) || isEol(buf.get(index));
+	}
+
+	private static boolean isBlank(byte c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static boolean isEol(byte c) {
+		return c == '\n' || c == '\r' || c == '#';
+	}
+
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer buffer;
+		private final int start;
+		private final int end;
+		private OBJParser parser;
+
+		ChunkTask(ByteBuffer buffer, int start, int end) {
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			parser = new OBJParser();
+			parser.parse(buffer, start, end);
+		}
+	}
+}
@@ -13,6 +13,15 @@ public class ProceduralSphere {
 
 	public static Mesh generate(float radius, int widthSegments, int heightSegments, float phiStart, float phiLength,
 			float thetaStart, float thetaLength, boolean ccw) {
+		return Mesh.create(generateData(radius, widthSegments, heightSegments, phiStart, phiLength, thetaStart,
+				thetaLength, ccw).optimizeVertexCache(null).generateLods(MeshData.MAX_LOD_LEVELS));
+	}
+
+	/**
+	 * Builds the sphere geometry without touching OpenGL, so it can run off the render thread.
+	 */
+	public static MeshData generateData(float radius, int widthSegments, int heightSegments, float phiStart,
+			float phiLength, float thetaStart, float thetaLength, boolean ccw) {
 		widthSegments = Math.max(3, widthSegments);
 		heightSegments = Math.max(2, heightSegments);
 
@@ -127,7 +136,6 @@ public class ProceduralSphere {
 
 		int[] indices = indexList.stream().mapToInt(i -> i).toArray();
 
-		Mesh mesh = new Mesh(positions, texCoords, normals, indices);
-		return mesh;
+		return new MeshData(positions, texCoords, normals, indices).computeTangents();
 	}
 }
@@ -0,0 +1,281 @@
+package at.befri.graph;
+
+import java.util.Arrays;
+
+import at.befri.engine.items.GameItem;
+
+/**
+ * Visible game items of a frame, each with a 64 bit sort key packing, from the most to the least significant bits:
+ * <pre>
+ * pass      2 bits  {@link #PASS_SHADOW} before {@link #PASS_OPAQUE}
+ * shader    4 bits
+ * material 16 bits  {@link #NO_MATERIAL} for passes that do not bind materials and for other materials
+ * mesh     16 bits
+ * level     3 bits  level of detail
+ * depth    23 bits  distance from the viewer, nearest first
+ * </pre>
+ * Sorting by the key groups the items of a mesh, the meshes of a material and the materials of a shader, so each
+ * of them is switched once per pass, and orders the instances of a draw front to back for early depth rejection.
+ * Depth ranks below the state, whole draws are not ordered by it as that would split them. Keys are sorted as
+ * unsigned numbers by an LSD radix sort, 11 bits at a time, skipping digits all keys share. The sort is stable and
+ * ids are given out in creation order, so a frame draws in the same order in every run.
+ * <p>
+ * Material and mesh ids wrap after 65535 and only steer the order, batches are split on the actual mesh and material.
+ */
+public class RenderQueue {
+	public static final int PASS_SHADOW = 0;
+	public static final int PASS_OPAQUE = 1;
+	public static final int NO_MATERIAL = 0;
+
+	private static final int PASS_SHIFT = 62;
+	private static final int SHADER_SHIFT = 58;
+	private static final int MATERIAL_SHIFT = 42;
+	private static final int MESH_SHIFT = 26;
+	private static final int LEVEL_SHIFT = 23;
+	private static final long SHADER_MASK = 0xF;
+	private static final long ID_MASK = 0xFFFF;
+	private static final long LEVEL_MASK = 0x7;
+	// Radix sort digits, the last one holds the 9 remaining bits
+	private static final int DIGIT_BITS = 11;
+	private static final int DIGITS = (64 + DIGIT_BITS - 1) / DIGIT_BITS;
+	private static final long DIGIT_MASK = (1 << DIGIT_BITS) - 1;
+
+	/**
+	 * Draws a mesh's instances. materialChanged tells whether the material differs from the previous draw's and
+	 * has to be bound.
+	 */
+	public interface Commands {
+		void draw(Mesh mesh, InstanceBuffer instances, boolean materialChanged);
+	}
+
+	private long[] keys;
+	private int[] items;
+	private long[] sortKeys;
+	private int[] sortItems;
+	private final int[] histograms;
+	private GameItem[] gameItems;
+	private int size;
+	private int shaderChanges;
+	private int materialChanges;
+	private int meshChanges;
+	private int drawCount;
+
+	public RenderQueue() {
+		keys = new long[256];
+		items = new int[256];
+		sortKeys = new long[256];
+		sortItems = new int[256];
+		histograms = new int[DIGITS << DIGIT_BITS];
+		gameItems = new GameItem[256];
+	}
+
+	/**
+	 * Packs the fields into a sort key. The ids are folded into their 16 bits, depth is clamped to 0 and keeps a
+	 * relative precision of 2^-15.
+	 */
+	public static long key(int pass, int shader, int material, int mesh, int level, float depth) {
+		return (long) pass << PASS_SHIFT
+				| (shader & SHADER_MASK) << SHADER_SHIFT
+				| foldId(material) << MATERIAL_SHIFT
+				| foldId(mesh) << MESH_SHIFT
+				| (level & LEVEL_MASK) << LEVEL_SHIFT
+				// The bits of a positive float order like the float, the top 23 are exponent and 15 mantissa bits
+				| Float.floatToIntBits(Math.max(depth, 0f)) >>> 8;
+	}
+
+	/**
+	 * Keeps 0 for {@link #NO_MATERIAL}, other ids cycle through 1 to 65535.
+	 */
+	private static long foldId(int id) {
+		return id == 0 ? 0 : (id - 1) % ID_MASK + 1;
+	}
+
+	/**
+	 * Material key of a mesh for {@link #key(int, int, int, int, int, float)}
+	 */
+	public static int materialId(Mesh mesh) {
+		IMaterial material = mesh.getIMaterial();
+		return material instanceof Material ? ((Material) material).getId() : NO_MATERIAL;
+	}
+
+	/**
+	 * Empties the queue and resets the counts for a new frame.
+	 */
+	public void clear() {
+		Arrays.fill(gameItems, 0, size, null);
+		size = 0;
+		shaderChanges = 0;
+		materialChanges = 0;
+		meshChanges = 0;
+		drawCount = 0;
+	}
+
+	public void add(long key, GameItem gameItem) {
+		if (size == keys.length) {
+			int capacity = size * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			items = Arrays.copyOf(items, capacity);
+			sortKeys = new long[capacity];
+			sortItems = new int[capacity];
+			gameItems = Arrays.copyOf(gameItems, capacity);
+		}
+		keys[size] = key;
+		items[size] = size;
+		gameItems[size] = gameItem;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the items added since the last {@link #clear()} by their keys.
+	 */
+	public void sort() {
+		Arrays.fill(histograms, 0);
+		for (int i = 0; i < size; i++) {
+			long key = keys[i];
+			for (int digit = 0; digit < DIGITS; digit++) {
+				histograms[(digit << DIGIT_BITS) + (int) (key >>> (digit * DIGIT_BITS) & DIGIT_MASK)]++;
+			}
+		}
+		for (int digit = 0; digit < DIGITS; digit++) {
+			int offset = digit << DIGIT_BITS;
+			int shift = digit * DIGIT_BITS;
+			// A digit all keys share would move nothing
+			if (histograms[offset + (int) (keys[0] >>> shift & DIGIT_MASK)] == size) {
+				continue;
+			}
+			int sum = 0;
+			for (int bucket = offset; bucket < offset + (1 << DIGIT_BITS); bucket++) {
+				int count = histograms[bucket];
+				histograms[bucket] = sum;
+				sum += count;
+			}
+			for (int i = 0; i < size; i++) {
+				long key = keys[i];
+				int target = histograms[offset + (int) (key >>> shift & DIGIT_MASK)]++;
+				sortKeys[target] = key;
+				sortItems[target] = items[i];
+			}
+			long[] swapKeys = keys;
+			keys = sortKeys;
+			sortKeys = swapKeys;
+			int[] swapItems = items;
+			items = sortItems;
+			sortItems = swapItems;
+		}
+	}
+
+	/**
+	 * Sort key of the item at a position, in sorted order after {@link #sort()}
+	 */
+	public long getKey(int index) {
+		return keys[index];
+	}
+
+	public GameItem getGameItem(int index) {
+		return gameItems[items[index]];
+	}
+
+	/**
+	 * Draws the sorted items of a pass, one call per run of items sharing a mesh, with their model matrices in
+	 * instances grouped by level of detail. Counts the state changes as it goes. For passes that bind materials,
+	 * a draw's material counts as changed whenever its mesh has a different material object than the previous
+	 * draw's; the material field of the keys only orders the draws.
+	 */
+	public void render(int pass, boolean bindsMaterials, InstanceBuffer instances, Commands commands) {
+		int index = firstIndex((long) pass << PASS_SHIFT);
+		// The last pass's successor shifts out of the key
+		long nextPass = (long) (pass + 1) << PASS_SHIFT;
+		int end = nextPass == 0 ? size : firstIndex(nextPass);
+		long lastShader = -1;
+		IMaterial lastMaterial = null;
+		boolean materialBound = false;
+		while (index < end) {
+			long key = keys[index];
+			Mesh mesh = gameItems[items[index]].getMesh();
+			long shader = key >>> SHADER_SHIFT & SHADER_MASK;
+			if (shader != lastShader) {
+				shaderChanges++;
+				lastShader = shader;
+				// A new program has no material set
+				materialBound = false;
+			}
+			boolean materialChanged = bindsMaterials && (!materialBound || mesh.getIMaterial() != lastMaterial);
+			if (materialChanged) {
+				materialChanges++;
+				lastMaterial = mesh.getIMaterial();
+				materialBound = true;
+			}
+			meshChanges++;
+
+			instances.clear();
+			long batch = key >>> MESH_SHIFT;
+			do {
+				int level = (int) (keys[index] >>> LEVEL_SHIFT & LEVEL_MASK);
+				instances.add(level, gameItems[items[index]].getModelMatrix());
+				index++;
+			} while (index < end && keys[index] >>> MESH_SHIFT == batch && gameItems[items[index]].getMesh() == mesh);
+			for (int level = 0; level < MeshData.MAX_LOD_LEVELS; level++) {
+				if (instances.getCount(level) > 0) {
+					drawCount++;
+				}
+			}
+			commands.draw(mesh, instances, materialChanged);
+		}
+	}
+
+	/**
+	 * Position of the first key not below the given one, as unsigned numbers
+	 */
+	private int firstIndex(long key) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (Long.compareUnsigned(keys[middle], key) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Program changes in the passes rendered since the last {@link #clear()}
+	 */
+	public int getShaderChangeCount() {
+		return shaderChanges;
+	}
+
+	/**
+	 * Material changes, each binding the material's uniforms and textures
+	 */
+	public int getMaterialChangeCount() {
+		return materialChanges;
+	}
+
+	/**
+	 * Mesh changes, each binding the mesh's vertex array
+	 */
+	public int getMeshChangeCount() {
+		return meshChanges;
+	}
+
+	/**
+	 * Shader, material and mesh changes together
+	 */
+	public int getStateChangeCount() {
+		return shaderChanges + materialChanges + meshChanges;
+	}
+
+	/**
+	 * Instanced draw calls, one per mesh and level of detail
+	 */
+	public int getDrawCount() {
+		return drawCount;
+	}
+}
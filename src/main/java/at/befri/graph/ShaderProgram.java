@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.joml.Matrix4f;
+import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import org.lwjgl.system.MemoryStack;
@@ -137,6 +138,10 @@ public class ShaderProgram {
 		glUniform1f(uniforms.get(uniformName), value);
 	}
 	
+	public void setUniform(String uniformName, Vector2f value) {
+		glUniform2f(uniforms.get(uniformName), value.x, value.y);
+	}
+	
 	public void setUniform(String uniformName, Vector3f value) {
 		glUniform3f(uniforms.get(uniformName), value.x, value.y, value.z);
 	}
@@ -0,0 +1,208 @@
+package at.befri.graph;
+
+import java.util.stream.IntStream;
+
+/**
+ * Per vertex tangent frames for normal mapping, computed on primitive arrays.
+ * <p>
+ * Follows the MikkTSpace conventions: every triangle contributes its texture space tangent and bitangent,
+ * projected into the tangent plane of the vertex normal, normalized and weighted by the triangle's angle at that
+ * corner. The accumulated tangent is Gram-Schmidt orthonormalized against the normal, and the handedness of the
+ * frame is stored as the sign in the fourth component, so the bitangent is <code>cross(n, t.xyz) * t.w</code>.
+ * Triangles with degenerate texture coordinates contribute nothing; vertices that end up without any tangent get
+ * an arbitrary one perpendicular to their normal.
+ * <p>
+ * Big meshes are processed in parallel: triangle ranges are accumulated into per task arrays which are then summed
+ * and orthonormalized over vertex ranges.
+ */
+public class TangentSpace {
+	private static final int MIN_TRIANGLES_PER_TASK = 1 << 16;
+	private static final int VERTICES_PER_TASK = 1 << 16;
+	private static final float EPSILON = 1e-20f;
+
+	/**
+	 * Accumulated tangent (3) and bitangent (3) per vertex
+	 */
+	private static final int ACC_SIZE = 6;
+
+	private TangentSpace() {
+	}
+
+	/**
+	 * Fills tangents with four components (x, y, z, handedness) per vertex.
+	 */
+	public static void compute(float[] positions, float[] texCoords, float[] normals, int[] indices, float[] tangents) {
+		int vertexCount = positions.length / 3;
+		int triangleCount = indices.length / 3;
+		int tasks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+				triangleCount / MIN_TRIANGLES_PER_TASK));
+
+		float[][] accumulators = new float[tasks][];
+		if (tasks == 1) {
+			accumulators[0] = new float[vertexCount * ACC_SIZE];
+			accumulate(positions, texCoords, normals, indices, 0, triangleCount, accumulators[0]);
+		} else {
+			IntStream.range(0, tasks).parallel().forEach(task -> {
+				float[] acc = new float[vertexCount * ACC_SIZE];
+				int from = (int) ((long) triangleCount * task / tasks);
+				int to = (int) ((long) triangleCount * (task + 1) / tasks);
+				accumulate(positions, texCoords, normals, indices, from, to, acc);
+				accumulators[task] = acc;
+			});
+		}
+
+		int ranges = (vertexCount + VERTICES_PER_TASK - 1) / VERTICES_PER_TASK;
+		IntStream rangeStream = IntStream.range(0, ranges);
+		if (tasks > 1) {
+			rangeStream = rangeStream.parallel();
+		}
+		rangeStream.forEach(range -> {
+			int from = range * VERTICES_PER_TASK;
+			int to = Math.min(vertexCount, from + VERTICES_PER_TASK);
+			orthonormalize(normals, accumulators, from, to, tangents);
+		});
+	}
+
+	private static void accumulate(float[] positions, float[] texCoords, float[] normals, int[] indices,
+			int fromTriangle, int toTriangle, float[] acc) {
+		for (int t = fromTriangle; t < toTriangle; t++) {
+			int i0 = indices[t * 3];
+			int i1 = indices[t * 3 + 1];
+			int i2 = indices[t * 3 + 2];
+
+			float x0 = positions[i0 * 3], y0 = positions[i0 * 3 + 1], z0 = positions[i0 * 3 + 2];
+			float x1 = positions[i1 * 3], y1 = positions[i1 * 3 + 1], z1 = positions[i1 * 3 + 2];
+			float x2 = positions[i2 * 3], y2 = positions[i2 * 3 + 1], z2 = positions[i2 * 3 + 2];
+
+			// Edges of the triangle: position delta
+			float e1x = x1 - x0, e1y = y1 - y0, e1z = z1 - z0;
+			float e2x = x2 - x0, e2y = y2 - y0, e2z = z2 - z0;
+
+			// UV delta
+			float du1 = texCoords[i1 * 2] - texCoords[i0 * 2];
+			float dv1 = texCoords[i1 * 2 + 1] - texCoords[i0 * 2 + 1];
+			float du2 = texCoords[i2 * 2] - texCoords[i0 * 2];
+			float dv2 = texCoords[i2 * 2 + 1] - texCoords[i0 * 2 + 1];
+
+			float det = du1 * dv2 - du2 * dv1;
+			if (Math.abs(det) < EPSILON) {
+				// Degenerate texture mapping, the triangle does not define a tangent direction
+				continue;
+			}
+			float r = 1.0f / det;
+			float sx = (e1x * dv2 - e2x * dv1) * r;
+			float sy = (e1y * dv2 - e2y * dv1) * r;
+			float sz = (e1z * dv2 - e2z * dv1) * r;
+			float bx = (e2x * du1 - e1x * du2) * r;
+			float by = (e2y * du1 - e1y * du2) * r;
+			float bz = (e2z * du1 - e1z * du2) * r;
+
+			// Corner angles: between the two edges leaving each vertex
+			float l1 = length(e1x, e1y, e1z);
+			float l2 = length(e2x, e2y, e2z);
+			float e3x = x2 - x1, e3y = y2 - y1, e3z = z2 - z1;
+			float l3 = length(e3x, e3y, e3z);
+			if (l1 == 0 || l2 == 0 || l3 == 0) {
+				continue;
+			}
+			float angle0 = angle((e1x * e2x + e1y * e2y + e1z * e2z) / (l1 * l2));
+			float angle1 = angle(-(e1x * e3x + e1y * e3y + e1z * e3z) / (l1 * l3));
+			float angle2 = (float) Math.PI - angle0 - angle1;
+
+			addCorner(normals, i0, angle0, sx, sy, sz, bx, by, bz, acc);
+			addCorner(normals, i1, angle1, sx, sy, sz, bx, by, bz, acc);
+			addCorner(normals, i2, angle2, sx, sy, sz, bx, by, bz, acc);
+		}
+	}
+
+	private static void addCorner(float[] normals, int i, float weight, float sx, float sy, float sz, float bx,
+			float by, float bz, float[] acc) {
+		float nx = normals[i * 3], ny = normals[i * 3 + 1], nz = normals[i * 3 + 2];
+
+		// Project into the tangent plane of this vertex and normalize before weighting
+		float d = nx * sx + ny * sy + nz * sz;
+		float tx = sx - nx * d, ty = sy - ny * d, tz = sz - nz * d;
+		float tl = length(tx, ty, tz);
+		if (tl > 0) {
+			float s = weight / tl;
+			acc[i * ACC_SIZE] += tx * s;
+			acc[i * ACC_SIZE + 1] += ty * s;
+			acc[i * ACC_SIZE + 2] += tz * s;
+		}
+		d = nx * bx + ny * by + nz * bz;
+		tx = bx - nx * d;
+		ty = by - ny * d;
+		tz = bz - nz * d;
+		tl = length(tx, ty, tz);
+		if (tl > 0) {
+			float s = weight / tl;
+			acc[i * ACC_SIZE + 3] += tx * s;
+			acc[i * ACC_SIZE + 4] += ty * s;
+			acc[i * ACC_SIZE + 5] += tz * s;
+		}
+	}
+
+	private static void orthonormalize(float[] normals, float[][] accumulators, int from, int to, float[] tangents) {
+		for (int i = from; i < to; i++) {
+			float tx = 0, ty = 0, tz = 0, bx = 0, by = 0, bz = 0;
+			for (float[] acc : accumulators) {
+				int a = i * ACC_SIZE;
+				tx += acc[a];
+				ty += acc[a + 1];
+				tz += acc[a + 2];
+				bx += acc[a + 3];
+				by += acc[a + 4];
+				bz += acc[a + 5];
+			}
+			float nx = normals[i * 3], ny = normals[i * 3 + 1], nz = normals[i * 3 + 2];
+
+			// Gram-Schmidt orthogonalize
+			float d = nx * tx + ny * ty + nz * tz;
+			tx -= nx * d;
+			ty -= ny * d;
+			tz -= nz * d;
+			float l = length(tx, ty, tz);
+			if (l < EPSILON) {
+				// No usable tangent, pick any direction perpendicular to the normal
+				if (Math.abs(nx) < 0.9f) {
+					tx = 0;
+					ty = -nz;
+					tz = ny;
+				} else {
+					tx = nz;
+					ty = 0;
+					tz = -nx;
+				}
+				l = length(tx, ty, tz);
+				if (l < EPSILON) {
+					tx = 1;
+					ty = 0;
+					tz = 0;
+					l = 1;
+				}
+			}
+			tx /= l;
+			ty /= l;
+			tz /= l;
+
+			// Calculate handedness
+			float cx = ny * tz - nz * ty;
+			float cy = nz * tx - nx * tz;
+			float cz = nx * ty - ny * tx;
+			float w = cx * bx + cy * by + cz * bz < 0.0f ? -1.0f : 1.0f;
+
+			tangents[i * 4] = tx;
+			tangents[i * 4 + 1] = ty;
+			tangents[i * 4 + 2] = tz;
+			tangents[i * 4 + 3] = w;
+		}
+	}
+
+	private static float angle(float cos) {
+		return (float) Math.acos(Math.max(-1.0f, Math.min(1.0f, cos)));
+	}
+
+	private static float length(float x, float y, float z) {
+		return (float) Math.sqrt(x * x + y * y + z * z);
+	}
+}
@@ -17,6 +17,7 @@ import static org.lwjgl.opengl.GL11.glGenTextures;
 import static org.lwjgl.opengl.GL11.glPixelStorei;
 import static org.lwjgl.opengl.GL11.glTexImage2D;
 import static org.lwjgl.opengl.GL11.glTexParameteri;
+import static org.lwjgl.opengl.GL11.glTexSubImage2D;
 import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
 import static org.lwjgl.opengl.GL30.glGenerateMipmap;
 
@@ -48,6 +49,22 @@ public class Texture {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
 	}
 	
+	/**
+	 * Creates a texture without mipmaps from raw pixel data, sampled with nearest filtering and clamped to the edge.
+	 */
+	public Texture(int width, int height, int internalFormat, int pixelFormat, int type, ByteBuffer pixels) {
+		this();
+		this.width = width;
+		this.height = height;
+		bind();
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, pixelFormat, type, pixels);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+	}
+	
 	public Texture(String filename) throws Exception {
 		this(Texture.class.getResourceAsStream(filename));
 	}
@@ -82,6 +99,16 @@ public class Texture {
 		glGenerateMipmap(GL_TEXTURE_2D);
 	}
 	
+	/**
+	 * Replaces a rectangle of the base level with pixels in the given format.
+	 */
+	public void update(int x, int y, int width, int height, int pixelFormat, int type, ByteBuffer pixels) {
+		bind();
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, width, height, pixelFormat, type, pixels);
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+	
 	public void bind() {
         glBindTexture(GL_TEXTURE_2D, id);
     }
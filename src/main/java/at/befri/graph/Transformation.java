@@ -8,9 +8,7 @@ import at.befri.engine.items.GameItem;
 public class Transformation {
 	private final Matrix4f projectionMatrix;
 	private final Matrix4f viewMatrix;
-	private final Matrix4f modelMatrix;
 	private final Matrix4f modelViewMatrix;
-	private final Matrix4f modelLightMatrix;
 	private final Matrix4f modelLightViewMatrix;
 	private final Matrix4f orthoProjMatrix;
 	private final Matrix4f lightViewMatrix;
@@ -18,9 +16,7 @@ public class Transformation {
 	public Transformation() {
 		projectionMatrix = new Matrix4f();
 		viewMatrix = new Matrix4f();
-		modelMatrix = new Matrix4f();
 		modelViewMatrix = new Matrix4f();
-		modelLightMatrix = new Matrix4f();
 		modelLightViewMatrix = new Matrix4f();
 		orthoProjMatrix = new Matrix4f();
 		lightViewMatrix = new Matrix4f();
@@ -54,30 +50,16 @@ public class Transformation {
 		;
 	}
 	
+	/**
+	 * The game item's cached model matrix, see {@link GameItem#getModelMatrix()}.
+	 */
 	public Matrix4f buildModelMatrix(GameItem gameItem) {
-        Vector3f rotation = gameItem.getRotation();
-        return modelMatrix
-        	.identity()
-        	.translate(gameItem.getPosition())
-        	.rotateX((float)Math.toRadians(-rotation.x))
-        	.rotateY((float)Math.toRadians(-rotation.y))
-        	.rotateZ((float)Math.toRadians(-rotation.z))
-        	.scale(gameItem.getScale())
-        ;
-    }
+		return gameItem.getModelMatrix();
+	}
 	
 	public Matrix4f buildModelViewMatrix(GameItem gameItem, Matrix4f matrix) {
-		Vector3f rotation = gameItem.getRotation();
-		modelMatrix
-			.identity()
-			.translate(gameItem.getPosition())
-			.rotateX((float) Math.toRadians(-rotation.x))
-			.rotateY((float) Math.toRadians(-rotation.y))
-			.rotateZ((float) Math.toRadians(-rotation.z))
-			.scale(gameItem.getScale())
-		;
-		modelViewMatrix.set(matrix);
-		return modelViewMatrix.mul(modelMatrix);
+		// Both are affine, which saves the bottom row
+		return matrix.mulAffine(gameItem.getModelMatrix(), modelViewMatrix);
 	}
 	
 	public Matrix4f getLightViewMatrix() {
@@ -115,16 +97,6 @@ public class Transformation {
 	}
 
 	public Matrix4f buildModelLightViewMatrix(GameItem gameItem, Matrix4f matrix) {
-		Vector3f rotation = gameItem.getRotation();
-		modelLightMatrix
-			.identity()
-			.translate(gameItem.getPosition())
-			.rotateX((float) Math.toRadians(-rotation.x))
-			.rotateY((float) Math.toRadians(-rotation.y))
-			.rotateZ((float) Math.toRadians(-rotation.z))
-			.scale(gameItem.getScale())
-		;
-		modelLightViewMatrix.set(matrix);
-		return modelLightViewMatrix.mul(modelLightMatrix);
+		return matrix.mulAffine(gameItem.getModelMatrix(), modelLightViewMatrix);
 	}
 }
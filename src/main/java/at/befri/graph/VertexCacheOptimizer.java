@@ -0,0 +1,274 @@
+package at.befri.graph;
+
+import java.util.Arrays;
+
+/**
+ * Reorders triangle lists for the post-transform vertex cache of the GPU.
+ * <p>
+ * {@link #optimizeTriangles} is Tom Forsyth's linear-speed vertex cache optimization: vertices are scored by their
+ * position in a simulated LRU cache and by how many triangles still use them, and the triangle with the highest
+ * summed score is emitted next. {@link #optimizeVertexFetch} then renumbers the vertices in the order they are
+ * first used, so the vertex fetches of the reordered triangles walk through the vertex buffer linearly.
+ * <p>
+ * The quality is reported as ACMR (average cache miss ratio, transformed vertices per triangle, 0.5 to 3) and ATVR
+ * (average transform to vertex ratio, 1 is optimal), measured on a FIFO cache of {@link #SIMULATED_CACHE_SIZE}
+ * entries.
+ */
+public class VertexCacheOptimizer {
+	public static final int SIMULATED_CACHE_SIZE = 16;
+
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	private static final int MAX_SCORED_VALENCE = 32;
+
+	private static final float[] CACHE_SCORES = new float[CACHE_SIZE];
+	private static final float[] VALENCE_SCORES = new float[MAX_SCORED_VALENCE + 1];
+
+	static {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			if (i < 3) {
+				// The vertices of the last triangle get a fixed score, so the next triangle does not simply
+				// reuse its edge and strips are not favoured over fans
+				CACHE_SCORES[i] = LAST_TRIANGLE_SCORE;
+			} else {
+				float scaler = 1.0f / (CACHE_SIZE - 3);
+				CACHE_SCORES[i] = (float) Math.pow(1.0f - (i - 3) * scaler, CACHE_DECAY_POWER);
+			}
+		}
+		for (int i = 1; i <= MAX_SCORED_VALENCE; i++) {
+			// Boost vertices with few remaining triangles to get rid of them and avoid lone triangles later
+			VALENCE_SCORES[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, -VALENCE_BOOST_POWER);
+		}
+	}
+
+	private VertexCacheOptimizer() {
+	}
+
+	/**
+	 * Returns the triangles of indices in cache friendly order.
+	 */
+	public static int[] optimizeTriangles(int[] indices, int vertexCount) {
+		int triangleCount = indices.length / 3;
+		if (triangleCount == 0) {
+			return indices.clone();
+		}
+
+		// Triangles per vertex as offsets into a flat adjacency array
+		int[] remaining = new int[vertexCount];
+		for (int index : indices) {
+			remaining[index]++;
+		}
+		int[] offsets = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] = offsets[v] + remaining[v];
+		}
+		int[] adjacency = new int[indices.length];
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		for (int i = 0; i < indices.length; i++) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+
+		float[] vertexScores = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			vertexScores[v] = vertexScore(-1, remaining[v]);
+		}
+		float[] triangleScores = new float[triangleCount];
+		for (int t = 0; t < triangleCount; t++) {
+			triangleScores[t] = vertexScores[indices[t * 3]] + vertexScores[indices[t * 3 + 1]]
+					+ vertexScores[indices[t * 3 + 2]];
+		}
+
+		boolean[] emitted = new boolean[triangleCount];
+		int[] result = new int[triangleCount * 3];
+		// Three extra slots for the vertices pushed out by the newest triangle
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] newCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int scanCursor = 0;
+		int best = -1;
+
+		for (int emittedCount = 0; emittedCount < triangleCount; emittedCount++) {
+			if (best < 0) {
+				// Nothing useful left in the cache, continue with the next triangle in input order
+				while (emitted[scanCursor]) {
+					scanCursor++;
+				}
+				best = scanCursor;
+			}
+
+			int a = indices[best * 3];
+			int b = indices[best * 3 + 1];
+			int c = indices[best * 3 + 2];
+			result[emittedCount * 3] = a;
+			result[emittedCount * 3 + 1] = b;
+			result[emittedCount * 3 + 2] = c;
+			emitted[best] = true;
+			removeTriangle(a, best, remaining, offsets, adjacency);
+			removeTriangle(b, best, remaining, offsets, adjacency);
+			removeTriangle(c, best, remaining, offsets, adjacency);
+
+			// Move the triangle's vertices to the front of the LRU cache
+			int newCount = 0;
+			newCache[newCount++] = a;
+			newCache[newCount++] = b;
+			newCache[newCount++] = c;
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				if (v != a && v != b && v != c) {
+					newCache[newCount++] = v;
+				}
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheCount = newCount;
+
+			// Rescore the cached vertices, including the ones that just fell out, and their triangles
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				float score = vertexScore(i < CACHE_SIZE ? i : -1, remaining[v]);
+				float delta = score - vertexScores[v];
+				vertexScores[v] = score;
+				for (int j = offsets[v], end = offsets[v] + remaining[v]; j < end; j++) {
+					triangleScores[adjacency[j]] += delta;
+				}
+			}
+			if (cacheCount > CACHE_SIZE) {
+				cacheCount = CACHE_SIZE;
+			}
+
+			best = -1;
+			float bestScore = 0;
+			for (int i = 0; i < cacheCount; i++) {
+				int v = cache[i];
+				for (int j = offsets[v], end = offsets[v] + remaining[v]; j < end; j++) {
+					int t = adjacency[j];
+					if (triangleScores[t] > bestScore) {
+						bestScore = triangleScores[t];
+						best = t;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Computes a vertex numbering in order of first use by the indices. Vertices that are not referenced at all
+	 * are moved to the end.
+	 *
+	 * @return the new index of every old vertex
+	 */
+	public static int[] optimizeVertexFetch(int[] indices, int vertexCount) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for (int index : indices) {
+			if (remap[index] < 0) {
+				remap[index] = next++;
+			}
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			if (remap[v] < 0) {
+				remap[v] = next++;
+			}
+		}
+		return remap;
+	}
+
+	/**
+	 * Counts the vertex transforms of drawing the indices with a FIFO post-transform cache.
+	 */
+	public static int countTransforms(int[] indices, int vertexCount, int cacheSize) {
+		// Timestamps instead of an explicit queue: a vertex is cached if it was transformed less than cacheSize
+		// transforms ago
+		int[] transformedAt = new int[vertexCount];
+		Arrays.fill(transformedAt, Integer.MIN_VALUE);
+		int transforms = 0;
+		for (int index : indices) {
+			if (transformedAt[index] == Integer.MIN_VALUE || transforms - transformedAt[index] > cacheSize) {
+				transformedAt[index] = transforms;
+				transforms++;
+			}
+		}
+		return transforms;
+	}
+
+	public static float acmr(int[] indices, int vertexCount) {
+		int triangleCount = indices.length / 3;
+		return triangleCount > 0 ? (float) countTransforms(indices, vertexCount, SIMULATED_CACHE_SIZE)
+				/ triangleCount : 0;
+	}
+
+	public static float atvr(int[] indices, int vertexCount) {
+		return vertexCount > 0 ? (float) countTransforms(indices, vertexCount, SIMULATED_CACHE_SIZE) / vertexCount
+				: 0;
+	}
+
+	private static float vertexScore(int cachePosition, int remainingTriangles) {
+		if (remainingTriangles == 0) {
+			// No triangle needs this vertex anymore
+			return -1.0f;
+		}
+		float score = cachePosition >= 0 ? CACHE_SCORES[cachePosition] : 0;
+		return score + VALENCE_SCORES[Math.min(remainingTriangles, MAX_SCORED_VALENCE)];
+	}
+
+	/**
+	 * Removes an emitted triangle from the live part of a vertex's adjacency list.
+	 */
+	private static void removeTriangle(int v, int triangle, int[] remaining, int[] offsets, int[] adjacency) {
+		int start = offsets[v];
+		int last = start + remaining[v] - 1;
+		for (int j = start; j <= last; j++) {
+			if (adjacency[j] == triangle) {
+				adjacency[j] = adjacency[last];
+				adjacency[last] = triangle;
+				remaining[v]--;
+				return;
+			}
+		}
+	}
+
+	public static class Stats {
+		private float acmrBefore;
+		private float atvrBefore;
+		private float acmrAfter;
+		private float atvrAfter;
+
+		public float getAcmrBefore() {
+			return acmrBefore;
+		}
+
+		public float getAtvrBefore() {
+			return atvrBefore;
+		}
+
+		public float getAcmrAfter() {
+			return acmrAfter;
+		}
+
+		public float getAtvrAfter() {
+			return atvrAfter;
+		}
+
+		void setBefore(float acmr, float atvr) {
+			acmrBefore = acmr;
+			atvrBefore = atvr;
+		}
+
+		void setAfter(float acmr, float atvr) {
+			acmrAfter = acmr;
+			atvrAfter = atvr;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("ACMR %.3f -> %.3f, ATVR %.3f -> %.3f", acmrBefore, acmrAfter, atvrBefore,
+					atvrAfter);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package at.befri.graph;
+
+/**
+ * Interleaved vertex formats. All layouts feed the same shader inputs: position (location 0), texture coordinates
+ * (1), normal (2) and tangent with the handedness in w (3); the bitangent is rebuilt in the vertex shader.
+ */
+public enum VertexLayout {
+	/**
+	 * position 3 x float, texture coordinates 2 x float, normal 3 x float, tangent 4 x float: 48 bytes
+	 */
+	FLOAT(48),
+	/**
+	 * position 3 x float, texture coordinates 2 x half float, normal and tangent as signed normalized
+	 * 10_10_10_2 (the tangent's 2 bit w holds the handedness): 24 bytes
+	 */
+	PACKED(24);
+
+	/**
+	 * Half floats lose more than a texel of a 1024 texture beyond this, so meshes with tiled UVs stay on FLOAT.
+	 */
+	private static final float MAX_PACKED_TEX_COORD = 2.0f;
+
+	private final int stride;
+
+	private VertexLayout(int stride) {
+		this.stride = stride;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Picks the most compact layout that represents the mesh without visible loss.
+	 */
+	public static VertexLayout choose(MeshData data) {
+		for (float texCoord : data.getTexCoords()) {
+			if (Math.abs(texCoord) > MAX_PACKED_TEX_COORD) {
+				return FLOAT;
+			}
+		}
+		return PACKED;
+	}
+}
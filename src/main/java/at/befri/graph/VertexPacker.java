@@ -0,0 +1,129 @@
+package at.befri.graph;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CPU side encoding of vertex attributes for the {@link VertexLayout}s. Does not use OpenGL.
+ */
+public class VertexPacker {
+
+	private VertexPacker() {
+	}
+
+	/**
+	 * Writes the vertices of the mesh data at the buffer's current position. Tangents must have been computed.
+	 */
+	public static void write(MeshData data, VertexLayout layout, ByteBuffer dest) {
+		float[] positions = data.getPositions();
+		float[] texCoords = data.getTexCoords();
+		float[] normals = data.getNormals();
+		float[] tangents = data.getTangents();
+		int vertexCount = data.getVertexCount();
+		for (int i = 0; i < vertexCount; i++) {
+			dest.putFloat(positions[i * 3]);
+			dest.putFloat(positions[i * 3 + 1]);
+			dest.putFloat(positions[i * 3 + 2]);
+			if (layout == VertexLayout.PACKED) {
+				dest.putShort(toHalf(texCoords[i * 2]));
+				dest.putShort(toHalf(texCoords[i * 2 + 1]));
+				dest.putInt(packSnorm(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2], 0));
+				dest.putInt(packSnorm(tangents[i * 4], tangents[i * 4 + 1], tangents[i * 4 + 2], tangents[i * 4 + 3]));
+			} else {
+				dest.putFloat(texCoords[i * 2]);
+				dest.putFloat(texCoords[i * 2 + 1]);
+				dest.putFloat(normals[i * 3]);
+				dest.putFloat(normals[i * 3 + 1]);
+				dest.putFloat(normals[i * 3 + 2]);
+				dest.putFloat(tangents[i * 4]);
+				dest.putFloat(tangents[i * 4 + 1]);
+				dest.putFloat(tangents[i * 4 + 2]);
+				dest.putFloat(tangents[i * 4 + 3]);
+			}
+		}
+	}
+
+	/**
+	 * Packs a vector into the GL_INT_2_10_10_10_REV format: x, y and z as 10 bit signed normalized values in the
+	 * low bits, w as a 2 bit signed value (-1, 0 or 1) in the top bits.
+	 */
+	public static int packSnorm(float x, float y, float z, float w) {
+		int ix = Math.round(clamp(x) * 511.0f) & 0x3FF;
+		int iy = Math.round(clamp(y) * 511.0f) & 0x3FF;
+		int iz = Math.round(clamp(z) * 511.0f) & 0x3FF;
+		int iw = Math.round(clamp(w)) & 0x3;
+		return ix | (iy << 10) | (iz << 20) | (iw << 30);
+	}
+
+	/**
+	 * Returns component 0 (x) to 3 (w) of a packed 10_10_10_2 value, the inverse of {@link #packSnorm}.
+	 */
+	public static float unpackSnorm(int packed, int component) {
+		if (component == 3) {
+			return packed >> 30;
+		}
+		// Shift the 10 bits to the top and back to sign extend them
+		int value = (packed << (22 - component * 10)) >> 22;
+		return Math.max(value / 511.0f, -1.0f);
+	}
+
+	/**
+	 * Converts to an IEEE 754 half float, rounding to nearest even. Out of range values become infinity, tiny
+	 * values become subnormals or zero.
+	 */
+	public static short toHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xFF;
+		int mantissa = bits & 0x7FFFFF;
+
+		if (exponent == 0xFF) {
+			// NaN or infinity
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		int halfExponent = exponent - 127 + 15;
+		if (halfExponent >= 0x1F) {
+			return (short) (sign | 0x7C00);
+		}
+		if (halfExponent <= 0) {
+			if (halfExponent < -10) {
+				return (short) sign;
+			}
+			// Subnormal: add the implicit leading bit and shift into place
+			mantissa |= 0x800000;
+			int shift = 14 - halfExponent;
+			int halfMantissa = mantissa >> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (remainder > halfway || (remainder == halfway && (halfMantissa & 1) != 0)) {
+				halfMantissa++;
+			}
+			return (short) (sign | halfMantissa);
+		}
+		int half = (halfExponent << 10) | (mantissa >> 13);
+		int remainder = mantissa & 0x1FFF;
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+			// Rounding may carry into the exponent, which is still correct (up to infinity)
+			half++;
+		}
+		return (short) (sign | half);
+	}
+
+	public static float fromHalf(short half) {
+		int bits = half & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+		if (exponent == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+		if (exponent == 0) {
+			float value = mantissa / 16777216.0f; // mantissa * 2^-24
+			return sign != 0 ? -value : value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	private static float clamp(float value) {
+		return Math.max(-1.0f, Math.min(1.0f, value));
+	}
+}
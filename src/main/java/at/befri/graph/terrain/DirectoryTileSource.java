@@ -0,0 +1,77 @@
+package at.befri.graph.terrain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tiles stored as heightmaps in a directory, one file per tile named &lt;x&gt;_&lt;z&gt; with the extension .png, .r16
+ * or .r32 for square raw {@link HeightGrid.RawFormat#R16} or {@link HeightGrid.RawFormat#R32F} files. The grid size
+ * is taken from the highest tile coordinates found, missing files are holes in the world.
+ */
+public class DirectoryTileSource implements TileSource {
+	private static final Pattern TILE_NAME = Pattern.compile("(\\d+)_(\\d+)\\.(png|r16|r32)");
+
+	private final Path directory;
+	private final float minY;
+	private final float maxY;
+	private final int tilesX;
+	private final int tilesZ;
+
+	/**
+	 * @param minY height of the darkest PNG color and of 0 in R16 files
+	 * @param maxY height of the brightest PNG color and of 65535 in R16 files
+	 */
+	public DirectoryTileSource(Path directory, float minY, float maxY) throws IOException {
+		this.directory = directory;
+		this.minY = minY;
+		this.maxY = maxY;
+		int maxX = -1;
+		int maxZ = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Matcher matcher = TILE_NAME.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					maxX = Math.max(maxX, Integer.parseInt(matcher.group(1)));
+					maxZ = Math.max(maxZ, Integer.parseInt(matcher.group(2)));
+				}
+			}
+		}
+		tilesX = maxX + 1;
+		tilesZ = maxZ + 1;
+	}
+
+	@Override
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	@Override
+	public int getTilesZ() {
+		return tilesZ;
+	}
+
+	@Override
+	public HeightGrid loadTile(int tileX, int tileZ) throws Exception {
+		String name = tileX + "_" + tileZ;
+		Path file = directory.resolve(name + ".r16");
+		if (Files.isRegularFile(file)) {
+			return HeightGrid.fromRaw(file, HeightGrid.RawFormat.R16, minY, maxY);
+		}
+		file = directory.resolve(name + ".r32");
+		if (Files.isRegularFile(file)) {
+			return HeightGrid.fromRaw(file, HeightGrid.RawFormat.R32F, minY, maxY);
+		}
+		file = directory.resolve(name + ".png");
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try (InputStream in = Files.newInputStream(file)) {
+			return HeightGrid.fromHeightMap(in, minY, maxY);
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package at.befri.graph.terrain;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Erodes a {@link HeightGrid} in place, with hydraulic erosion by simulated water droplets that pick up sediment
+ * going downhill and drop it where they slow down, followed by thermal erosion, which lets material slide down
+ * slopes steeper than the talus slope.
+ * <p>
+ * Droplets run in parallel on tiles of {@link #TILE_SIZE} samples. A droplet starts in its tile and stops when it
+ * leaves the tile and a margin around it; tiles running at the same time are a tile apart, so they never touch the
+ * same samples. Every tile runs its droplets in order with a random generator seeded from the seed, the round and
+ * the tile, and the tiles run in the same four phases every round, so a seed always gives the same heights
+ * regardless of the number of threads. Thermal erosion moves material between neighbours from the heights of the
+ * previous iteration only, so its rows are independent.
+ */
+public class HeightErosion {
+	/**
+	 * Samples per side of the tiles droplets run on in parallel
+	 */
+	private static final int TILE_SIZE = 64;
+	/**
+	 * How far droplets may run beyond their tile, a quarter tile leaves room for the brush radius
+	 */
+	private static final int TILE_MARGIN = TILE_SIZE / 4;
+	private static final int MAX_RADIUS = 8;
+
+	private final long seed;
+	private float dropletDensity;
+	private int rounds;
+	private int lifetime;
+	private float inertia;
+	private float capacity;
+	private float minCapacity;
+	private float erosion;
+	private float deposition;
+	private float evaporation;
+	private float gravity;
+	private int radius;
+	private int thermalIterations;
+	private float talus;
+	private float thermalRate;
+
+	public HeightErosion(long seed) {
+		this.seed = seed;
+		dropletDensity = 1;
+		rounds = 8;
+		lifetime = 30;
+		inertia = 0.05f;
+		capacity = 4;
+		minCapacity = 0.01f;
+		erosion = 0.3f;
+		deposition = 0.3f;
+		evaporation = 0.01f;
+		gravity = 4;
+		radius = 3;
+		thermalIterations = 20;
+		talus = 0.8f;
+		thermalRate = 0.5f;
+	}
+
+	/**
+	 * Droplets per grid sample
+	 */
+	public HeightErosion setDropletDensity(float dropletDensity) {
+		this.dropletDensity = dropletDensity;
+		return this;
+	}
+
+	/**
+	 * Rounds the droplets are spread over, more rounds hide the order the tiles are eroded in
+	 */
+	public HeightErosion setRounds(int rounds) {
+		this.rounds = Math.max(1, rounds);
+		return this;
+	}
+
+	/**
+	 * Steps of one cell a droplet takes at most
+	 */
+	public HeightErosion setLifetime(int lifetime) {
+		this.lifetime = lifetime;
+		return this;
+	}
+
+	/**
+	 * How much of its direction a droplet keeps against the slope, 0 to 1
+	 */
+	public HeightErosion setInertia(float inertia) {
+		this.inertia = inertia;
+		return this;
+	}
+
+	/**
+	 * Sediment a droplet can carry per unit of drop, speed and water
+	 */
+	public HeightErosion setCapacity(float capacity) {
+		this.capacity = capacity;
+		return this;
+	}
+
+	/**
+	 * Capacity on flat ground, so droplets keep carving shallow slopes
+	 */
+	public HeightErosion setMinCapacity(float minCapacity) {
+		this.minCapacity = minCapacity;
+		return this;
+	}
+
+	/**
+	 * Part of the free capacity a droplet erodes per step, 0 to 1
+	 */
+	public HeightErosion setErosion(float erosion) {
+		this.erosion = erosion;
+		return this;
+	}
+
+	/**
+	 * Part of the excess sediment a droplet deposits per step, 0 to 1
+	 */
+	public HeightErosion setDeposition(float deposition) {
+		this.deposition = deposition;
+		return this;
+	}
+
+	/**
+	 * Part of its water a droplet loses per step, 0 to 1
+	 */
+	public HeightErosion setEvaporation(float evaporation) {
+		this.evaporation = evaporation;
+		return this;
+	}
+
+	public HeightErosion setGravity(float gravity) {
+		this.gravity = gravity;
+		return this;
+	}
+
+	/**
+	 * Radius in samples droplets erode in, 1 to 8
+	 */
+	public HeightErosion setRadius(int radius) {
+		this.radius = Math.max(1, Math.min(MAX_RADIUS, radius));
+		return this;
+	}
+
+	/**
+	 * Iterations of thermal erosion, 0 turns it off
+	 */
+	public HeightErosion setThermalIterations(int thermalIterations) {
+		this.thermalIterations = thermalIterations;
+		return this;
+	}
+
+	/**
+	 * Slope, as height per horizontal distance, beyond which material slides down
+	 */
+	public HeightErosion setTalus(float talus) {
+		this.talus = talus;
+		return this;
+	}
+
+	/**
+	 * Part of the material above the talus slope that slides per iteration, 0 to 1
+	 */
+	public HeightErosion setThermalRate(float thermalRate) {
+		this.thermalRate = thermalRate;
+		return this;
+	}
+
+	/**
+	 * Erodes the grid in place. cellSize is the horizontal distance between samples in the units of the heights,
+	 * 1 / (width - 1) for a {@link Terrain} of the grid, which spans one unit before scaling.
+	 *
+	 * @return the grid
+	 */
+	public HeightGrid apply(HeightGrid grid, float cellSize) {
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		float[] heights = grid.getHeights();
+		// Simulate in units of cells, so the parameters do not depend on the size of the grid
+		float toCells = 1 / cellSize;
+		for (int i = 0; i < heights.length; i++) {
+			heights[i] *= toCells;
+		}
+
+		if (width > 1 && height > 1) {
+			erodeHydraulic(heights, width, height);
+		}
+		for (int i = 0; i < thermalIterations; i++) {
+			heights = erodeThermal(heights, width, height);
+		}
+
+		float[] gridHeights = grid.getHeights();
+		for (int i = 0; i < heights.length; i++) {
+			gridHeights[i] = heights[i] * cellSize;
+		}
+		return grid;
+	}
+
+	private void erodeHydraulic(float[] heights, int width, int height) {
+		int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		int tilesZ = (height + TILE_SIZE - 1) / TILE_SIZE;
+		Brush brush = new Brush(radius);
+		for (int round = 0; round < rounds; round++) {
+			int r = round;
+			for (int phase = 0; phase < 4; phase++) {
+				int phaseX = phase & 1;
+				int phaseZ = phase >> 1;
+				int phaseTilesX = (tilesX - phaseX + 1) / 2;
+				int phaseTilesZ = (tilesZ - phaseZ + 1) / 2;
+				IntStream.range(0, phaseTilesX * phaseTilesZ).parallel().forEach(i -> {
+					int tx = phaseX + i % phaseTilesX * 2;
+					int tz = phaseZ + i / phaseTilesX * 2;
+					erodeTile(heights, width, height, tx, tz, (long) r * tilesX * tilesZ + tz * tilesX + tx, brush);
+				});
+			}
+		}
+	}
+
+	/**
+	 * Runs the droplets of a tile in one round, run is the index of the tile among all tiles of all rounds.
+	 */
+	private void erodeTile(float[] heights, int width, int height, int tx, int tz, long run, Brush brush) {
+		int x0 = tx * TILE_SIZE;
+		int z0 = tz * TILE_SIZE;
+		int x1 = Math.min(width - 1, x0 + TILE_SIZE);
+		int z1 = Math.min(height - 1, z0 + TILE_SIZE);
+		if (x0 >= x1 || z0 >= z1) {
+			return;
+		}
+		// Droplets need the four samples around them
+		float minX = Math.max(0, x0 - TILE_MARGIN);
+		float minZ = Math.max(0, z0 - TILE_MARGIN);
+		float maxX = Math.min(width - 1, x1 + TILE_MARGIN);
+		float maxZ = Math.min(height - 1, z1 + TILE_MARGIN);
+
+		SplittableRandom random = new SplittableRandom(seed ^ run * 0x9E3779B97F4A7C15L);
+		int droplets = Math.round(dropletDensity * (x1 - x0) * (z1 - z0) / rounds);
+		float[] gradient = new float[3];
+		for (int d = 0; d < droplets; d++) {
+			float x = (float) (x0 + random.nextDouble() * (x1 - x0));
+			float z = (float) (z0 + random.nextDouble() * (z1 - z0));
+			if (x >= x1 || z >= z1) {
+				// Rounded up to the next tile
+				continue;
+			}
+			float dirX = 0;
+			float dirZ = 0;
+			float speed = 1;
+			float water = 1;
+			float sediment = 0;
+			float lastX = x;
+			float lastZ = z;
+			for (int step = 0; step < lifetime; step++) {
+				lastX = x;
+				lastZ = z;
+				heightAndGradient(heights, width, x, z, gradient);
+				float h = gradient[0];
+
+				dirX = dirX * inertia - gradient[1] * (1 - inertia);
+				dirZ = dirZ * inertia - gradient[2] * (1 - inertia);
+				float length = (float) Math.sqrt(dirX * dirX + dirZ * dirZ);
+				if (length == 0) {
+					break;
+				}
+				dirX /= length;
+				dirZ /= length;
+				x += dirX;
+				z += dirZ;
+				if (x < minX || x >= maxX || z < minZ || z >= maxZ) {
+					break;
+				}
+
+				heightAndGradient(heights, width, x, z, gradient);
+				float deltaHeight = gradient[0] - h;
+				float dropCapacity = Math.max(-deltaHeight * speed * water * capacity, minCapacity);
+				if (sediment > dropCapacity || deltaHeight > 0) {
+					// Fill the pit the droplet climbs out of, or drop a part of the excess
+					float amount = deltaHeight > 0 ? Math.min(deltaHeight, sediment)
+							: (sediment - dropCapacity) * deposition;
+					sediment -= amount;
+					deposit(heights, width, lastX, lastZ, amount);
+				} else {
+					// Never dig deeper than the drop, that would leave a pit behind the droplet
+					float amount = Math.min((dropCapacity - sediment) * erosion, -deltaHeight);
+					sediment += brush.erode(heights, width, height, (int) lastX, (int) lastZ, amount);
+				}
+
+				speed = (float) Math.sqrt(Math.max(0, speed * speed - deltaHeight * gravity));
+				water *= 1 - evaporation;
+			}
+			// Drop what is left where the droplet ends, so no material is lost
+			deposit(heights, width, lastX, lastZ, sediment);
+		}
+	}
+
+	private static void deposit(float[] heights, int width, float x, float z, float amount) {
+		int col = (int) x;
+		int row = (int) z;
+		float u = x - col;
+		float v = z - row;
+		int i = row * width + col;
+		heights[i] += amount * (1 - u) * (1 - v);
+		heights[i + 1] += amount * u * (1 - v);
+		heights[i + width] += amount * (1 - u) * v;
+		heights[i + width + 1] += amount * u * v;
+	}
+
+	/**
+	 * Bilinear height and gradient at a position within the grid into dest as height, x and z slope.
+	 */
+	private static void heightAndGradient(float[] heights, int width, float x, float z, float[] dest) {
+		int col = (int) x;
+		int row = (int) z;
+		float u = x - col;
+		float v = z - row;
+		int i = row * width + col;
+		float h00 = heights[i];
+		float h10 = heights[i + 1];
+		float h01 = heights[i + width];
+		float h11 = heights[i + width + 1];
+		dest[0] = h00 * (1 - u) * (1 - v) + h10 * u * (1 - v) + h01 * (1 - u) * v + h11 * u * v;
+		dest[1] = (h10 - h00) * (1 - v) + (h11 - h01) * v;
+		dest[2] = (h01 - h00) * (1 - u) + (h11 - h10) * u;
+	}
+
+	/**
+	 * Moves material from cells steeper than the talus slope to their lower neighbours, 8 of them, with the
+	 * diagonal ones sqrt(2) away. Each pair exchanges the same amount in both directions, so no material is lost,
+	 * and at most half of the excess per neighbour, so nothing overshoots.
+	 */
+	private float[] erodeThermal(float[] heights, int width, int height) {
+		float[] result = new float[heights.length];
+		float diagonalTalus = talus * 1.4142135f;
+		float rate = thermalRate / 16;
+		IntStream.range(0, height).parallel().forEach(row -> {
+			for (int col = 0; col < width; col++) {
+				int i = row * width + col;
+				float h = heights[i];
+				float delta = 0;
+				for (int dz = -1; dz <= 1; dz++) {
+					int r = row + dz;
+					if (r < 0 || r >= height) {
+						continue;
+					}
+					for (int dx = -1; dx <= 1; dx++) {
+						int c = col + dx;
+						if (c < 0 || c >= width || (dx == 0 && dz == 0)) {
+							continue;
+						}
+						float limit = dx != 0 && dz != 0 ? diagonalTalus : talus;
+						float difference = heights[r * width + c] - h;
+						if (difference > limit) {
+							delta += (difference - limit) * rate;
+						} else if (difference < -limit) {
+							delta += (difference + limit) * rate;
+						}
+					}
+				}
+				result[i] = h + delta;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Offsets and weights of the samples within a radius, weighted by their distance to the edge
+	 */
+	private static class Brush {
+		private final int[] offsetsX;
+		private final int[] offsetsZ;
+		private final float[] weights;
+
+		Brush(int radius) {
+			int size = 0;
+			int capacity = (2 * radius + 1) * (2 * radius + 1);
+			int[] x = new int[capacity];
+			int[] z = new int[capacity];
+			float[] w = new float[capacity];
+			for (int dz = -radius; dz <= radius; dz++) {
+				for (int dx = -radius; dx <= radius; dx++) {
+					float weight = radius - (float) Math.sqrt(dx * dx + dz * dz);
+					if (weight > 0) {
+						x[size] = dx;
+						z[size] = dz;
+						w[size++] = weight;
+					}
+				}
+			}
+			offsetsX = new int[size];
+			offsetsZ = new int[size];
+			weights = new float[size];
+			System.arraycopy(x, 0, offsetsX, 0, size);
+			System.arraycopy(z, 0, offsetsZ, 0, size);
+			System.arraycopy(w, 0, weights, 0, size);
+		}
+
+		/**
+		 * Removes amount around a sample, spread by the weights of the samples within the grid. Returns the amount
+		 * removed.
+		 */
+		float erode(float[] heights, int width, int height, int col, int row, float amount) {
+			float total = 0;
+			for (int k = 0; k < weights.length; k++) {
+				int c = col + offsetsX[k];
+				int r = row + offsetsZ[k];
+				if (c >= 0 && c < width && r >= 0 && r < height) {
+					total += weights[k];
+				}
+			}
+			float eroded = 0;
+			for (int k = 0; k < weights.length; k++) {
+				int c = col + offsetsX[k];
+				int r = row + offsetsZ[k];
+				if (c >= 0 && c < width && r >= 0 && r < height) {
+					float share = amount * weights[k] / total;
+					heights[r * width + c] -= share;
+					eroded += share;
+				}
+			}
+			return eroded;
+		}
+	}
+}
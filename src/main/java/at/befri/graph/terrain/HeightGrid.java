@@ -0,0 +1,209 @@
+package at.befri.graph.terrain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+import org.joml.Vector3f;
+
+import de.matthiasmann.twl.utils.PNGDecoder;
+
+/**
+ * Row major grid of terrain heights. Column and row indices outside the grid are clamped to its border.
+ */
+public class HeightGrid {
+	/**
+	 * Headerless little endian heightmaps, row by row
+	 */
+	public enum RawFormat {
+		/**
+		 * Unsigned 16 bit integers, mapped to the requested height range
+		 */
+		R16(2),
+		/**
+		 * 32 bit floats, used as they are
+		 */
+		R32F(4);
+
+		private final int sampleSize;
+
+		RawFormat(int sampleSize) {
+			this.sampleSize = sampleSize;
+		}
+
+		public int getSampleSize() {
+			return sampleSize;
+		}
+	}
+
+	private static final int MAX_COLOR = 255 * 255 * 255;
+	private static final int MAX_R16 = 0xFFFF;
+
+	private final int width;
+	private final int height;
+	private final float[] heights;
+
+	public HeightGrid(int width, int height, float[] heights) {
+		if (width < 2 || height < 2 || heights.length != width * height) {
+			throw new IllegalArgumentException("Invalid height grid " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		this.heights = heights;
+	}
+
+	/**
+	 * Reads the heights from the colors of a PNG heightmap, scaled to the range minY to maxY.
+	 */
+	public static HeightGrid fromHeightMap(InputStream heightMapInputStream, float minY, float maxY)
+			throws Exception {
+		PNGDecoder decoder = new PNGDecoder(heightMapInputStream);
+		int width = decoder.getWidth();
+		int height = decoder.getHeight();
+		ByteBuffer buf = ByteBuffer.allocateDirect(4 * width * height);
+		decoder.decode(buf, width * 4, PNGDecoder.Format.RGBA);
+		buf.flip();
+
+		float[] heights = new float[width * height];
+		IntStream.range(0, height).parallel().forEach(row -> {
+			for (int col = 0; col < width; col++) {
+				heights[row * width + col] = getHeight(col, row, width, buf, minY, maxY);
+			}
+		});
+		return new HeightGrid(width, height, heights);
+	}
+
+	/**
+	 * Reads a square raw heightmap, the size follows from the file length. See
+	 * {@link #fromRaw(Path, int, int, RawFormat, float, float)}.
+	 */
+	public static HeightGrid fromRaw(Path path, RawFormat format, float minY, float maxY) throws IOException {
+		long samples = Files.size(path) / format.getSampleSize();
+		int size = (int) Math.round(Math.sqrt(samples));
+		if ((long) size * size != samples) {
+			throw new IOException("Raw heightmap " + path + " is not square, give its size explicitly");
+		}
+		return fromRaw(path, size, size, format, minY, maxY);
+	}
+
+	/**
+	 * Reads a raw heightmap. The file is memory mapped and converted in parallel rows, without an intermediate
+	 * decode buffer. minY and maxY are the heights of 0 and 65535 for {@link RawFormat#R16} and ignored for
+	 * {@link RawFormat#R32F}.
+	 */
+	public static HeightGrid fromRaw(Path path, int width, int height, RawFormat format, float minY, float maxY)
+			throws IOException {
+		long bytes = (long) width * height * format.getSampleSize();
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (fc.size() != bytes) {
+				throw new IOException("Raw heightmap " + path + " has " + fc.size() + " bytes, expected " + bytes
+						+ " for " + width + "x" + height + " " + format);
+			}
+			ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, bytes).order(ByteOrder.LITTLE_ENDIAN);
+			float[] heights = new float[width * height];
+			float scale = (maxY - minY) / MAX_R16;
+			IntStream.range(0, height).parallel().forEach(row -> {
+				int offset = row * width;
+				if (format == RawFormat.R16) {
+					for (int col = 0; col < width; col++) {
+						heights[offset + col] = minY + (buf.getShort((offset + col) * 2) & 0xFFFF) * scale;
+					}
+				} else {
+					for (int col = 0; col < width; col++) {
+						heights[offset + col] = buf.getFloat((offset + col) * 4);
+					}
+				}
+			});
+			return new HeightGrid(width, height, heights);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * The backing array, row by row.
+	 */
+	public float[] getHeights() {
+		return heights;
+	}
+
+	public float get(int col, int row) {
+		col = Math.max(0, Math.min(width - 1, col));
+		row = Math.max(0, Math.min(height - 1, row));
+		return heights[row * width + col];
+	}
+
+	/**
+	 * Bilinearly interpolated height at fractional grid coordinates, clamped to the grid.
+	 */
+	public float sample(float col, float row) {
+		col = Math.max(0, Math.min(width - 1, col));
+		row = Math.max(0, Math.min(height - 1, row));
+		int c = Math.min((int) col, width - 2);
+		int r = Math.min((int) row, height - 2);
+		float fx = col - c;
+		float fz = row - r;
+		int i = r * width + c;
+		float top = heights[i] + (heights[i + 1] - heights[i]) * fx;
+		float bottom = heights[i + width] + (heights[i + width + 1] - heights[i + width]) * fx;
+		return top + (bottom - top) * fz;
+	}
+
+	/**
+	 * Surface normal at fractional grid coordinates from central differences one cell apart, one sided at the
+	 * borders, which matches the vertex normals of the terrain mesh at the grid points. cellWidth and cellDepth are
+	 * the sample spacing along columns and rows in the same unit as the heights.
+	 */
+	public Vector3f sampleNormal(float col, float row, float cellWidth, float cellDepth, Vector3f dest) {
+		col = Math.max(0, Math.min(width - 1, col));
+		row = Math.max(0, Math.min(height - 1, row));
+		// Divide by the distance actually sampled, which is shorter where a border clamps one side
+		float left = Math.max(col - 1, 0);
+		float right = Math.min(col + 1, width - 1);
+		float top = Math.max(row - 1, 0);
+		float bottom = Math.min(row + 1, height - 1);
+		float dx = right > left ? (sample(right, row) - sample(left, row)) / ((right - left) * cellWidth) : 0;
+		float dz = bottom > top ? (sample(col, bottom) - sample(col, top)) / ((bottom - top) * cellDepth) : 0;
+		// Normal of the surface y = h(x, z) is (-dh/dx, 1, -dh/dz)
+		return dest.set(-dx, 1, -dz).normalize();
+	}
+
+	/**
+	 * Lowest and highest height of the samples in the inclusive column and row ranges, stored in minMax.
+	 */
+	public void getRange(int fromCol, int fromRow, int toCol, int toRow, float[] minMax) {
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int row = fromRow; row <= toRow; row++) {
+			int offset = row * width;
+			for (int col = fromCol; col <= toCol; col++) {
+				float h = heights[offset + col];
+				min = Math.min(min, h);
+				max = Math.max(max, h);
+			}
+		}
+		minMax[0] = min;
+		minMax[1] = max;
+	}
+
+	private static float getHeight(int x, int z, int width, ByteBuffer buffer, float minY, float maxY) {
+		byte r = buffer.get(x * 4 + 0 + z * 4 * width);
+		byte g = buffer.get(x * 4 + 1 + z * 4 * width);
+		byte b = buffer.get(x * 4 + 2 + z * 4 * width);
+		byte a = buffer.get(x * 4 + 3 + z * 4 * width);
+		int argb = ((0xFF & a) << 24) | ((0xFF & r) << 16) | ((0xFF & g) << 8) | (0xFF & b);
+		return minY + Math.abs(maxY - minY) * ((float) argb / (float) MAX_COLOR);
+	}
+}
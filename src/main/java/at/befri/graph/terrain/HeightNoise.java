@@ -0,0 +1,208 @@
+package at.befri.graph.terrain;
+
+import java.util.stream.IntStream;
+
+/**
+ * Seeded procedural heights from 2D gradient noise. The lattice gradients come from an integer hash of the cell
+ * coordinates and the seed instead of a permutation table, so the noise does not repeat and the same seed gives
+ * the same heights everywhere, regardless of the order or the thread the samples are computed on.
+ * <p>
+ * Octaves of the noise are combined as fractal Brownian motion ({@link Type#FBM}), as ridged multifractal for
+ * mountain ridges ({@link Type#RIDGED}) or as fBm of coordinates displaced by two other fBm fields
+ * ({@link Type#WARPED}), which bends the features into flowing shapes.
+ */
+public class HeightNoise {
+	public enum Type {
+		FBM, RIDGED, WARPED
+	}
+
+	/**
+	 * Scales the gradient noise of unit gradients to about -1 to 1
+	 */
+	private static final float NOISE_SCALE = 1.4142135f;
+	private static final float[] GRADIENTS_X = { 1, -1, 0, 0, 0.70710677f, -0.70710677f, 0.70710677f, -0.70710677f };
+	private static final float[] GRADIENTS_Z = { 0, 0, 1, -1, 0.70710677f, 0.70710677f, -0.70710677f, -0.70710677f };
+	/**
+	 * Offsets of the two warp fields, so they are not correlated with the warped one
+	 */
+	private static final double WARP_OFFSET_X = 5.2;
+	private static final double WARP_OFFSET_Z = 1.3;
+
+	private final int seed;
+	private Type type;
+	private double frequency;
+	private int octaves;
+	private float lacunarity;
+	private float gain;
+	private float warp;
+
+	public HeightNoise(long seed) {
+		this.seed = (int) (seed ^ (seed >>> 32));
+		type = Type.FBM;
+		frequency = 1;
+		octaves = 6;
+		lacunarity = 2;
+		gain = 0.5f;
+		warp = 1;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public HeightNoise setType(Type type) {
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Features of the first octave per unit
+	 */
+	public HeightNoise setFrequency(double frequency) {
+		this.frequency = frequency;
+		return this;
+	}
+
+	public HeightNoise setOctaves(int octaves) {
+		this.octaves = octaves;
+		return this;
+	}
+
+	/**
+	 * Frequency factor from one octave to the next
+	 */
+	public HeightNoise setLacunarity(float lacunarity) {
+		this.lacunarity = lacunarity;
+		return this;
+	}
+
+	/**
+	 * Amplitude factor from one octave to the next
+	 */
+	public HeightNoise setGain(float gain) {
+		this.gain = gain;
+		return this;
+	}
+
+	/**
+	 * Displacement of the {@link Type#WARPED} coordinates in units of the first octave
+	 */
+	public HeightNoise setWarp(float warp) {
+		this.warp = warp;
+		return this;
+	}
+
+	/**
+	 * Value at a position, about -1 to 1.
+	 */
+	public float sample(double x, double z) {
+		x *= frequency;
+		z *= frequency;
+		switch (type) {
+		case RIDGED:
+			return ridged(x, z);
+		case WARPED:
+			double qx = fbm(x, z);
+			double qz = fbm(x + WARP_OFFSET_X, z + WARP_OFFSET_Z);
+			return fbm(x + warp * qx, z + warp * qz);
+		default:
+			return fbm(x, z);
+		}
+	}
+
+	/**
+	 * Generates a width x height grid covering size x size units from x0, z0, with the noise mapped to minY to
+	 * maxY. The last column and row lie exactly on x0 + size and z0 + size, so grids generated side by side share
+	 * their border samples. Rows are generated in parallel.
+	 */
+	public HeightGrid generate(int width, int height, double x0, double z0, double size, float minY, float maxY) {
+		float[] heights = new float[width * height];
+		float halfRange = (maxY - minY) * 0.5f;
+		IntStream.range(0, height).parallel().forEach(row -> {
+			double z = z0 + row * size / (height - 1);
+			int offset = row * width;
+			for (int col = 0; col < width; col++) {
+				double x = x0 + col * size / (width - 1);
+				heights[offset + col] = minY + (sample(x, z) + 1) * halfRange;
+			}
+		});
+		return new HeightGrid(width, height, heights);
+	}
+
+	private float fbm(double x, double z) {
+		float sum = 0;
+		float amplitude = 1;
+		float amplitudes = 0;
+		for (int i = 0; i < octaves; i++) {
+			sum += noise(x, z) * amplitude;
+			amplitudes += amplitude;
+			amplitude *= gain;
+			x *= lacunarity;
+			z *= lacunarity;
+		}
+		return sum / amplitudes;
+	}
+
+	/**
+	 * Musgrave's ridged multifractal: sharp creases where the noise crosses zero, with the detail of higher
+	 * octaves weighted by the lower ones, so valleys stay smooth.
+	 */
+	private float ridged(double x, double z) {
+		float sum = 0;
+		float amplitude = 1;
+		float amplitudes = 0;
+		float weight = 1;
+		for (int i = 0; i < octaves; i++) {
+			float signal = 1 - Math.abs(noise(x, z));
+			signal *= signal * weight;
+			weight = Math.max(0, Math.min(1, signal * 2 * gain));
+			sum += signal * amplitude;
+			amplitudes += amplitude;
+			amplitude *= gain;
+			x *= lacunarity;
+			z *= lacunarity;
+		}
+		return sum / amplitudes * 2 - 1;
+	}
+
+	/**
+	 * Gradient noise with quintic interpolation, about -1 to 1.
+	 */
+	private float noise(double x, double z) {
+		double floorX = Math.floor(x);
+		double floorZ = Math.floor(z);
+		int ix = (int) (long) floorX;
+		int iz = (int) (long) floorZ;
+		float fx = (float) (x - floorX);
+		float fz = (float) (z - floorZ);
+
+		float n00 = gradient(ix, iz, fx, fz);
+		float n10 = gradient(ix + 1, iz, fx - 1, fz);
+		float n01 = gradient(ix, iz + 1, fx, fz - 1);
+		float n11 = gradient(ix + 1, iz + 1, fx - 1, fz - 1);
+
+		float u = fade(fx);
+		float v = fade(fz);
+		float n0 = n00 + (n10 - n00) * u;
+		float n1 = n01 + (n11 - n01) * u;
+		return (n0 + (n1 - n0) * v) * NOISE_SCALE;
+	}
+
+	private float gradient(int ix, int iz, float dx, float dz) {
+		int g = hash(ix, iz) & 7;
+		return GRADIENTS_X[g] * dx + GRADIENTS_Z[g] * dz;
+	}
+
+	private int hash(int ix, int iz) {
+		int h = seed ^ ix * 0x27D4EB2D ^ iz * 0x165667B1;
+		h ^= h >>> 15;
+		h *= 0x2C1B3C6D;
+		h ^= h >>> 12;
+		h *= 0x297A2D39;
+		return h ^ (h >>> 15);
+	}
+
+	private static float fade(float t) {
+		return t * t * t * (t * (t * 6 - 15) + 10);
+	}
+}
@@ -0,0 +1,237 @@
+package at.befri.graph.terrain;
+
+/**
+ * Min/max mip pyramid over the cells of a {@link HeightGrid} for ray queries. Level 0 holds the lowest and highest
+ * corner of every cell between four samples, each level above the range of 2 x 2 cells of the level below, up to
+ * a single cell covering the grid.
+ * <p>
+ * Rays descend from the top and only enter cells whose box of columns, rows and heights they pass through, nearest
+ * first, so empty space above and below the surface is skipped a whole cell of a level at a time. A ray takes
+ * about log2 of the grid size steps to reach the surface, plus the level 0 cells it grazes. Queries only read, so
+ * any number can run in parallel as long as the grid does not change.
+ */
+public class HeightPyramid {
+	/**
+	 * Tolerance of the triangle tests, in cells, so rays through shared edges do not slip through
+	 */
+	private static final float EDGE_EPSILON = 1e-4f;
+
+	private final HeightGrid grid;
+	private final int[] levelWidths;
+	private final int[] levelHeights;
+	private final float[][] minY;
+	private final float[][] maxY;
+
+	public HeightPyramid(HeightGrid grid) {
+		this.grid = grid;
+		int width = Math.max(1, grid.getWidth() - 1);
+		int height = Math.max(1, grid.getHeight() - 1);
+		int levels = 1;
+		while ((1 << (levels - 1)) < Math.max(width, height)) {
+			levels++;
+		}
+		levelWidths = new int[levels];
+		levelHeights = new int[levels];
+		minY = new float[levels][];
+		maxY = new float[levels][];
+		for (int level = 0; level < levels; level++) {
+			levelWidths[level] = width;
+			levelHeights[level] = height;
+			minY[level] = new float[width * height];
+			maxY[level] = new float[width * height];
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+		}
+		update(0, 0, grid.getWidth() - 1, grid.getHeight() - 1);
+	}
+
+	public int getLevelCount() {
+		return levelWidths.length;
+	}
+
+	/**
+	 * Recomputes the cells touching the samples from fromCol, fromRow to toCol, toRow after the grid changed.
+	 */
+	public void update(int fromCol, int fromRow, int toCol, int toRow) {
+		int width = grid.getWidth();
+		float[] heights = grid.getHeights();
+		int fromX = Math.max(0, fromCol - 1);
+		int fromZ = Math.max(0, fromRow - 1);
+		int toX = Math.min(levelWidths[0] - 1, toCol);
+		int toZ = Math.min(levelHeights[0] - 1, toRow);
+		for (int z = fromZ; z <= toZ; z++) {
+			for (int x = fromX; x <= toX; x++) {
+				int i = z * width + x;
+				// Grids of a single column or row repeat it
+				int right = x + 1 < width ? 1 : 0;
+				int down = z + 1 < grid.getHeight() ? width : 0;
+				float h00 = heights[i];
+				float h10 = heights[i + right];
+				float h01 = heights[i + down];
+				float h11 = heights[i + down + right];
+				int cell = z * levelWidths[0] + x;
+				minY[0][cell] = Math.min(Math.min(h00, h10), Math.min(h01, h11));
+				maxY[0][cell] = Math.max(Math.max(h00, h10), Math.max(h01, h11));
+			}
+		}
+		for (int level = 1; level < levelWidths.length; level++) {
+			fromX >>= 1;
+			fromZ >>= 1;
+			toX >>= 1;
+			toZ >>= 1;
+			int childWidth = levelWidths[level - 1];
+			int childHeight = levelHeights[level - 1];
+			float[] childMin = minY[level - 1];
+			float[] childMax = maxY[level - 1];
+			for (int z = fromZ; z <= toZ; z++) {
+				for (int x = fromX; x <= toX; x++) {
+					float min = Float.POSITIVE_INFINITY;
+					float max = Float.NEGATIVE_INFINITY;
+					for (int cz = z * 2; cz <= Math.min(z * 2 + 1, childHeight - 1); cz++) {
+						for (int cx = x * 2; cx <= Math.min(x * 2 + 1, childWidth - 1); cx++) {
+							min = Math.min(min, childMin[cz * childWidth + cx]);
+							max = Math.max(max, childMax[cz * childWidth + cx]);
+						}
+					}
+					int cell = z * levelWidths[level] + x;
+					minY[level][cell] = min;
+					maxY[level][cell] = max;
+				}
+			}
+		}
+	}
+
+	/**
+	 * First hit of a ray in grid coordinates, x and z in columns and rows and y in height units, with the
+	 * triangles of the full resolution terrain mesh. Returns the ray parameter t of the hit, origin + t *
+	 * direction, between 0 and maxT, or -1 if there is none.
+	 */
+	public float intersect(float x, float y, float z, float dirX, float dirY, float dirZ, float maxT) {
+		return intersect(new Ray(x, y, z, dirX, dirY, dirZ, maxT), levelWidths.length - 1, 0, 0, 0, maxT);
+	}
+
+	private float intersect(Ray ray, int level, int cellX, int cellZ, float tMin, float tMax) {
+		int size = 1 << level;
+		int lastCol = grid.getWidth() - 1;
+		int lastRow = grid.getHeight() - 1;
+		int cell = cellZ * levelWidths[level] + cellX;
+		float t0 = tMin;
+		float t1 = tMax;
+		// Slabs of the cell's box
+		if (ray.dirX != 0) {
+			float a = (cellX * size - ray.x) * ray.invDirX;
+			float b = (Math.min((cellX + 1) * size, lastCol) - ray.x) * ray.invDirX;
+			t0 = Math.max(t0, Math.min(a, b));
+			t1 = Math.min(t1, Math.max(a, b));
+		} else if (ray.x < cellX * size || ray.x > Math.min((cellX + 1) * size, lastCol)) {
+			return -1;
+		}
+		if (ray.dirZ != 0) {
+			float a = (cellZ * size - ray.z) * ray.invDirZ;
+			float b = (Math.min((cellZ + 1) * size, lastRow) - ray.z) * ray.invDirZ;
+			t0 = Math.max(t0, Math.min(a, b));
+			t1 = Math.min(t1, Math.max(a, b));
+		} else if (ray.z < cellZ * size || ray.z > Math.min((cellZ + 1) * size, lastRow)) {
+			return -1;
+		}
+		if (level == 0) {
+			// The heights in the cell vary, its slab would only be a rounding error away from the triangles
+			return t0 <= t1 ? intersectCell(ray, cellX, cellZ) : -1;
+		}
+		if (ray.dirY != 0) {
+			float a = (minY[level][cell] - ray.y) * ray.invDirY;
+			float b = (maxY[level][cell] - ray.y) * ray.invDirY;
+			t0 = Math.max(t0, Math.min(a, b));
+			t1 = Math.min(t1, Math.max(a, b));
+		} else if (ray.y < minY[level][cell] || ray.y > maxY[level][cell]) {
+			return -1;
+		}
+		if (t0 > t1) {
+			return -1;
+		}
+
+		// Nearest child first: a ray crosses each of the two splits at most once
+		int child = level - 1;
+		int flipX = ray.dirX < 0 ? 1 : 0;
+		int flipZ = ray.dirZ < 0 ? 1 : 0;
+		for (int k = 0; k < 4; k++) {
+			int x = cellX * 2 + ((k & 1) ^ flipX);
+			int z = cellZ * 2 + ((k >> 1) ^ flipZ);
+			if (x < levelWidths[child] && z < levelHeights[child]) {
+				float t = intersect(ray, child, x, z, t0, t1);
+				if (t >= 0) {
+					return t;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Ray against the two triangles of a cell, split from the top right to the bottom left corner as in
+	 * {@link Terrain}.
+	 */
+	private float intersectCell(Ray ray, int cellX, int cellZ) {
+		int width = grid.getWidth();
+		float[] heights = grid.getHeights();
+		int i = cellZ * width + cellX;
+		float h00 = heights[i];
+		float h10 = heights[i + 1];
+		float h01 = heights[i + width];
+		float h11 = heights[i + width + 1];
+
+		// Planes as height = base + slopeX * u + slopeZ * v over the cell
+		float t = Math.min(intersectTriangle(ray, cellX, cellZ, h00, h10 - h00, h01 - h00, false),
+				intersectTriangle(ray, cellX, cellZ, h10 + h01 - h11, h11 - h01, h11 - h10, true));
+		return t == Float.POSITIVE_INFINITY ? -1 : t;
+	}
+
+	private static float intersectTriangle(Ray ray, int cellX, int cellZ, float base, float slopeX, float slopeZ,
+			boolean far) {
+		float u0 = ray.x - cellX;
+		float v0 = ray.z - cellZ;
+		float denominator = ray.dirY - slopeX * ray.dirX - slopeZ * ray.dirZ;
+		if (denominator == 0) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float t = (base + slopeX * u0 + slopeZ * v0 - ray.y) / denominator;
+		if (t < 0 || t > ray.maxT) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float u = u0 + ray.dirX * t;
+		float v = v0 + ray.dirZ * t;
+		if (u < -EDGE_EPSILON || v < -EDGE_EPSILON || u > 1 + EDGE_EPSILON || v > 1 + EDGE_EPSILON) {
+			return Float.POSITIVE_INFINITY;
+		}
+		if (far ? u + v < 1 - EDGE_EPSILON : u + v > 1 + EDGE_EPSILON) {
+			return Float.POSITIVE_INFINITY;
+		}
+		return t;
+	}
+
+	private static class Ray {
+		final float x;
+		final float y;
+		final float z;
+		final float dirX;
+		final float dirY;
+		final float dirZ;
+		final float invDirX;
+		final float invDirY;
+		final float invDirZ;
+		final float maxT;
+
+		Ray(float x, float y, float z, float dirX, float dirY, float dirZ, float maxT) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.dirX = dirX;
+			this.dirY = dirY;
+			this.dirZ = dirZ;
+			invDirX = 1 / dirX;
+			invDirY = 1 / dirY;
+			invDirZ = 1 / dirZ;
+			this.maxT = maxT;
+		}
+	}
+}
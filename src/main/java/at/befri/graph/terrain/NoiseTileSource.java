@@ -0,0 +1,41 @@
+package at.befri.graph.terrain;
+
+/**
+ * Tiles generated from {@link HeightNoise} instead of being read from files. Tile x, z covers x to x + 1 and z to
+ * z + 1 of the noise, so a world of any size needs no assets and regenerates identically from the seed.
+ */
+public class NoiseTileSource implements TileSource {
+	private final HeightNoise noise;
+	private final int tileSamples;
+	private final int tilesX;
+	private final int tilesZ;
+	private final float minY;
+	private final float maxY;
+
+	/**
+	 * @param tileSamples samples along each side of a tile, including the ones shared with the neighbours
+	 */
+	public NoiseTileSource(HeightNoise noise, int tileSamples, int tilesX, int tilesZ, float minY, float maxY) {
+		this.noise = noise;
+		this.tileSamples = tileSamples;
+		this.tilesX = tilesX;
+		this.tilesZ = tilesZ;
+		this.minY = minY;
+		this.maxY = maxY;
+	}
+
+	@Override
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	@Override
+	public int getTilesZ() {
+		return tilesZ;
+	}
+
+	@Override
+	public HeightGrid loadTile(int tileX, int tileZ) {
+		return noise.generate(tileSamples, tileSamples, tileX, tileZ, 1, minY, maxY);
+	}
+}
@@ -0,0 +1,65 @@
+package at.befri.graph.terrain;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import at.befri.graph.Mesh;
+import at.befri.graph.MeshData;
+
+/**
+ * The chunk mesh of {@link Terrain.RenderMode#SHARED_GRID}: one (chunkSize + 1)^2 vertex grid plus skirt, shared by
+ * all chunks and terrains of the same chunk size. A vertex only holds its column and row in the chunk as position x
+ * and y, and 1 in z for skirt vertices; terrain_vertex.glsl turns them into grid samples of the chunk being drawn.
+ * Meshes are reference counted and must only be used on the GL thread.
+ */
+class SharedGrid {
+	private static final Map<Integer, SharedGrid> GRIDS = new HashMap<>();
+
+	private final Mesh mesh;
+	private int references;
+
+	private SharedGrid(Mesh mesh) {
+		this.mesh = mesh;
+	}
+
+	static Mesh acquire(int chunkSize) {
+		SharedGrid grid = GRIDS.get(chunkSize);
+		if (grid == null) {
+			grid = new SharedGrid(Mesh.create(build(chunkSize)));
+			GRIDS.put(chunkSize, grid);
+		}
+		grid.references++;
+		return grid.mesh;
+	}
+
+	static void release(int chunkSize) {
+		SharedGrid grid = GRIDS.get(chunkSize);
+		if (grid != null && --grid.references == 0) {
+			grid.mesh.cleanUp();
+			GRIDS.remove(chunkSize);
+		}
+	}
+
+	private static MeshData build(int chunkSize) {
+		int n = chunkSize + 1;
+		int[] border = Terrain.border(n, n);
+		int gridVertices = n * n;
+		int vertexCount = gridVertices + border.length;
+		float[] positions = new float[vertexCount * 3];
+		for (int r = 0; r < n; r++) {
+			for (int c = 0; c < n; c++) {
+				int vertex = r * n + c;
+				positions[vertex * 3] = c;
+				positions[vertex * 3 + 1] = r;
+			}
+		}
+		for (int b = 0; b < border.length; b++) {
+			int skirt = gridVertices + b;
+			System.arraycopy(positions, border[b] * 3, positions, skirt * 3, 2);
+			positions[skirt * 3 + 2] = 1;
+		}
+		// The other attributes are reconstructed in the shader
+		return new MeshData(positions, new float[vertexCount * 2], new float[vertexCount * 3],
+				Terrain.indices(n, n, border)).setTangents(new float[vertexCount * 4]);
+	}
+}
@@ -0,0 +1,120 @@
+package at.befri.graph.terrain;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA;
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+import static org.lwjgl.opengl.GL11.glBindTexture;
+import static org.lwjgl.opengl.GL11.glGetTexImage;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.lwjgl.system.MemoryUtil;
+
+import at.befri.graph.MultilayeredMaterial;
+import at.befri.graph.Texture;
+
+/**
+ * Which terrain layers the rgba map of a {@link MultilayeredMaterial} actually uses, per pixel. terrain_fragment.glsl
+ * blends layer 0 with layers 1 to 4 by the r, g, b and a channel in turn, so a layer contributes where its channel
+ * is not 0 and none of the later channels is 1. Terrain ORs the pixels under each chunk into a layer mask, and the
+ * shader only samples the layers in the mask.
+ */
+public class SplatMap {
+	public static final int ALL_LAYERS = (1 << MultilayeredMaterial.MAX_LAYERS) - 1;
+
+	/**
+	 * Read back once per texture and shared by all terrains and tiles using it
+	 */
+	private static final Map<Texture, SplatMap> CACHE = new WeakHashMap<>();
+
+	private final int width;
+	private final int height;
+	private final byte[] masks;
+
+	/**
+	 * @param rgba width x height pixels of 4 bytes, row by row
+	 */
+	public SplatMap(int width, int height, ByteBuffer rgba) {
+		this.width = width;
+		this.height = height;
+		masks = new byte[width * height];
+		for (int i = 0; i < masks.length; i++) {
+			masks[i] = (byte) layerMask(rgba.get(i * 4) & 0xFF, rgba.get(i * 4 + 1) & 0xFF, rgba.get(i * 4 + 2) & 0xFF,
+					rgba.get(i * 4 + 3) & 0xFF);
+		}
+	}
+
+	/**
+	 * Reads the rgba map of the texture back from the GPU, or returns the map read before. Must be called on the GL
+	 * thread.
+	 */
+	public static SplatMap forTexture(Texture texture) {
+		SplatMap map = CACHE.get(texture);
+		if (map == null) {
+			ByteBuffer rgba = MemoryUtil.memAlloc(texture.getWidth() * texture.getHeight() * 4);
+			try {
+				texture.bind();
+				glGetTexImage(GL_TEXTURE_2D, 0, GL_RGBA, GL_UNSIGNED_BYTE, rgba);
+				glBindTexture(GL_TEXTURE_2D, 0);
+				map = new SplatMap(texture.getWidth(), texture.getHeight(), rgba);
+			} finally {
+				MemoryUtil.memFree(rgba);
+			}
+			CACHE.put(texture, map);
+		}
+		return map;
+	}
+
+	/**
+	 * Bit i is set if layer i has a weight above 0 for the given channel values.
+	 */
+	public static int layerMask(int r, int g, int b, int a) {
+		int mask = 0;
+		if (a > 0) {
+			mask |= 1 << 4;
+		}
+		if (a < 255) {
+			if (b > 0) {
+				mask |= 1 << 3;
+			}
+			if (b < 255) {
+				if (g > 0) {
+					mask |= 1 << 2;
+				}
+				if (g < 255) {
+					if (r > 0) {
+						mask |= 1 << 1;
+					}
+					if (r < 255) {
+						mask |= 1;
+					}
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Layers used by the pixels a nearest filtered lookup hits between the texture coordinates u0, v0 and u1, v1.
+	 * Ranges beyond 0 to 1 wrap around the map, they are answered with all layers.
+	 */
+	public int getMask(float u0, float v0, float u1, float v1) {
+		if (u0 < 0 || v0 < 0 || u1 > 1 || v1 > 1) {
+			return ALL_LAYERS;
+		}
+		int x0 = Math.min((int) (u0 * width), width - 1);
+		int y0 = Math.min((int) (v0 * height), height - 1);
+		int x1 = Math.min((int) (u1 * width), width - 1);
+		int y1 = Math.min((int) (v1 * height), height - 1);
+		int mask = 0;
+		for (int y = y0; y <= y1 && mask != ALL_LAYERS; y++) {
+			int offset = y * width;
+			for (int x = x0; x <= x1; x++) {
+				mask |= masks[offset + x];
+			}
+		}
+		return mask;
+	}
+}
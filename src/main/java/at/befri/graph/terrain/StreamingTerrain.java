@@ -0,0 +1,380 @@
+package at.befri.graph.terrain;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+
+import at.befri.engine.items.GameItem;
+import at.befri.graph.IMaterial;
+import at.befri.graph.Mesh;
+
+/**
+ * Terrain made of tiles that are paged in from a {@link TileSource} around the camera, for worlds too large to keep
+ * in memory. Tile x, z spans x to x + 1 and z to z + 1 in model space, heights are in the same unit. Every loaded
+ * tile is a {@link Terrain} of its own, drawn with its chunk quadtree.
+ * <p>
+ * Tiles are decoded on worker threads, nearest first, and tiles in the direction of travel are prefetched. Loaded
+ * tiles are kept in a least recently used cache: once the heights or the chunk meshes of all tiles exceed their
+ * memory budget, the meshes and then the heights of the tiles used longest ago are dropped. Tiles around the camera
+ * are never dropped, so memory use depends on the budgets and the load radius, not on the size of the world.
+ */
+public class StreamingTerrain extends GameItem {
+	public static final long DEFAULT_HEIGHT_BUDGET = 256L << 20;
+	public static final long DEFAULT_MESH_BUDGET = 256L << 20;
+
+	/**
+	 * Updates of camera movement the prefetch looks ahead
+	 */
+	private static final float PREFETCH_UPDATES = 60;
+	private static final float VELOCITY_SMOOTHING = 0.1f;
+
+	private final TileSource source;
+	private final int texInc;
+	private final IMaterial material;
+	private final int chunkSize;
+	private final ExecutorService executor;
+	private final int maxPendingLoads;
+	/**
+	 * Tiles finished by the workers, taken over by the next update
+	 */
+	private final Queue<Tile> loaded;
+	/**
+	 * Keys of the tiles submitted to the workers and not taken over yet
+	 */
+	private final Set<Long> loading;
+	/**
+	 * Loaded tiles in access order, the least recently used one first
+	 */
+	private final LinkedHashMap<Long, Tile> tiles;
+	private final Set<Long> required;
+	private final List<Terrain> visibleTiles;
+	private final Vector3f localCameraPosition;
+	private final Vector3f lastCameraPosition;
+	private final Vector3f velocity;
+	private boolean hasLastCameraPosition;
+	private Terrain.RenderMode renderMode;
+	private int loadRadius;
+	private long heightBudget;
+	private long meshBudget;
+	private long heightMemory;
+
+	public StreamingTerrain(TileSource source, int texInc, IMaterial material) {
+		this(source, texInc, material, Terrain.DEFAULT_CHUNK_SIZE, 2);
+	}
+
+	public StreamingTerrain(TileSource source, int texInc, IMaterial material, int chunkSize, int threads) {
+		super(null);
+		this.source = source;
+		this.texInc = texInc;
+		this.material = material;
+		this.chunkSize = chunkSize;
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "TERRAIN_TILE_LOADER_THREAD_" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Keep the queue short, so it never holds tiles the camera has long passed
+		maxPendingLoads = threads * 2;
+		loaded = new ConcurrentLinkedQueue<>();
+		loading = new HashSet<>();
+		tiles = new LinkedHashMap<>(64, 0.75f, true);
+		required = new HashSet<>();
+		visibleTiles = new ArrayList<>();
+		localCameraPosition = new Vector3f();
+		lastCameraPosition = new Vector3f();
+		velocity = new Vector3f();
+		renderMode = Terrain.RenderMode.SHARED_GRID;
+		loadRadius = 1;
+		heightBudget = DEFAULT_HEIGHT_BUDGET;
+		meshBudget = DEFAULT_MESH_BUDGET;
+	}
+
+	public IMaterial getMaterial() {
+		return material;
+	}
+
+	public Terrain.RenderMode getRenderMode() {
+		return renderMode;
+	}
+
+	/**
+	 * Sets how tiles are drawn, see {@link Terrain#setRenderMode}. Applies to tiles loaded from now on.
+	 */
+	public void setRenderMode(Terrain.RenderMode renderMode) {
+		this.renderMode = renderMode;
+	}
+
+	public int getLoadRadius() {
+		return loadRadius;
+	}
+
+	/**
+	 * Sets how many tiles around the camera's tile are kept loaded in every direction.
+	 */
+	public void setLoadRadius(int loadRadius) {
+		this.loadRadius = loadRadius;
+	}
+
+	public long getHeightBudget() {
+		return heightBudget;
+	}
+
+	/**
+	 * Sets the bytes of decoded heights to keep. Tiles around the camera stay loaded even beyond the budget.
+	 */
+	public void setHeightBudget(long heightBudget) {
+		this.heightBudget = heightBudget;
+	}
+
+	public long getMeshBudget() {
+		return meshBudget;
+	}
+
+	/**
+	 * Sets the bytes of chunk meshes to keep on the GPU, see {@link #setHeightBudget(long)}.
+	 */
+	public void setMeshBudget(long meshBudget) {
+		this.meshBudget = meshBudget;
+	}
+
+	/**
+	 * Takes over the tiles loaded since the last call, requests the tiles around the camera and ahead of it and
+	 * evicts tiles over budget. Must be called on the GL thread, since evicting frees meshes.
+	 */
+	public void update(Vector3f cameraPosition) {
+		Tile tile;
+		while ((tile = loaded.poll()) != null) {
+			loading.remove(tile.key);
+			tiles.put(tile.key, tile);
+			heightMemory += tile.heightMemory;
+			if (tile.terrain != null) {
+				tile.terrain.setRenderMode(renderMode);
+				placeTile(tile);
+			}
+		}
+
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		cameraPosition.sub(position, localCameraPosition).div(scale);
+		if (hasLastCameraPosition) {
+			lastCameraPosition.sub(localCameraPosition).negate();
+			velocity.lerp(lastCameraPosition, VELOCITY_SMOOTHING);
+		}
+		lastCameraPosition.set(localCameraPosition);
+		hasLastCameraPosition = true;
+
+		int tileX = (int) Math.floor(localCameraPosition.x);
+		int tileZ = (int) Math.floor(localCameraPosition.z);
+		int aheadX = (int) Math.floor(localCameraPosition.x + velocity.x * PREFETCH_UPDATES);
+		int aheadZ = (int) Math.floor(localCameraPosition.z + velocity.z * PREFETCH_UPDATES);
+
+		// Loads around the camera take the pending slots before the prefetch
+		required.clear();
+		visibleTiles.clear();
+		requestAround(tileX, tileZ, true);
+		if (aheadX != tileX || aheadZ != tileZ) {
+			requestAround(aheadX, aheadZ, false);
+			// Touch the tiles around the camera again, so they end up most recently used
+			touchAround(tileX, tileZ);
+		}
+
+		evict();
+	}
+
+	/**
+	 * Tiles around the camera that have been loaded, ready to be drawn.
+	 */
+	public List<Terrain> getVisibleTiles() {
+		return visibleTiles;
+	}
+
+	/**
+	 * Terrain height below a world position, or NaN if its tile is not loaded. Like {@link Terrain}, the game item's
+	 * rotation is not taken into account.
+	 */
+	public float getHeight(float x, float z) {
+		Tile tile = tiles.get(key((int) Math.floor((x - getPosition().x()) / getScale()),
+				(int) Math.floor((z - getPosition().z()) / getScale())));
+		return tile != null && tile.terrain != null ? tile.terrain.getHeight(x, z) : Float.NaN;
+	}
+
+	public int getLoadedTileCount() {
+		return tiles.size();
+	}
+
+	public int getPendingTileCount() {
+		return loading.size();
+	}
+
+	/**
+	 * Bytes of decoded heights of all loaded tiles
+	 */
+	public long getHeightMemory() {
+		return heightMemory;
+	}
+
+	/**
+	 * Bytes of chunk meshes of all loaded tiles
+	 */
+	public long getMeshMemory() {
+		long memory = 0;
+		for (Tile tile : tiles.values()) {
+			if (tile.terrain != null) {
+				memory += tile.terrain.getMeshMemory();
+			}
+		}
+		return memory;
+	}
+
+	public void cleanUp() {
+		executor.shutdownNow();
+		for (Tile tile : tiles.values()) {
+			if (tile.terrain != null) {
+				tile.terrain.cleanUpMeshes();
+			}
+		}
+		tiles.clear();
+		heightMemory = 0;
+		Mesh.cleanUpTextures(material);
+	}
+
+	/**
+	 * Requests the tiles within the load radius, nearest first. Loaded tiles are touched in the cache; if visible,
+	 * they are also marked as required and positioned for drawing.
+	 */
+	private void requestAround(int centerX, int centerZ, boolean visible) {
+		for (int ring = 0; ring <= loadRadius; ring++) {
+			for (int z = centerZ - ring; z <= centerZ + ring; z++) {
+				for (int x = centerX - ring; x <= centerX + ring; x++) {
+					boolean onRing = Math.abs(x - centerX) == ring || Math.abs(z - centerZ) == ring;
+					if (!onRing || x < 0 || z < 0 || x >= source.getTilesX() || z >= source.getTilesZ()) {
+						continue;
+					}
+					long key = key(x, z);
+					Tile tile = tiles.get(key);
+					if (tile == null) {
+						if (!loading.contains(key) && loading.size() < maxPendingLoads) {
+							submit(x, z, key);
+						}
+						continue;
+					}
+					if (visible) {
+						required.add(key);
+						if (tile.terrain != null) {
+							placeTile(tile);
+							visibleTiles.add(tile.terrain);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the loaded tiles within the load radius as most recently used.
+	 */
+	private void touchAround(int centerX, int centerZ) {
+		int toX = Math.min(source.getTilesX() - 1, centerX + loadRadius);
+		int toZ = Math.min(source.getTilesZ() - 1, centerZ + loadRadius);
+		for (int z = Math.max(0, centerZ - loadRadius); z <= toZ; z++) {
+			for (int x = Math.max(0, centerX - loadRadius); x <= toX; x++) {
+				// Access ordered, a lookup moves the tile to the end
+				tiles.get(key(x, z));
+			}
+		}
+	}
+
+	private void submit(int x, int z, long key) {
+		loading.add(key);
+		executor.execute(() -> {
+			Terrain terrain = null;
+			long memory = 0;
+			try {
+				HeightGrid grid = source.loadTile(x, z);
+				if (grid != null) {
+					terrain = new Terrain(grid, texInc, material, chunkSize);
+					memory = (long) grid.getHeights().length * Float.BYTES;
+				}
+			} catch (Exception e) {
+				// Stays a hole until the tile is evicted and requested again
+				System.err.println("Warning could not load terrain tile " + x + "_" + z + ": " + e.getMessage());
+			}
+			loaded.add(new Tile(x, z, key, terrain, memory));
+		});
+	}
+
+	private void placeTile(Tile tile) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		tile.terrain.setPosition(position.x() + (tile.x + 0.5f) * scale, position.y(),
+				position.z() + (tile.z + 0.5f) * scale);
+		tile.terrain.setScale(scale);
+	}
+
+	/**
+	 * Drops chunk meshes, then whole tiles, in least recently used order until both budgets are met.
+	 */
+	private void evict() {
+		long meshMemory = getMeshMemory();
+		Iterator<Map.Entry<Long, Tile>> it = tiles.entrySet().iterator();
+		while (meshMemory > meshBudget && it.hasNext()) {
+			Tile tile = it.next().getValue();
+			if (required.contains(tile.key)) {
+				break;
+			}
+			if (tile.terrain != null) {
+				meshMemory -= tile.terrain.getMeshMemory();
+				tile.terrain.cleanUpMeshes();
+			}
+		}
+
+		it = tiles.entrySet().iterator();
+		while (heightMemory > heightBudget && it.hasNext()) {
+			Tile tile = it.next().getValue();
+			if (required.contains(tile.key)) {
+				break;
+			}
+			if (tile.terrain != null) {
+				tile.terrain.cleanUpMeshes();
+			}
+			heightMemory -= tile.heightMemory;
+			it.remove();
+		}
+	}
+
+	private static long key(int x, int z) {
+		return ((long) x << 32) | (z & 0xFFFFFFFFL);
+	}
+
+	private static class Tile {
+		private final int x;
+		private final int z;
+		private final long key;
+		/**
+		 * null if the source has no tile here
+		 */
+		private final Terrain terrain;
+		private final long heightMemory;
+
+		private Tile(int x, int z, long key, Terrain terrain, long heightMemory) {
+			this.x = x;
+			this.z = z;
+			this.key = key;
+			this.terrain = terrain;
+			this.heightMemory = heightMemory;
+		}
+	}
+}
@@ -0,0 +1,909 @@
+package at.befri.graph.terrain;
+
+import static org.lwjgl.opengl.GL11.GL_RED;
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+import static org.lwjgl.opengl.GL11.glBindTexture;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL30.GL_R16;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import at.befri.engine.items.GameItem;
+import at.befri.graph.IMaterial;
+import at.befri.graph.Mesh;
+import at.befri.graph.MeshData;
+import at.befri.graph.MultilayeredMaterial;
+import at.befri.graph.ShaderProgram;
+import at.befri.graph.Texture;
+
+/**
+ * Chunked terrain drawn through a quadtree (geomipmapping). Leaves cover chunkSize x chunkSize cells of the height
+ * grid at full resolution; every level up covers twice the area with every second sample, so all chunk meshes have
+ * the same vertex count. Each frame {@link #update} walks the tree, culls nodes whose bounding box is outside the
+ * view frustum and stops descending once a node is far enough away for its resolution. The triangle count thus
+ * follows the screen coverage instead of the heightmap size.
+ * <p>
+ * Chunks of different levels meet with T-junctions, the cracks are hidden by skirts: a strip along the chunk
+ * border hanging down below the terrain surface.
+ * <p>
+ * The terrain spans -0.5 to 0.5 on x and z in model space, like the other meshes it is placed with the game item's
+ * position, rotation and scale.
+ */
+public class Terrain extends GameItem {
+	public enum RenderMode {
+		/**
+		 * Every chunk has a mesh of its own with all vertex attributes
+		 */
+		CHUNK_MESHES,
+		/**
+		 * All chunks draw one shared grid mesh, see {@link SharedGrid}. The heights are uploaded once as a 16 bit
+		 * texture, positions, texture coordinates, normals and tangents are reconstructed in the vertex shader.
+		 */
+		SHARED_GRID
+	}
+
+	public enum Brush {
+		/**
+		 * Adds the strength in world units, negative strengths dig
+		 */
+		RAISE,
+		/**
+		 * Pulls the heights towards the height at the brush center, strength 0 to 1
+		 */
+		FLATTEN,
+		/**
+		 * Pulls the heights towards the average of their four neighbours, strength 0 to 1
+		 */
+		SMOOTH
+	}
+
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+
+	private static final float STARTX = -0.5f;
+	private static final float STARTZ = -0.5f;
+	/**
+	 * Batch queries with more points than this are split across threads
+	 */
+	private static final int PARALLEL_QUERY_THRESHOLD = 1 << 14;
+	/**
+	 * Rays cost a lot more than height queries, so their batches are split much earlier
+	 */
+	private static final int PARALLEL_RAY_THRESHOLD = 1 << 8;
+	/**
+	 * terrain_fragment.glsl looks the rgba map up at the texture coordinates divided by this
+	 */
+	private static final float RGBA_MAP_SCALE = 40;
+	/**
+	 * All planes but the far one: with the renderer's far to near ratio the far plane degenerates in float
+	 * precision and would cull everything
+	 */
+	private static final int FRUSTUM_PLANES = FrustumIntersection.PLANE_MASK_NX | FrustumIntersection.PLANE_MASK_PX
+			| FrustumIntersection.PLANE_MASK_NY | FrustumIntersection.PLANE_MASK_PY
+			| FrustumIntersection.PLANE_MASK_NZ;
+
+	private final HeightGrid grid;
+	private final int chunkSize;
+	private final int texInc;
+	private final IMaterial material;
+	private final float incx;
+	private final float incz;
+	private final TerrainNode root;
+
+	private final List<TerrainNode> visibleNodes;
+	private final FrustumIntersection frustum;
+	private final Matrix4f matrix;
+	private final Vector3f localCameraPosition;
+	private final Vector2f uniformVector2;
+	private final Vector4f uniformVector4;
+	private RenderMode renderMode;
+	private Texture heightTexture;
+	private Mesh gridMesh;
+	private float heightTextureMinY;
+	private float heightTextureRange;
+	private boolean layerMasksComputed;
+	/**
+	 * Built on the first ray query
+	 */
+	private HeightPyramid pyramid;
+	/**
+	 * Samples edited since the last render, whose GPU data is stale
+	 */
+	private boolean dirty;
+	private int dirtyFromCol;
+	private int dirtyFromRow;
+	private int dirtyToCol;
+	private int dirtyToRow;
+	/**
+	 * A node is split while the camera is closer than its size times this factor
+	 */
+	private float lodDistanceFactor;
+	private int culledNodeCount;
+	private int renderedTriangleCount;
+	/**
+	 * Bytes of vertex and index data of the chunk meshes built so far
+	 */
+	private long meshMemory;
+
+	public Terrain(HeightGrid grid, int texInc, IMaterial material) {
+		this(grid, texInc, material, DEFAULT_CHUNK_SIZE);
+	}
+
+	public Terrain(HeightGrid grid, int texInc, IMaterial material, int chunkSize) {
+		super(null);
+		this.grid = grid;
+		this.chunkSize = chunkSize;
+		this.texInc = texInc;
+		this.material = material;
+		incx = getXLength() / (grid.getWidth() - 1);
+		incz = getZLength() / (grid.getHeight() - 1);
+
+		int cells = Math.max(grid.getWidth(), grid.getHeight()) - 1;
+		int levels = 0;
+		while ((chunkSize << levels) < cells) {
+			levels++;
+		}
+		root = buildNode(levels, 0, 0);
+
+		visibleNodes = new ArrayList<>();
+		frustum = new FrustumIntersection();
+		matrix = new Matrix4f();
+		localCameraPosition = new Vector3f();
+		uniformVector2 = new Vector2f();
+		uniformVector4 = new Vector4f();
+		renderMode = RenderMode.CHUNK_MESHES;
+		lodDistanceFactor = 2.0f;
+	}
+
+	public HeightGrid getGrid() {
+		return grid;
+	}
+
+	public IMaterial getMaterial() {
+		return material;
+	}
+
+	public RenderMode getRenderMode() {
+		return renderMode;
+	}
+
+	/**
+	 * Switches how the chunks are drawn, the GPU data of the previous mode is freed.
+	 */
+	public void setRenderMode(RenderMode renderMode) {
+		if (renderMode != this.renderMode) {
+			cleanUpMeshes();
+			this.renderMode = renderMode;
+		}
+	}
+
+	public float getLodDistanceFactor() {
+		return lodDistanceFactor;
+	}
+
+	public void setLodDistanceFactor(float lodDistanceFactor) {
+		this.lodDistanceFactor = lodDistanceFactor;
+	}
+
+	/**
+	 * Terrain height below a world position. Points outside the terrain get the height of the nearest border.
+	 * Queries take the position and scale of the game item into account, but not its rotation.
+	 */
+	public float getHeight(float x, float z) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		float col = toCol(x, position, scale);
+		float row = toRow(z, position, scale);
+		return position.y() + grid.sample(col, row) * scale;
+	}
+
+	/**
+	 * Terrain surface normal below a world position, see {@link #getHeight(float, float)}.
+	 */
+	public Vector3f getNormal(float x, float z, Vector3f dest) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		// A uniform scale does not change the normal, the grid is sampled in model units
+		return grid.sampleNormal(toCol(x, position, scale), toRow(z, position, scale), incx, incz, dest);
+	}
+
+	/**
+	 * Heights for count world positions given as x, z pairs in xz. Large batches run in parallel.
+	 */
+	public void getHeights(float[] xz, float[] heights, int count) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		IntStream range = IntStream.range(0, (count + PARALLEL_QUERY_THRESHOLD - 1) / PARALLEL_QUERY_THRESHOLD);
+		if (count > PARALLEL_QUERY_THRESHOLD) {
+			range = range.parallel();
+		}
+		range.forEach(block -> {
+			int end = Math.min(count, (block + 1) * PARALLEL_QUERY_THRESHOLD);
+			for (int i = block * PARALLEL_QUERY_THRESHOLD; i < end; i++) {
+				float col = toCol(xz[i * 2], position, scale);
+				float row = toRow(xz[i * 2 + 1], position, scale);
+				heights[i] = position.y() + grid.sample(col, row) * scale;
+			}
+		});
+	}
+
+	/**
+	 * Normals for count world positions given as x, z pairs in xz, written as x, y, z triples into normals.
+	 */
+	public void getNormals(float[] xz, float[] normals, int count) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		IntStream range = IntStream.range(0, (count + PARALLEL_QUERY_THRESHOLD - 1) / PARALLEL_QUERY_THRESHOLD);
+		if (count > PARALLEL_QUERY_THRESHOLD) {
+			range = range.parallel();
+		}
+		range.forEach(block -> {
+			Vector3f normal = new Vector3f();
+			int end = Math.min(count, (block + 1) * PARALLEL_QUERY_THRESHOLD);
+			for (int i = block * PARALLEL_QUERY_THRESHOLD; i < end; i++) {
+				grid.sampleNormal(toCol(xz[i * 2], position, scale), toRow(xz[i * 2 + 1], position, scale), incx,
+						incz, normal);
+				normals[i * 3] = normal.x;
+				normals[i * 3 + 1] = normal.y;
+				normals[i * 3 + 2] = normal.z;
+			}
+		});
+	}
+
+	/**
+	 * Distance along a world space ray to its first hit with the terrain, in units of the direction's length, or -1
+	 * if it does not hit within maxDistance. As with {@link #getHeight(float, float)}, position and scale are
+	 * applied, rotation is not. There is a line of sight from a to b if intersectRay(a, b - a, 1) is -1.
+	 */
+	public float intersectRay(Vector3f origin, Vector3f direction, float maxDistance) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		return getPyramid().intersect(toCol(origin.x, position, scale), (origin.y - position.y()) / scale,
+				toRow(origin.z, position, scale), direction.x / scale / incx, direction.y / scale,
+				direction.z / scale / incz, maxDistance);
+	}
+
+	/**
+	 * Distances for count rays given as origin x, y, z and direction x, y, z in rays, see
+	 * {@link #intersectRay(Vector3f, Vector3f, float)}. Large batches run in parallel.
+	 */
+	public void intersectRays(float[] rays, float maxDistance, float[] distances, int count) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		HeightPyramid pyramid = getPyramid();
+		IntStream range = IntStream.range(0, (count + PARALLEL_RAY_THRESHOLD - 1) / PARALLEL_RAY_THRESHOLD);
+		if (count > PARALLEL_RAY_THRESHOLD) {
+			range = range.parallel();
+		}
+		range.forEach(block -> {
+			int end = Math.min(count, (block + 1) * PARALLEL_RAY_THRESHOLD);
+			for (int i = block * PARALLEL_RAY_THRESHOLD; i < end; i++) {
+				int r = i * 6;
+				distances[i] = pyramid.intersect(toCol(rays[r], position, scale), (rays[r + 1] - position.y()) / scale,
+						toRow(rays[r + 2], position, scale), rays[r + 3] / scale / incx, rays[r + 4] / scale,
+						rays[r + 5] / scale / incz, maxDistance);
+			}
+		});
+	}
+
+	private HeightPyramid getPyramid() {
+		if (pyramid == null) {
+			pyramid = new HeightPyramid(grid);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * Applies a brush with a smooth falloff within radius world units of a world position. The heights and the
+	 * bounds used for culling change at once; the next {@link #render} re-uploads only the changed vertices of the
+	 * chunk meshes or the changed rectangle of the height texture.
+	 */
+	public void edit(Brush brush, float x, float z, float radius, float strength) {
+		float scale = getScale();
+		Vector3fc position = getPosition();
+		float centerCol = toCol(x, position, scale);
+		float centerRow = toRow(z, position, scale);
+		float radiusCols = radius / scale / incx;
+		float radiusRows = radius / scale / incz;
+		int width = grid.getWidth();
+		int height = grid.getHeight();
+		int fromCol = Math.max(0, (int) Math.ceil(centerCol - radiusCols));
+		int fromRow = Math.max(0, (int) Math.ceil(centerRow - radiusRows));
+		int toCol = Math.min(width - 1, (int) Math.floor(centerCol + radiusCols));
+		int toRow = Math.min(height - 1, (int) Math.floor(centerRow + radiusRows));
+		if (fromCol > toCol || fromRow > toRow) {
+			return;
+		}
+
+		float[] heights = grid.getHeights();
+		float target = grid.sample(centerCol, centerRow);
+		// Smoothing reads the heights from before the edit, with a one sample margin for the neighbours
+		float[] before = null;
+		int beforeWidth = toCol - fromCol + 3;
+		if (brush == Brush.SMOOTH) {
+			before = new float[beforeWidth * (toRow - fromRow + 3)];
+			for (int row = fromRow - 1; row <= toRow + 1; row++) {
+				for (int col = fromCol - 1; col <= toCol + 1; col++) {
+					before[(row - fromRow + 1) * beforeWidth + col - fromCol + 1] = grid.get(col, row);
+				}
+			}
+		}
+		for (int row = fromRow; row <= toRow; row++) {
+			float dz = (row - centerRow) / radiusRows;
+			for (int col = fromCol; col <= toCol; col++) {
+				float dx = (col - centerCol) / radiusCols;
+				float d2 = dx * dx + dz * dz;
+				if (d2 >= 1) {
+					continue;
+				}
+				float falloff = (1 - d2) * (1 - d2);
+				int i = row * width + col;
+				switch (brush) {
+				case RAISE:
+					heights[i] += strength / scale * falloff;
+					break;
+				case FLATTEN:
+					heights[i] += (target - heights[i]) * Math.min(1, strength * falloff);
+					break;
+				case SMOOTH:
+					int b = (row - fromRow + 1) * beforeWidth + col - fromCol + 1;
+					float average = (before[b - 1] + before[b + 1] + before[b - beforeWidth] + before[b + beforeWidth])
+							* 0.25f;
+					heights[i] += (average - heights[i]) * Math.min(1, strength * falloff);
+					break;
+				}
+			}
+		}
+
+		refreshRange(root, fromCol, fromRow, toCol, toRow, new float[2]);
+		if (pyramid != null) {
+			pyramid.update(fromCol, fromRow, toCol, toRow);
+		}
+		if (dirty) {
+			fromCol = Math.min(fromCol, dirtyFromCol);
+			fromRow = Math.min(fromRow, dirtyFromRow);
+			toCol = Math.max(toCol, dirtyToCol);
+			toRow = Math.max(toRow, dirtyToRow);
+		}
+		dirty = true;
+		dirtyFromCol = fromCol;
+		dirtyFromRow = fromRow;
+		dirtyToCol = toCol;
+		dirtyToRow = toRow;
+	}
+
+	private float toCol(float x, Vector3fc position, float scale) {
+		return ((x - position.x()) / scale - STARTX) / incx;
+	}
+
+	private float toRow(float z, Vector3fc position, float scale) {
+		return ((z - position.z()) / scale - STARTZ) / incz;
+	}
+
+	/**
+	 * Selects the chunks to draw for the current camera. The model matrix must be built from this game item.
+	 */
+	public void update(Matrix4f projectionMatrix, Matrix4f viewMatrix, Matrix4f modelMatrix,
+			Vector3f cameraPosition) {
+		frustum.set(matrix.set(projectionMatrix).mul(viewMatrix).mul(modelMatrix));
+		matrix.set(modelMatrix).invert().transformPosition(cameraPosition, localCameraPosition);
+
+		visibleNodes.clear();
+		culledNodeCount = 0;
+		select(root);
+	}
+
+	/**
+	 * Draws the chunks selected by the last {@link #update} with the terrain shader. The material's textures must be
+	 * bound already, see {@link Mesh#bindTextures(IMaterial)}; in {@link RenderMode#SHARED_GRID} the height texture
+	 * is bound to heightMapUnit.
+	 */
+	public void render(ShaderProgram shaderProgram, int heightMapUnit) {
+		renderedTriangleCount = 0;
+		if (!layerMasksComputed) {
+			computeLayerMasks();
+		}
+		if (dirty) {
+			uploadEdits();
+		}
+		if (renderMode == RenderMode.SHARED_GRID) {
+			renderSharedGrid(shaderProgram, heightMapUnit);
+			return;
+		}
+		shaderProgram.setUniform("sharedGrid", 0);
+		for (TerrainNode node : visibleNodes) {
+			if (node.mesh == null) {
+				MeshData data = buildMeshData(node);
+				meshMemory += (long) data.getVertexCount() * data.getVertexLayout().getStride()
+						+ (long) data.getTotalIndexCount() * data.getIndexSize();
+				node.mesh = Mesh.create(data);
+			}
+			shaderProgram.setUniform("layerMask", node.layerMask);
+			node.mesh.renderGeometry();
+			renderedTriangleCount += node.mesh.getVertexCount() / 3;
+		}
+	}
+
+	private void renderSharedGrid(ShaderProgram shaderProgram, int heightMapUnit) {
+		if (gridMesh == null) {
+			gridMesh = SharedGrid.acquire(chunkSize);
+			heightTexture = createHeightTexture();
+			meshMemory = (long) grid.getWidth() * grid.getHeight() * 2;
+		}
+		glActiveTexture(GL_TEXTURE0 + heightMapUnit);
+		heightTexture.bind();
+		shaderProgram.setUniform("sharedGrid", 1);
+		shaderProgram.setUniform("heightRange", uniformVector2.set(heightTextureMinY, heightTextureRange));
+		shaderProgram.setUniform("cellSize", uniformVector2.set(incx, incz));
+		shaderProgram.setUniform("texRepeat", (float) texInc);
+		int triangles = gridMesh.getVertexCount() / 3;
+		for (TerrainNode node : visibleNodes) {
+			shaderProgram.setUniform("chunkBounds", uniformVector4.set(node.col, node.row, node.endCol, node.endRow));
+			shaderProgram.setUniform("chunkStep", (float) node.step);
+			shaderProgram.setUniform("skirtDepth", skirtDepth(node));
+			shaderProgram.setUniform("layerMask", node.layerMask);
+			gridMesh.renderGeometry();
+			renderedTriangleCount += triangles;
+		}
+		glBindTexture(GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Patches the GPU data of the samples edited since the last render.
+	 */
+	private void uploadEdits() {
+		dirty = false;
+		if (heightTexture != null) {
+			if (root.minY < heightTextureMinY || root.maxY > heightTextureMinY + heightTextureRange) {
+				// Out of the range the texture is normalized to
+				heightTexture.cleanup();
+				heightTexture = createHeightTexture();
+			} else {
+				updateHeightTexture(dirtyFromCol, dirtyFromRow, dirtyToCol, dirtyToRow);
+			}
+		}
+		// The normals of the neighbouring samples change too
+		updateMeshes(root, Math.max(0, dirtyFromCol - 1), Math.max(0, dirtyFromRow - 1),
+				Math.min(grid.getWidth() - 1, dirtyToCol + 1), Math.min(grid.getHeight() - 1, dirtyToRow + 1));
+	}
+
+	private void updateHeightTexture(int fromCol, int fromRow, int toCol, int toRow) {
+		int width = toCol - fromCol + 1;
+		int height = toRow - fromRow + 1;
+		float scale = heightTextureRange > 0 ? 0xFFFF / heightTextureRange : 0;
+		ByteBuffer pixels = MemoryUtil.memAlloc(width * height * 2);
+		try {
+			for (int row = 0; row < height; row++) {
+				for (int col = 0; col < width; col++) {
+					float h = grid.get(fromCol + col, fromRow + row);
+					pixels.putShort((row * width + col) * 2, (short) Math.round((h - heightTextureMinY) * scale));
+				}
+			}
+			heightTexture.update(fromCol, fromRow, width, height, GL_RED, GL_UNSIGNED_SHORT, pixels);
+		} finally {
+			MemoryUtil.memFree(pixels);
+		}
+	}
+
+	private void updateMeshes(TerrainNode node, int fromCol, int fromRow, int toCol, int toRow) {
+		if (!intersects(node, fromCol, fromRow, toCol, toRow)) {
+			return;
+		}
+		if (node.mesh != null) {
+			updateMesh(node, fromCol, fromRow, toCol, toRow);
+		}
+		if (!node.isLeaf()) {
+			for (TerrainNode child : node.children) {
+				updateMeshes(child, fromCol, fromRow, toCol, toRow);
+			}
+		}
+	}
+
+	/**
+	 * Re-uploads the vertices of the samples of a chunk mesh within the range, row by row, and its skirt, whose
+	 * depth follows the chunk's height range.
+	 */
+	private void updateMesh(TerrainNode node, int fromCol, int fromRow, int toCol, int toRow) {
+		int[] cols = samples(node.col, node.endCol, node.step);
+		int[] rows = samples(node.row, node.endRow, node.step);
+		int nc = cols.length;
+		int nr = rows.length;
+		int c0 = 0;
+		while (c0 < nc && cols[c0] < fromCol) {
+			c0++;
+		}
+		int c1 = nc - 1;
+		while (c1 >= 0 && cols[c1] > toCol) {
+			c1--;
+		}
+		if (c0 <= c1) {
+			int count = c1 - c0 + 1;
+			float[] positions = new float[count * 3];
+			float[] texCoords = new float[count * 2];
+			float[] normals = new float[count * 3];
+			float[] tangents = new float[count * 4];
+			for (int r = 0; r < nr; r++) {
+				if (rows[r] < fromRow || rows[r] > toRow) {
+					continue;
+				}
+				for (int c = c0; c <= c1; c++) {
+					writeVertex(cols[c], rows[r], c - c0, positions, texCoords, normals, tangents);
+				}
+				node.mesh.updateVertices(r * nc + c0,
+						new MeshData(positions, texCoords, normals, new int[0]).setTangents(tangents));
+			}
+		}
+
+		int[] border = border(nc, nr);
+		float[] positions = new float[border.length * 3];
+		float[] texCoords = new float[border.length * 2];
+		float[] normals = new float[border.length * 3];
+		float[] tangents = new float[border.length * 4];
+		float depth = skirtDepth(node);
+		for (int b = 0; b < border.length; b++) {
+			writeVertex(cols[border[b] % nc], rows[border[b] / nc], b, positions, texCoords, normals, tangents);
+			positions[b * 3 + 1] -= depth;
+		}
+		node.mesh.updateVertices(nc * nr, new MeshData(positions, texCoords, normals, new int[0]).setTangents(tangents));
+	}
+
+	/**
+	 * Widens the height range of the nodes overlapping the range by the heights within it. Ranges are not tightened
+	 * again, which would mean scanning whole chunks; they stay conservative for culling and the skirts.
+	 */
+	private void refreshRange(TerrainNode node, int fromCol, int fromRow, int toCol, int toRow, float[] range) {
+		if (!intersects(node, fromCol, fromRow, toCol, toRow)) {
+			return;
+		}
+		if (node.isLeaf()) {
+			grid.getRange(Math.max(node.col, fromCol), Math.max(node.row, fromRow), Math.min(node.endCol, toCol),
+					Math.min(node.endRow, toRow), range);
+			node.minY = Math.min(node.minY, range[0]);
+			node.maxY = Math.max(node.maxY, range[1]);
+			return;
+		}
+		for (TerrainNode child : node.children) {
+			refreshRange(child, fromCol, fromRow, toCol, toRow, range);
+			node.minY = Math.min(node.minY, child.minY);
+			node.maxY = Math.max(node.maxY, child.maxY);
+		}
+	}
+
+	private static boolean intersects(TerrainNode node, int fromCol, int fromRow, int toCol, int toRow) {
+		return node.col <= toCol && node.endCol >= fromCol && node.row <= toRow && node.endRow >= fromRow;
+	}
+
+	/**
+	 * Finds the layers the material's rgba map uses under each node, so the shader can skip the others.
+	 */
+	private void computeLayerMasks() {
+		layerMasksComputed = true;
+		if (material instanceof MultilayeredMaterial && ((MultilayeredMaterial) material).hasRgbaMap()) {
+			computeLayerMask(root, SplatMap.forTexture(((MultilayeredMaterial) material).getRgbaMap()));
+		}
+	}
+
+	private void computeLayerMask(TerrainNode node, SplatMap splatMap) {
+		if (node.isLeaf()) {
+			float uScale = texInc / (grid.getWidth() * RGBA_MAP_SCALE);
+			float vScale = texInc / (grid.getHeight() * RGBA_MAP_SCALE);
+			node.layerMask = splatMap.getMask(node.col * uScale, node.row * vScale, node.endCol * uScale,
+					node.endRow * vScale);
+			return;
+		}
+		node.layerMask = 0;
+		for (TerrainNode child : node.children) {
+			computeLayerMask(child, splatMap);
+			node.layerMask |= child.layerMask;
+		}
+	}
+
+	/**
+	 * Uploads the heights as unsigned normalized 16 bit values over the range of the whole grid.
+	 */
+	private Texture createHeightTexture() {
+		heightTextureMinY = root.minY;
+		heightTextureRange = root.maxY - root.minY;
+		float[] heights = grid.getHeights();
+		float scale = heightTextureRange > 0 ? 0xFFFF / heightTextureRange : 0;
+		ByteBuffer pixels = MemoryUtil.memAlloc(heights.length * 2);
+		try {
+			for (int i = 0; i < heights.length; i++) {
+				pixels.putShort(i * 2, (short) Math.round((heights[i] - heightTextureMinY) * scale));
+			}
+			return new Texture(grid.getWidth(), grid.getHeight(), GL_R16, GL_RED, GL_UNSIGNED_SHORT, pixels);
+		} finally {
+			MemoryUtil.memFree(pixels);
+		}
+	}
+
+	public int getVisibleChunkCount() {
+		return visibleNodes.size();
+	}
+
+	/**
+	 * Nodes rejected by frustum culling in the last update, their subtrees are not counted.
+	 */
+	public int getCulledChunkCount() {
+		return culledNodeCount;
+	}
+
+	public int getRenderedTriangleCount() {
+		return renderedTriangleCount;
+	}
+
+	public long getMeshMemory() {
+		return meshMemory;
+	}
+
+	public void cleanUp() {
+		cleanUpMeshes();
+		Mesh.cleanUpTextures(material);
+	}
+
+	/**
+	 * Frees the chunk meshes but keeps the material, they are rebuilt when drawn again.
+	 */
+	public void cleanUpMeshes() {
+		cleanUp(root);
+		if (gridMesh != null) {
+			SharedGrid.release(chunkSize);
+			gridMesh = null;
+			heightTexture.cleanup();
+			heightTexture = null;
+		}
+		meshMemory = 0;
+	}
+
+	private void cleanUp(TerrainNode node) {
+		if (node.mesh != null) {
+			node.mesh.cleanUp();
+			node.mesh = null;
+		}
+		if (!node.isLeaf()) {
+			for (TerrainNode child : node.children) {
+				cleanUp(child);
+			}
+		}
+	}
+
+	private TerrainNode buildNode(int level, int col, int row) {
+		int size = chunkSize << level;
+		TerrainNode node = new TerrainNode(level, col, row, size, grid);
+		if (level == 0) {
+			float[] range = new float[2];
+			grid.getRange(node.col, node.row, node.endCol, node.endRow, range);
+			node.minY = range[0];
+			node.maxY = range[1];
+			return node;
+		}
+
+		int half = size / 2;
+		List<TerrainNode> children = new ArrayList<>(4);
+		for (int y = 0; y < 2; y++) {
+			for (int x = 0; x < 2; x++) {
+				int childCol = col + x * half;
+				int childRow = row + y * half;
+				// Skip children beyond the grid when it is not a power of two
+				if (childCol < grid.getWidth() - 1 && childRow < grid.getHeight() - 1) {
+					children.add(buildNode(level - 1, childCol, childRow));
+				}
+			}
+		}
+		node.children = children.toArray(new TerrainNode[children.size()]);
+		node.minY = Float.POSITIVE_INFINITY;
+		node.maxY = Float.NEGATIVE_INFINITY;
+		for (TerrainNode child : node.children) {
+			node.minY = Math.min(node.minY, child.minY);
+			node.maxY = Math.max(node.maxY, child.maxY);
+		}
+		return node;
+	}
+
+	private void select(TerrainNode node) {
+		float minX = STARTX + node.col * incx;
+		float maxX = STARTX + node.endCol * incx;
+		float minZ = STARTZ + node.row * incz;
+		float maxZ = STARTZ + node.endRow * incz;
+		if (frustum.intersectAab(minX, node.minY, minZ, maxX, node.maxY, maxZ, FRUSTUM_PLANES) >= 0) {
+			culledNodeCount++;
+			return;
+		}
+
+		float size = Math.max(maxX - minX, maxZ - minZ);
+		if (node.isLeaf() || distanceToBox(minX, node.minY, minZ, maxX, node.maxY, maxZ) > size * lodDistanceFactor) {
+			visibleNodes.add(node);
+			return;
+		}
+		for (TerrainNode child : node.children) {
+			select(child);
+		}
+	}
+
+	private float distanceToBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		Vector3f p = localCameraPosition;
+		float dx = Math.max(0, Math.max(minX - p.x, p.x - maxX));
+		float dy = Math.max(0, Math.max(minY - p.y, p.y - maxY));
+		float dz = Math.max(0, Math.max(minZ - p.z, p.z - maxZ));
+		return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Builds the chunk mesh of a node: a grid of every step-th sample plus the skirt around it.
+	 */
+	private MeshData buildMeshData(TerrainNode node) {
+		int[] cols = samples(node.col, node.endCol, node.step);
+		int[] rows = samples(node.row, node.endRow, node.step);
+		int nc = cols.length;
+		int nr = rows.length;
+		int gridVertices = nc * nr;
+		int borderVertices = 2 * (nc - 1) + 2 * (nr - 1);
+		int vertexCount = gridVertices + borderVertices;
+
+		float[] positions = new float[vertexCount * 3];
+		float[] texCoords = new float[vertexCount * 2];
+		float[] normals = new float[vertexCount * 3];
+		float[] tangents = new float[vertexCount * 4];
+
+		for (int r = 0; r < nr; r++) {
+			for (int c = 0; c < nc; c++) {
+				writeVertex(cols[c], rows[r], r * nc + c, positions, texCoords, normals, tangents);
+			}
+		}
+
+		// Skirt: hang a copy of each border vertex below it. The crack between two levels can not be deeper than
+		// the height range of the chunk.
+		int[] border = border(nc, nr);
+		for (int b = 0; b < border.length; b++) {
+			int top = border[b];
+			int skirt = gridVertices + b;
+			System.arraycopy(positions, top * 3, positions, skirt * 3, 3);
+			positions[skirt * 3 + 1] -= skirtDepth(node);
+			System.arraycopy(texCoords, top * 2, texCoords, skirt * 2, 2);
+			System.arraycopy(normals, top * 3, normals, skirt * 3, 3);
+			System.arraycopy(tangents, top * 4, tangents, skirt * 4, 4);
+		}
+
+		return new MeshData(positions, texCoords, normals, indices(nc, nr, border)).setTangents(tangents);
+	}
+
+	private void writeVertex(int col, int row, int vertex, float[] positions, float[] texCoords, float[] normals,
+			float[] tangents) {
+		positions[vertex * 3] = STARTX + col * incx; // x
+		positions[vertex * 3 + 1] = grid.get(col, row); // y
+		positions[vertex * 3 + 2] = STARTZ + row * incz; // z
+
+		texCoords[vertex * 2] = (float) texInc * (float) col / (float) grid.getWidth();
+		texCoords[vertex * 2 + 1] = (float) texInc * (float) row / (float) grid.getHeight();
+
+		// Normals from the full resolution grid, so they do not change between levels
+		calcNormalAndTangent(col, row, normals, tangents, vertex);
+	}
+
+	private float skirtDepth(TerrainNode node) {
+		return Math.max(node.maxY - node.minY, node.step * Math.min(incx, incz));
+	}
+
+	/**
+	 * The vertices along the border of an nc x nr vertex grid, clockwise seen from above.
+	 */
+	static int[] border(int nc, int nr) {
+		int[] border = new int[2 * (nc - 1) + 2 * (nr - 1)];
+		int b = 0;
+		for (int c = 0; c < nc - 1; c++) {
+			border[b++] = c;
+		}
+		for (int r = 0; r < nr - 1; r++) {
+			border[b++] = r * nc + nc - 1;
+		}
+		for (int c = nc - 1; c > 0; c--) {
+			border[b++] = (nr - 1) * nc + c;
+		}
+		for (int r = nr - 1; r > 0; r--) {
+			border[b++] = r * nc;
+		}
+		return border;
+	}
+
+	/**
+	 * Triangles of an nc x nr vertex grid followed by its skirt, whose vertices follow the grid vertices in the
+	 * order of border.
+	 */
+	static int[] indices(int nc, int nr, int[] border) {
+		int gridVertices = nc * nr;
+		int[] indices = new int[((nc - 1) * (nr - 1) + border.length) * 6];
+		int i = 0;
+		for (int r = 0; r < nr - 1; r++) {
+			for (int c = 0; c < nc - 1; c++) {
+				int leftTop = r * nc + c;
+				int leftBottom = (r + 1) * nc + c;
+				int rightBottom = (r + 1) * nc + c + 1;
+				int rightTop = r * nc + c + 1;
+
+				indices[i++] = leftTop;
+				indices[i++] = leftBottom;
+				indices[i++] = rightTop;
+
+				indices[i++] = rightTop;
+				indices[i++] = leftBottom;
+				indices[i++] = rightBottom;
+			}
+		}
+		for (int b = 0; b < border.length; b++) {
+			int next = (b + 1) % border.length;
+			int top0 = border[b];
+			int top1 = border[next];
+			int skirt0 = gridVertices + b;
+			int skirt1 = gridVertices + next;
+
+			indices[i++] = top0;
+			indices[i++] = top1;
+			indices[i++] = skirt0;
+
+			indices[i++] = top1;
+			indices[i++] = skirt1;
+			indices[i++] = skirt0;
+		}
+		return indices;
+	}
+
+	/**
+	 * Every step-th value from first to last, last always included.
+	 */
+	private static int[] samples(int first, int last, int step) {
+		int count = (last - first + step - 1) / step + 1;
+		int[] samples = new int[count];
+		for (int i = 0; i < count - 1; i++) {
+			samples[i] = first + i * step;
+		}
+		samples[count - 1] = last;
+		return samples;
+	}
+
+	private static float getXLength() {
+		return Math.abs(-STARTX * 2);
+	}
+
+	private static float getZLength() {
+		return Math.abs(-STARTZ * 2);
+	}
+
+	/**
+	 * Normal from central differences of the height grid, one sided at the borders. The tangent follows the
+	 * texture's u axis, which runs along x, so it is known without going through TangentSpace.
+	 */
+	private void calcNormalAndTangent(int col, int row, float[] normals, float[] tangents, int vertex) {
+		int left = Math.max(col - 1, 0);
+		int right = Math.min(col + 1, grid.getWidth() - 1);
+		int top = Math.max(row - 1, 0);
+		int bottom = Math.min(row + 1, grid.getHeight() - 1);
+		float dx = (grid.get(right, row) - grid.get(left, row)) / ((right - left) * incx);
+		float dz = (grid.get(col, bottom) - grid.get(col, top)) / ((bottom - top) * incz);
+
+		// Normal of the surface y = h(x, z) is (-dh/dx, 1, -dh/dz)
+		float length = (float) Math.sqrt(dx * dx + 1 + dz * dz);
+		normals[vertex * 3] = -dx / length;
+		normals[vertex * 3 + 1] = 1 / length;
+		normals[vertex * 3 + 2] = -dz / length;
+
+		// (1, dh/dx, 0) is perpendicular to the normal already. The v axis runs along z, opposite to
+		// cross(normal, tangent), hence the negative handedness.
+		length = (float) Math.sqrt(1 + dx * dx);
+		tangents[vertex * 4] = 1 / length;
+		tangents[vertex * 4 + 1] = dx / length;
+		tangents[vertex * 4 + 2] = 0;
+		tangents[vertex * 4 + 3] = -1;
+	}
+}
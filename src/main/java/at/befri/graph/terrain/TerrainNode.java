@@ -0,0 +1,46 @@
+package at.befri.graph.terrain;
+
+import at.befri.graph.Mesh;
+
+/**
+ * Node of the terrain quadtree. A node covers a square of the height grid and is drawn as one chunk mesh that
+ * samples every step-th height, so all chunks have about the same number of vertices regardless of their level.
+ */
+class TerrainNode {
+	/**
+	 * 0 for the leaves, which sample the grid at full resolution
+	 */
+	final int level;
+	final int col;
+	final int row;
+	/**
+	 * Last grid sample covered, clipped to the grid
+	 */
+	final int endCol;
+	final int endRow;
+	final int step;
+	TerrainNode[] children;
+	float minY;
+	float maxY;
+	/**
+	 * Material layers used in the node's area, see {@link SplatMap}
+	 */
+	int layerMask = SplatMap.ALL_LAYERS;
+	/**
+	 * Created when the node is drawn for the first time
+	 */
+	Mesh mesh;
+
+	TerrainNode(int level, int col, int row, int size, HeightGrid grid) {
+		this.level = level;
+		this.col = col;
+		this.row = row;
+		endCol = Math.min(col + size, grid.getWidth() - 1);
+		endRow = Math.min(row + size, grid.getHeight() - 1);
+		step = 1 << level;
+	}
+
+	boolean isLeaf() {
+		return children == null;
+	}
+}
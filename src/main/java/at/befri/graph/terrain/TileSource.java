@@ -0,0 +1,18 @@
+package at.befri.graph.terrain;
+
+/**
+ * Height data of a terrain split into a grid of square tiles, see {@link StreamingTerrain}. Neighbouring tiles
+ * share the samples along their common border, so the tile meshes meet without seams. Tiles are loaded on worker
+ * threads, implementations must allow concurrent calls of {@link #loadTile}.
+ */
+public interface TileSource {
+
+	int getTilesX();
+
+	int getTilesZ();
+
+	/**
+	 * Loads the heights of a tile, or returns null if the world has no tile there.
+	 */
+	HeightGrid loadTile(int tileX, int tileZ) throws Exception;
+}
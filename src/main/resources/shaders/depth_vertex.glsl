@@ -1,10 +1,15 @@
 #version 330
 
 layout (location=0) in vec3 position;
+// Top three rows of the model matrix, one set per instance
+layout (location=4) in vec4 modelRow0;
+layout (location=5) in vec4 modelRow1;
+layout (location=6) in vec4 modelRow2;
 
-uniform mat4 modelLightViewMatrix;
+uniform mat4 lightViewMatrix;
 uniform mat4 orthoProjectionMatrix;
 
 void main() {
-	gl_Position = orthoProjectionMatrix * modelLightViewMatrix * vec4(position, 1.0f); 
+	mat4 modelMatrix = transpose(mat4(modelRow0, modelRow1, modelRow2, vec4(0.0, 0.0, 0.0, 1.0)));
+	gl_Position = orthoProjectionMatrix * lightViewMatrix * modelMatrix * vec4(position, 1.0f);
 }
\ No newline at end of file
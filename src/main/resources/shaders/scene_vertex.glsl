@@ -3,8 +3,11 @@
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
 layout (location=2) in vec3 vertexNormal;
-layout (location=3) in vec3 vertexTangent;
-layout (location=4) in vec3 vertexBitangent;
+layout (location=3) in vec4 vertexTangent;
+// Top three rows of the model matrix, one set per instance
+layout (location=4) in vec4 modelRow0;
+layout (location=5) in vec4 modelRow1;
+layout (location=6) in vec4 modelRow2;
 
 out vec3 mvVertexPos;
 out vec2 outTexCoord;
@@ -13,18 +16,22 @@ out mat3 TBN;
 out vec4 mlightviewVertexPos;
 
 uniform mat4 projectionMatrix;
-uniform mat4 modelViewMatrix;
-uniform mat4 modelLightViewMatrix;
+uniform mat4 viewMatrix;
+uniform mat4 lightViewMatrix;
 uniform mat4 orthoProjectionMatrix;
 
 void main() {
+	mat4 modelMatrix = transpose(mat4(modelRow0, modelRow1, modelRow2, vec4(0.0, 0.0, 0.0, 1.0)));
+	mat4 modelViewMatrix = viewMatrix * modelMatrix;
 	vec4 mvPos = modelViewMatrix * vec4(position, 1.0);
     gl_Position = projectionMatrix * mvPos;
     outTexCoord = texCoord;
     mvVertexNormal = normalize(modelViewMatrix * vec4(vertexNormal, 0.0)).xyz;
-    vec3 mvVertexTangent = normalize(modelViewMatrix * vec4(vertexTangent, 0.0)).xyz;
+    // The handedness is stored in w, sign() also covers drivers that map the 2 bit w of packed tangents to -0.5
+    vec3 vertexBitangent = cross(vertexNormal, vertexTangent.xyz) * sign(vertexTangent.w);
+    vec3 mvVertexTangent = normalize(modelViewMatrix * vec4(vertexTangent.xyz, 0.0)).xyz;
     vec3 mvVertexBitangent = normalize(modelViewMatrix * vec4(vertexBitangent, 0.0)).xyz;
     TBN = transpose(mat3(mvVertexTangent, mvVertexBitangent, mvVertexNormal));
     mvVertexPos = mvPos.xyz;
-    mlightviewVertexPos = orthoProjectionMatrix * modelLightViewMatrix * vec4(position, 1.0);
+    mlightviewVertexPos = orthoProjectionMatrix * lightViewMatrix * modelMatrix * vec4(position, 1.0);
 }
\ No newline at end of file
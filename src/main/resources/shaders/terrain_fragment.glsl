@@ -55,6 +55,7 @@ struct Fog {
 uniform sampler2D diffuseMaps[MAX_LAYERS];
 uniform sampler2D normalMaps[MAX_LAYERS];
 uniform sampler2D rgbaMap;
+uniform int layerMask; // bit i is set if layer i is used anywhere in the chunk
 uniform sampler2D shadowMap;
 uniform vec3 ambientLight;
 uniform float specularPower;
@@ -68,26 +69,44 @@ vec4 ambientC;
 vec4 diffuseC;
 vec4 specularC;
 
+float layerWeights[MAX_LAYERS];
+
+// Layers 1 to 4 are mixed over the ones before by the r, g, b and a channel of the rgba map, written out as one
+// weight per layer. A chunk with a single layer does not need the rgba map at all.
+void calcLayerWeights(vec2 texCoord) {
+	if ((layerMask & (layerMask - 1)) == 0) {
+		for (int i = 0; i < MAX_LAYERS; i++) {
+			layerWeights[i] = ((layerMask >> i) & 1) == 1 ? 1.0 : 0.0;
+		}
+	} else {
+		vec4 rgba = texture(rgbaMap, texCoord / 40);
+		layerWeights[4] = rgba.a;
+		layerWeights[3] = rgba.b * (1 - rgba.a);
+		layerWeights[2] = rgba.g * (1 - rgba.b) * (1 - rgba.a);
+		layerWeights[1] = rgba.r * (1 - rgba.g) * (1 - rgba.b) * (1 - rgba.a);
+		layerWeights[0] = (1 - rgba.r) * (1 - rgba.g) * (1 - rgba.b) * (1 - rgba.a);
+	}
+}
+
+// Only the layers of the chunk are sampled. layerMask is uniform, so the branches are too and the implicit
+// derivatives of texture() stay defined. Sampler arrays can only be indexed with constants in GLSL 3.30.
 void setupColors(MultilayeredMaterial multilayeredMaterial, vec2 texCoord) {
 	if (multilayeredMaterial.hasDiffuseMaps == 1) {
-		vec4 rgba = texture(rgbaMap, texCoord / 40);
-		if (rgba.a == 1) {
-			ambientC = texture(diffuseMaps[4], texCoord);
-		} else if (rgba.b == 1) {
-			ambientC = texture(diffuseMaps[3], texCoord);
-		} else if (rgba.g == 1) {
-			ambientC = texture(diffuseMaps[2], texCoord);
-		} else if (rgba.r == 1) {
-			ambientC = texture(diffuseMaps[1], texCoord);
-		} else if (rgba.r == 0 && rgba.g == 0 && rgba.b == 0 && rgba.a == 0) {
-			ambientC = texture(diffuseMaps[0], texCoord);
-		} else {
-			vec4 color0 = texture(diffuseMaps[0], texCoord);
-			vec4 color1 = texture(diffuseMaps[1], texCoord);
-			vec4 color2 = texture(diffuseMaps[2], texCoord);
-			vec4 color3 = texture(diffuseMaps[3], texCoord);
-			vec4 color4 = texture(diffuseMaps[4], texCoord);
-			ambientC = mix(mix(mix(mix(color0, color1, rgba.r), color2, rgba.g), color3, rgba.b), color4, rgba.a);
+		ambientC = vec4(0);
+		if ((layerMask & 1) != 0) {
+			ambientC += texture(diffuseMaps[0], texCoord) * layerWeights[0];
+		}
+		if ((layerMask & 2) != 0) {
+			ambientC += texture(diffuseMaps[1], texCoord) * layerWeights[1];
+		}
+		if ((layerMask & 4) != 0) {
+			ambientC += texture(diffuseMaps[2], texCoord) * layerWeights[2];
+		}
+		if ((layerMask & 8) != 0) {
+			ambientC += texture(diffuseMaps[3], texCoord) * layerWeights[3];
+		}
+		if ((layerMask & 16) != 0) {
+			ambientC += texture(diffuseMaps[4], texCoord) * layerWeights[4];
 		}
 		diffuseC = ambientC;
 		specularC = ambientC;
@@ -166,24 +185,21 @@ vec4 calcFog(vec3 pos, vec4 color, Fog fog, vec3 ambientLight, DirectionalLight
 vec3 calcNormal(MultilayeredMaterial multilayeredMaterial, vec3 normal, vec2 texCoord) {
 	vec3 newNormal = normal;
 	if (multilayeredMaterial.hasNormalMaps == 1) {
-		vec4 rgba = texture(rgbaMap, texCoord / 40);
-		if (rgba.a == 1) {
-			newNormal = texture(normalMaps[4], texCoord).rgb;
-		} else if (rgba.b == 1) {
-			newNormal = texture(normalMaps[3], texCoord).rgb;
-		} else if (rgba.g == 1) {
-			newNormal = texture(normalMaps[2], texCoord).rgb;
-		} else if (rgba.r == 1) {
-			newNormal = texture(normalMaps[1], texCoord).rgb;
-		} else if (rgba.r == 0 && rgba.g == 0 && rgba.b == 0 && rgba.a == 0) {
-			newNormal = texture(normalMaps[0], texCoord).rgb;
-		} else {
-			vec3 normal0 = texture(normalMaps[0], texCoord).rgb;
-			vec3 normal1 = texture(normalMaps[1], texCoord).rgb;
-			vec3 normal2 = texture(normalMaps[2], texCoord).rgb;
-			vec3 normal3 = texture(normalMaps[3], texCoord).rgb;
-			vec3 normal4 = texture(normalMaps[4], texCoord).rgb;
-			newNormal = mix(mix(mix(mix(normal0, normal1, rgba.r), normal2, rgba.g), normal3, rgba.b), normal4, rgba.a);
+		newNormal = vec3(0);
+		if ((layerMask & 1) != 0) {
+			newNormal += texture(normalMaps[0], texCoord).rgb * layerWeights[0];
+		}
+		if ((layerMask & 2) != 0) {
+			newNormal += texture(normalMaps[1], texCoord).rgb * layerWeights[1];
+		}
+		if ((layerMask & 4) != 0) {
+			newNormal += texture(normalMaps[2], texCoord).rgb * layerWeights[2];
+		}
+		if ((layerMask & 8) != 0) {
+			newNormal += texture(normalMaps[3], texCoord).rgb * layerWeights[3];
+		}
+		if ((layerMask & 16) != 0) {
+			newNormal += texture(normalMaps[4], texCoord).rgb * layerWeights[4];
 		}
 		newNormal = normalize(newNormal * 2 - 1);
 	}
@@ -214,6 +230,9 @@ float calcShadow(vec4 position) {
 }
 
 void main() {
+	if (multilayeredMaterial.hasDiffuseMaps == 1 || multilayeredMaterial.hasNormalMaps == 1) {
+		calcLayerWeights(outTexCoord);
+	}
 	setupColors(multilayeredMaterial, outTexCoord);
 	
 	vec3 currNormal = calcNormal(multilayeredMaterial, mvVertexNormal, outTexCoord);
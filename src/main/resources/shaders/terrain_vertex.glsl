@@ -3,8 +3,7 @@
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
 layout (location=2) in vec3 vertexNormal;
-layout (location=3) in vec3 vertexTangent;
-layout (location=4) in vec3 vertexBitangent;
+layout (location=3) in vec4 vertexTangent;
 
 out vec3 mvVertexPos;
 out vec2 outTexCoord;
@@ -17,14 +16,51 @@ uniform mat4 modelViewMatrix;
 uniform mat4 modelLightViewMatrix;
 uniform mat4 orthoProjectionMatrix;
 
+// Shared grid mode: position holds the column and row in the chunk and 1 in z for skirt vertices, everything
+// else is reconstructed from the height map
+uniform int sharedGrid;
+uniform sampler2D heightMap;
+uniform vec2 heightRange; // height of 0 and the range up to the height of 1
+uniform vec2 cellSize;
+uniform float texRepeat;
+uniform vec4 chunkBounds; // first column and row, last column and row
+uniform float chunkStep;
+uniform float skirtDepth;
+
+float gridHeight(ivec2 cell) {
+    return heightRange.x + texelFetch(heightMap, cell, 0).r * heightRange.y;
+}
+
 void main() {
-	vec4 mvPos = modelViewMatrix * vec4(position, 1.0);
+    vec3 localPos = position;
+    vec2 localTexCoord = texCoord;
+    vec3 normal = vertexNormal;
+    vec4 tangent = vertexTangent;
+    if (sharedGrid == 1) {
+        ivec2 size = textureSize(heightMap, 0);
+        // Chunks clipped by the grid border repeat their last sample
+        ivec2 cell = min(ivec2(chunkBounds.xy + position.xy * chunkStep), ivec2(chunkBounds.zw));
+        localPos = vec3(-0.5 + cell.x * cellSize.x, gridHeight(cell) - position.z * skirtDepth, -0.5 + cell.y * cellSize.y);
+        localTexCoord = texRepeat * vec2(cell) / vec2(size);
+
+        // Central differences of the full resolution grid, one sided at the borders, as in Terrain
+        ivec2 low = max(cell - 1, ivec2(0));
+        ivec2 high = min(cell + 1, size - 1);
+        float dx = (gridHeight(ivec2(high.x, cell.y)) - gridHeight(ivec2(low.x, cell.y))) / (float(high.x - low.x) * cellSize.x);
+        float dz = (gridHeight(ivec2(cell.x, high.y)) - gridHeight(ivec2(cell.x, low.y))) / (float(high.y - low.y) * cellSize.y);
+        normal = normalize(vec3(-dx, 1.0, -dz));
+        tangent = vec4(normalize(vec3(1.0, dx, 0.0)), -1.0);
+    }
+
+	vec4 mvPos = modelViewMatrix * vec4(localPos, 1.0);
     gl_Position = projectionMatrix * mvPos;
-    outTexCoord = texCoord;
-    mvVertexNormal = normalize(modelViewMatrix * vec4(vertexNormal, 0.0)).xyz;
-    vec3 mvVertexTangent = normalize(modelViewMatrix * vec4(vertexTangent, 0.0)).xyz;
+    outTexCoord = localTexCoord;
+    mvVertexNormal = normalize(modelViewMatrix * vec4(normal, 0.0)).xyz;
+    // The handedness is stored in w, sign() also covers drivers that map the 2 bit w of packed tangents to -0.5
+    vec3 vertexBitangent = cross(normal, tangent.xyz) * sign(tangent.w);
+    vec3 mvVertexTangent = normalize(modelViewMatrix * vec4(tangent.xyz, 0.0)).xyz;
     vec3 mvVertexBitangent = normalize(modelViewMatrix * vec4(vertexBitangent, 0.0)).xyz;
     TBN = transpose(mat3(mvVertexTangent, mvVertexBitangent, mvVertexNormal));
     mvVertexPos = mvPos.xyz;
-    mlightviewVertexPos = orthoProjectionMatrix * modelLightViewMatrix * vec4(position, 1.0);
-}
\ No newline at end of file
+    mlightviewVertexPos = orthoProjectionMatrix * modelLightViewMatrix * vec4(localPos, 1.0);
+}
@@ -0,0 +1,105 @@
+package at.befri.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.FloatBuffer;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.junit.After;
+import org.junit.Test;
+
+public class InstanceBufferTest {
+	private final InstanceBuffer instances = new InstanceBuffer();
+
+	@After
+	public void free() {
+		instances.free();
+	}
+
+	private static Matrix4f modelMatrix(int i) {
+		return new Matrix4f().translationRotateScale(new Vector3f(i, -2 * i, 0.5f * i),
+				new Quaternionf().rotateXYZ(0.1f * i, 0.2f * i, -0.3f * i), 1 + i % 5);
+	}
+
+	/**
+	 * Checks the instance at a position of a level's buffer against the top three rows of the matrix
+	 */
+	private static void assertInstance(Matrix4f expected, FloatBuffer buffer, int instance) {
+		float[] columns = expected.get(new float[16]);
+		for (int row = 0; row < 3; row++) {
+			for (int column = 0; column < 4; column++) {
+				assertEquals("row " + row + ", column " + column, columns[column * 4 + row],
+						buffer.get(instance * InstanceBuffer.INSTANCE_FLOATS + row * 4 + column), 0.0f);
+			}
+		}
+	}
+
+	@Test
+	public void packsTopThreeRows() {
+		Matrix4f matrix = modelMatrix(3);
+		instances.add(0, matrix);
+
+		FloatBuffer buffer = instances.getBuffer(0);
+		assertEquals(0, buffer.position());
+		assertEquals(InstanceBuffer.INSTANCE_FLOATS, buffer.limit());
+		assertInstance(matrix, buffer, 0);
+		// The translation ends each row
+		assertEquals(3.0f, buffer.get(3), 0.0f);
+		assertEquals(-6.0f, buffer.get(7), 0.0f);
+		assertEquals(1.5f, buffer.get(11), 0.0f);
+	}
+
+	@Test
+	public void groupsByLevel() {
+		int[] levels = { 0, 2, 0, 1, 2, 2, 0 };
+		for (int i = 0; i < levels.length; i++) {
+			instances.add(levels[i], modelMatrix(i));
+		}
+
+		assertEquals(levels.length, instances.getCount());
+		assertEquals(3, instances.getCount(0));
+		assertEquals(1, instances.getCount(1));
+		assertEquals(3, instances.getCount(2));
+		assertEquals(0, instances.getCount(3));
+		assertNull(instances.getBuffer(3));
+		// Each level keeps its instances in the order they were added
+		int[] next = new int[MeshData.MAX_LOD_LEVELS];
+		for (int i = 0; i < levels.length; i++) {
+			FloatBuffer buffer = instances.getBuffer(levels[i]);
+			assertEquals(instances.getCount(levels[i]) * InstanceBuffer.INSTANCE_FLOATS, buffer.limit());
+			assertInstance(modelMatrix(i), buffer, next[levels[i]]++);
+		}
+	}
+
+	@Test
+	public void growsAndKeepsInstances() {
+		// Several doublings of the initial capacity
+		int count = 1000;
+		for (int i = 0; i < count; i++) {
+			instances.add(1, modelMatrix(i));
+		}
+		assertEquals(count, instances.getCount(1));
+		FloatBuffer buffer = instances.getBuffer(1);
+		assertEquals(count * InstanceBuffer.INSTANCE_FLOATS, buffer.limit());
+		for (int i = 0; i < count; i++) {
+			assertInstance(modelMatrix(i), buffer, i);
+		}
+	}
+
+	@Test
+	public void clearReusesBuffers() {
+		for (int i = 0; i < 100; i++) {
+			instances.add(0, modelMatrix(i));
+		}
+		instances.clear();
+		assertEquals(0, instances.getCount());
+		assertEquals(0, instances.getBuffer(0).limit());
+
+		instances.add(0, modelMatrix(7));
+		assertEquals(1, instances.getCount());
+		assertInstance(modelMatrix(7), instances.getBuffer(0), 0);
+	}
+}
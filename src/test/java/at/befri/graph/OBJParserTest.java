@@ -0,0 +1,115 @@
+package at.befri.graph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OBJParserTest {
+
+	/**
+	 * Vertex records interleaved with triangles, quads and pentagons that use absolute and negative indices, so
+	 * faces in one chunk refer back to records parsed by earlier chunks.
+	 */
+	private static String createObj(long seed, int groups) {
+		Random random = new Random(seed);
+		StringBuilder obj = new StringBuilder("# test mesh\n");
+		int positions = 0;
+		int texCoords = 0;
+		int normals = 0;
+		for (int group = 0; group < groups; group++) {
+			int records = 3 + random.nextInt(6);
+			for (int i = 0; i < records; i++) {
+				obj.append("v ").append(random.nextFloat() * 200 - 100).append(' ')
+						.append(random.nextFloat()).append(' ').append(-random.nextInt(1000) / 7.0f).append('\n');
+				obj.append("vt ").append(random.nextFloat()).append(' ').append(random.nextFloat()).append('\n');
+				obj.append("vn ").append(random.nextFloat() * 2 - 1).append(" 0.5 -0.25\n");
+			}
+			positions += records;
+			texCoords += records;
+			normals += records;
+			if (group % 5 == 0) {
+				obj.append("\n# group ").append(group).append("\r\n");
+			}
+
+			int faces = 1 + random.nextInt(4);
+			for (int face = 0; face < faces; face++) {
+				int corners = 3 + random.nextInt(3);
+				int format = random.nextInt(3);
+				obj.append('f');
+				for (int corner = 0; corner < corners; corner++) {
+					obj.append(' ').append(index(random, positions));
+					if (format == 0) {
+						obj.append('/').append(index(random, texCoords)).append('/').append(index(random, normals));
+					} else if (format == 1) {
+						obj.append("//").append(index(random, normals));
+					} else {
+						obj.append('/').append(index(random, texCoords));
+					}
+				}
+				obj.append('\n');
+			}
+		}
+		return obj.toString();
+	}
+
+	/**
+	 * A 1-based absolute index or a negative relative one, reaching back up to the first record
+	 */
+	private static int index(Random random, int count) {
+		int target = random.nextInt(count);
+		return random.nextBoolean() ? target + 1 : target - count;
+	}
+
+	private static ByteBuffer toBuffer(String obj) {
+		byte[] bytes = obj.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void assertSameResult(OBJParser expected, OBJParser actual) {
+		assertArrayEquals(expected.getPositions().toArray(), actual.getPositions().toArray(), 0.0f);
+		assertArrayEquals(expected.getTexCoords().toArray(), actual.getTexCoords().toArray(), 0.0f);
+		assertArrayEquals(expected.getNormals().toArray(), actual.getNormals().toArray(), 0.0f);
+		assertArrayEquals(expected.getFaceVertices().toArray(), actual.getFaceVertices().toArray());
+	}
+
+	@Test
+	public void chunkedParseMatchesSequentialParse() {
+		ByteBuffer buffer = toBuffer(createObj(42, 400));
+		OBJParser sequential = OBJParser.parse(buffer, 1);
+
+		// Chunks of a few records each, so most faces reach back across chunk boundaries
+		for (int parallelism : new int[] { 2, 8, 64, 1024 }) {
+			OBJParser chunked = OBJParser.parseInChunks(buffer, parallelism, 64);
+			assertSameResult(sequential, chunked);
+		}
+	}
+
+	@Test
+	public void negativeIndicesResolveAgainstEarlierChunks() {
+		String obj = "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\nvn 0 0 1\n"
+				+ "f 1//1 2//1 3//1 4//1\n"
+				+ "f -4//-1 -3//-1 -2//-1 -1//-1\n";
+		ByteBuffer buffer = toBuffer(obj);
+		OBJParser sequential = OBJParser.parse(buffer, 1);
+		OBJParser chunked = OBJParser.parseInChunks(buffer, 4, 8);
+		assertSameResult(sequential, chunked);
+
+		// Both quads fan into the same two triangles
+		int[] faces = chunked.getFaceVertices().toArray();
+		assertEquals(2 * 2 * 3 * 3, faces.length);
+		for (int i = 0; i < faces.length / 2; i++) {
+			assertEquals(faces[i], faces[faces.length / 2 + i]);
+		}
+		assertArrayEquals(new int[] { 0, OBJParser.NO_VALUE, 0, 1, OBJParser.NO_VALUE, 0, 2, OBJParser.NO_VALUE, 0 },
+				Arrays.copyOf(faces, 9));
+	}
+}
@@ -0,0 +1,141 @@
+package at.befri.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import at.befri.engine.items.GameItem;
+
+public class RenderQueueTest {
+
+	/**
+	 * Sorts the keys with the queue and checks keys and items against a stable comparator sort of the input
+	 */
+	private static void assertSortsLikeStableSort(long[] keys) {
+		GameItem[] gameItems = new GameItem[keys.length];
+		RenderQueue queue = new RenderQueue();
+		for (int i = 0; i < keys.length; i++) {
+			gameItems[i] = new GameItem(null);
+			queue.add(keys[i], gameItems[i]);
+		}
+		queue.sort();
+
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// Arrays.sort on objects is stable
+		Arrays.sort(order, Comparator.comparing((Integer i) -> keys[i], Long::compareUnsigned));
+		assertEquals(keys.length, queue.size());
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals("key at " + i, keys[order[i]], queue.getKey(i));
+			assertSame("item at " + i, gameItems[order[i]], queue.getGameItem(i));
+		}
+	}
+
+	@Test
+	public void sortsLikeStableSort() {
+		Random random = new Random(3);
+		for (int size : new int[] { 0, 1, 2, 255, 256, 257, 5000 }) {
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++) {
+				int pass = random.nextInt(2);
+				keys[i] = RenderQueue.key(pass, pass, pass == RenderQueue.PASS_SHADOW ? RenderQueue.NO_MATERIAL
+						: 1 + random.nextInt(20), 1 + random.nextInt(50), random.nextInt(4), random.nextFloat() * 1e4f);
+			}
+			assertSortsLikeStableSort(keys);
+		}
+	}
+
+	@Test
+	public void keepsOrderOfEqualKeys() {
+		// Few distinct keys, so most items tie
+		Random random = new Random(5);
+		long[] pool = { 0L, 1L, 1L << 40, -1L, Long.MIN_VALUE, 42L << 20 };
+		long[] keys = new long[2000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = pool[random.nextInt(pool.length)];
+		}
+		assertSortsLikeStableSort(keys);
+	}
+
+	@Test
+	public void ordersKeysWithSignBitAsUnsigned() {
+		Random random = new Random(7);
+		long[] keys = new long[3000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextLong();
+		}
+		assertSortsLikeStableSort(keys);
+
+		// Passes 2 and 3 set the top bit and must still sort after the opaque pass
+		RenderQueue queue = new RenderQueue();
+		GameItem gameItem = new GameItem(null);
+		long last = RenderQueue.key(3, 0, 0, 1, 0, 1);
+		long opaque = RenderQueue.key(RenderQueue.PASS_OPAQUE, 15, 65535, 65535, 7, Float.MAX_VALUE);
+		long shadow = RenderQueue.key(RenderQueue.PASS_SHADOW, 0, 0, 1, 0, 1);
+		assertTrue(last < 0);
+		queue.add(last, gameItem);
+		queue.add(opaque, gameItem);
+		queue.add(shadow, gameItem);
+		queue.sort();
+		assertEquals(shadow, queue.getKey(0));
+		assertEquals(opaque, queue.getKey(1));
+		assertEquals(last, queue.getKey(2));
+	}
+
+	@Test
+	public void skipsDigitsAllKeysShare() {
+		// Keys that differ only in the lowest and in the highest digit
+		long[] keys = new long[1000];
+		Random random = new Random(11);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = 0x0123456789ABCDEFL & ~0x7FFL & ~(0x1FFL << 55) | random.nextInt(0x800)
+					| (long) random.nextInt(0x200) << 55;
+		}
+		assertSortsLikeStableSort(keys);
+
+		// All keys equal, nothing moves
+		Arrays.fill(keys, 0x8000_0000_0000_1234L);
+		assertSortsLikeStableSort(keys);
+	}
+
+	@Test
+	public void clampsNegativeDepth() {
+		long zero = RenderQueue.key(RenderQueue.PASS_OPAQUE, 1, 2, 3, 1, 0.0f);
+		assertEquals(zero, RenderQueue.key(RenderQueue.PASS_OPAQUE, 1, 2, 3, 1, -0.0f));
+		assertEquals(zero, RenderQueue.key(RenderQueue.PASS_OPAQUE, 1, 2, 3, 1, -5.0f));
+		assertEquals(zero, RenderQueue.key(RenderQueue.PASS_OPAQUE, 1, 2, 3, 1, Float.NEGATIVE_INFINITY));
+		// The depth stays in its field, the level is untouched
+		assertEquals(zero >>> 23, RenderQueue.key(RenderQueue.PASS_OPAQUE, 1, 2, 3, 1, Float.MAX_VALUE) >>> 23);
+	}
+
+	@Test
+	public void ordersDepthNearestFirst() {
+		float[] depths = { 0.0f, 1e-30f, 0.5f, 1.0f, 1.01f, 100.0f, 1e6f, 1e30f, Float.POSITIVE_INFINITY };
+		long previous = RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 1, 1, 0, depths[0]);
+		for (int i = 1; i < depths.length; i++) {
+			long key = RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 1, 1, 0, depths[i]);
+			assertTrue("depth " + depths[i], Long.compareUnsigned(previous, key) < 0);
+			previous = key;
+		}
+	}
+
+	@Test
+	public void ordersStateBeforeDepth() {
+		long nearOfLaterMesh = RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 1, 2, 0, 0.0f);
+		long farOfEarlierMesh = RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 1, 1, 0, 1e30f);
+		long nextMaterial = RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 2, 1, 0, 0.0f);
+		assertTrue(Long.compareUnsigned(farOfEarlierMesh, nearOfLaterMesh) < 0);
+		assertTrue(Long.compareUnsigned(nearOfLaterMesh, nextMaterial) < 0);
+		// Id 65536 wraps around to 1, not to NO_MATERIAL
+		assertEquals(RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 1, 1, 0, 0.0f),
+				RenderQueue.key(RenderQueue.PASS_OPAQUE, 0, 65536, 1, 0, 0.0f));
+	}
+}
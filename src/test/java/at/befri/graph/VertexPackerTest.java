@@ -0,0 +1,155 @@
+package at.befri.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class VertexPackerTest {
+
+	@Test
+	public void halfKeepsSignedZeros() {
+		assertEquals(0x0000, VertexPacker.toHalf(0.0f) & 0xFFFF);
+		assertEquals(0x8000, VertexPacker.toHalf(-0.0f) & 0xFFFF);
+		assertEquals(Float.floatToIntBits(-0.0f), Float.floatToIntBits(VertexPacker.fromHalf((short) 0x8000)));
+	}
+
+	@Test
+	public void halfEncodesOnesAndTwos() {
+		assertEquals(0x3C00, VertexPacker.toHalf(1.0f) & 0xFFFF);
+		assertEquals(0xBC00, VertexPacker.toHalf(-1.0f) & 0xFFFF);
+		assertEquals(0x4000, VertexPacker.toHalf(2.0f) & 0xFFFF);
+		assertEquals(0xC000, VertexPacker.toHalf(-2.0f) & 0xFFFF);
+		// Past the texture coordinate range of the packed layout the encoding stays exact
+		assertEquals(2.5f, VertexPacker.fromHalf(VertexPacker.toHalf(2.5f)), 0.0f);
+		assertEquals(-3.75f, VertexPacker.fromHalf(VertexPacker.toHalf(-3.75f)), 0.0f);
+	}
+
+	@Test
+	public void halfRoundsToNearestEven() {
+		float ulp = (float) Math.pow(2, -10);
+		// Halfway between 1 and the next half rounds down to the even mantissa, between the next two up
+		assertEquals(0x3C00, VertexPacker.toHalf(1.0f + ulp / 2) & 0xFFFF);
+		assertEquals(0x3C02, VertexPacker.toHalf(1.0f + ulp * 3 / 2) & 0xFFFF);
+		assertEquals(0x3C01, VertexPacker.toHalf(1.0f + ulp * 0.6f) & 0xFFFF);
+	}
+
+	@Test
+	public void halfOverflowsToInfinity() {
+		assertEquals(0x7BFF, VertexPacker.toHalf(65504.0f) & 0xFFFF);
+		// Rounds up past the largest half
+		assertEquals(0x7C00, VertexPacker.toHalf(65520.0f) & 0xFFFF);
+		assertEquals(0xFC00, VertexPacker.toHalf(-1e6f) & 0xFFFF);
+		assertEquals(0x7C00, VertexPacker.toHalf(Float.POSITIVE_INFINITY) & 0xFFFF);
+		assertEquals(Float.NEGATIVE_INFINITY, VertexPacker.fromHalf((short) 0xFC00), 0.0f);
+	}
+
+	@Test
+	public void halfKeepsNaN() {
+		short half = VertexPacker.toHalf(Float.NaN);
+		assertEquals(0x7C00, half & 0x7C00);
+		assertTrue((half & 0x3FF) != 0);
+		assertTrue(Float.isNaN(VertexPacker.fromHalf(half)));
+	}
+
+	@Test
+	public void halfEncodesDenormals() {
+		float smallest = (float) Math.pow(2, -24);
+		assertEquals(0x0001, VertexPacker.toHalf(smallest) & 0xFFFF);
+		assertEquals(0x8001, VertexPacker.toHalf(-smallest) & 0xFFFF);
+		assertEquals(0x03FF, VertexPacker.toHalf(1023 * smallest) & 0xFFFF);
+		assertEquals(smallest, VertexPacker.fromHalf((short) 0x0001), 0.0f);
+		// Half the smallest denormal ties to zero, a little more rounds up to it
+		assertEquals(0x0000, VertexPacker.toHalf(smallest / 2) & 0xFFFF);
+		assertEquals(0x0001, VertexPacker.toHalf(smallest * 0.75f) & 0xFFFF);
+		// Rounding up from the largest denormal reaches the smallest normal
+		assertEquals(0x0400, VertexPacker.toHalf(1023.75f * smallest) & 0xFFFF);
+		assertEquals(0x0000, VertexPacker.toHalf(1e-10f) & 0xFFFF);
+	}
+
+	@Test
+	public void halfRoundTripsEveryHalf() {
+		for (int bits = 0; bits <= 0xFFFF; bits++) {
+			float value = VertexPacker.fromHalf((short) bits);
+			if (Float.isNaN(value)) {
+				continue;
+			}
+			assertEquals("half " + Integer.toHexString(bits), bits, VertexPacker.toHalf(value) & 0xFFFF);
+		}
+	}
+
+	@Test
+	public void snormEncodesZerosAndOnes() {
+		assertEquals(0, VertexPacker.packSnorm(0.0f, -0.0f, 0.0f, 0.0f));
+		int packed = VertexPacker.packSnorm(1.0f, -1.0f, 0.0f, 0.0f);
+		assertEquals(511, packed & 0x3FF);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(packed, 0), 0.0f);
+		assertEquals(-1.0f, VertexPacker.unpackSnorm(packed, 1), 0.0f);
+		assertEquals(0.0f, VertexPacker.unpackSnorm(packed, 2), 0.0f);
+	}
+
+	@Test
+	public void snormClampsOutOfRange() {
+		int packed = VertexPacker.packSnorm(2.5f, -3.0f, 1.0001f, 4.0f);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(packed, 0), 0.0f);
+		assertEquals(-1.0f, VertexPacker.unpackSnorm(packed, 1), 0.0f);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(packed, 2), 0.0f);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(packed, 3), 0.0f);
+	}
+
+	@Test
+	public void snormMapsNaNToZero() {
+		int packed = VertexPacker.packSnorm(Float.NaN, 0.5f, Float.NaN, Float.NaN);
+		assertEquals(0.0f, VertexPacker.unpackSnorm(packed, 0), 0.0f);
+		assertEquals(0.5f, VertexPacker.unpackSnorm(packed, 1), 0.5f / 511);
+		assertEquals(0.0f, VertexPacker.unpackSnorm(packed, 2), 0.0f);
+		assertEquals(0.0f, VertexPacker.unpackSnorm(packed, 3), 0.0f);
+	}
+
+	@Test
+	public void snormKeepsHandednessSign() {
+		int right = VertexPacker.packSnorm(1.0f, 0.0f, 0.0f, 1.0f);
+		int left = VertexPacker.packSnorm(1.0f, 0.0f, 0.0f, -1.0f);
+		assertEquals(1, right >>> 30);
+		assertEquals(3, left >>> 30);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(right, 3), 0.0f);
+		assertEquals(-1.0f, VertexPacker.unpackSnorm(left, 3), 0.0f);
+		// The handedness does not leak into z
+		assertEquals(0.0f, VertexPacker.unpackSnorm(left, 2), 0.0f);
+	}
+
+	@Test
+	public void snormRoundTripsWithinHalfAStep() {
+		for (int i = -1000; i <= 1000; i++) {
+			float value = i / 1000.0f;
+			int packed = VertexPacker.packSnorm(value, -value, value * 0.5f, 0.0f);
+			assertEquals(value, VertexPacker.unpackSnorm(packed, 0), 0.5f / 511 + 1e-6f);
+			assertEquals(-value, VertexPacker.unpackSnorm(packed, 1), 0.5f / 511 + 1e-6f);
+			assertEquals(value * 0.5f, VertexPacker.unpackSnorm(packed, 2), 0.5f / 511 + 1e-6f);
+		}
+	}
+
+	@Test
+	public void writesPackedVertices() {
+		MeshData data = new MeshData(
+				new float[] { 0, 0, 0, 1, 0, 0, 0, 1, 0 },
+				new float[] { 0, 0, 1, 0, 0, 1 },
+				new float[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 },
+				new int[] { 0, 1, 2 });
+		data.computeTangents();
+		ByteBuffer buffer = ByteBuffer.allocate(3 * VertexLayout.PACKED.getStride()).order(ByteOrder.nativeOrder());
+		VertexPacker.write(data, VertexLayout.PACKED, buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+
+		int stride = VertexLayout.PACKED.getStride();
+		assertEquals(1.0f, buffer.getFloat(stride), 0.0f);
+		assertEquals(1.0f, VertexPacker.fromHalf(buffer.getShort(stride + 12)), 0.0f);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(buffer.getInt(stride + 16), 2), 0.0f);
+		int tangent = buffer.getInt(stride + 20);
+		assertEquals(1.0f, VertexPacker.unpackSnorm(tangent, 0), 0.0f);
+		assertEquals(1.0f, Math.abs(VertexPacker.unpackSnorm(tangent, 3)), 0.0f);
+	}
+}
@@ -0,0 +1,48 @@
+package at.befri.graph.terrain;
+
+import static org.junit.Assert.assertEquals;
+
+import org.joml.Vector3f;
+import org.junit.Test;
+
+public class HeightGridTest {
+
+	/**
+	 * Plane rising by slopeX per unit along the columns and slopeZ per unit along the rows
+	 */
+	private static HeightGrid plane(int width, int height, float cellWidth, float cellDepth, float slopeX,
+			float slopeZ) {
+		float[] heights = new float[width * height];
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				heights[row * width + col] = slopeX * col * cellWidth + slopeZ * row * cellDepth;
+			}
+		}
+		return new HeightGrid(width, height, heights);
+	}
+
+	@Test
+	public void normalKeepsSlopeAtBorders() {
+		HeightGrid grid = plane(5, 4, 2.0f, 0.5f, 0.5f, -1.5f);
+		Vector3f expected = new Vector3f(-0.5f, 1, 1.5f).normalize();
+		Vector3f normal = new Vector3f();
+		float[][] points = { { 2, 1.5f }, { 0, 0 }, { 4, 3 }, { 0, 2 }, { 4, 1 }, { 2.5f, 0 }, { 1, 3 },
+				{ 3.75f, 2.9f }, { -1, 7 } };
+		for (float[] point : points) {
+			grid.sampleNormal(point[0], point[1], 2.0f, 0.5f, normal);
+			String at = point[0] + ", " + point[1];
+			assertEquals(at, expected.x, normal.x, 1e-6f);
+			assertEquals(at, expected.y, normal.y, 1e-6f);
+			assertEquals(at, expected.z, normal.z, 1e-6f);
+		}
+	}
+
+	@Test
+	public void normalOfFlatGridPointsUp() {
+		HeightGrid grid = plane(3, 3, 1.0f, 1.0f, 0, 0);
+		Vector3f normal = grid.sampleNormal(2, 0, 1.0f, 1.0f, new Vector3f());
+		assertEquals(0, normal.x, 0.0f);
+		assertEquals(1, normal.y, 0.0f);
+		assertEquals(0, normal.z, 0.0f);
+	}
+}